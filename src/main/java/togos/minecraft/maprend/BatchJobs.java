@@ -0,0 +1,174 @@
+package togos.minecraft.maprend;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import togos.minecraft.maprend.RegionRenderer.RegionRendererCommand;
+
+/**
+ * Runs many render jobs, listed in a file, one after another in a single
+ * process, so that start-up, JIT warm-up and color map loading are only
+ * paid for once.
+ *
+ * Each non-blank line of the job file holds the command-line arguments
+ * for one job, e.g. "-o maps/world-nether -scales 1,1:4 worlds/world/DIM-1/region".
+ * Arguments containing spaces can be double-quoted, and anything after a
+ * '#' starting an argument is a comment.  Options given on the command
+ * line along with -jobs come before each job's own, so they apply to
+ * every job unless it overrides them.
+ *
+ * Jobs share color maps loaded from the same files and a pool of threads.
+ */
+public class BatchJobs
+{
+	public static class Job {
+		public final int lineNumber;
+		public final String[] args;
+
+		public Job( int lineNumber, String[] args ) {
+			this.lineNumber = lineNumber;
+			this.args = args;
+		}
+	}
+
+	/** Split a line of a job file into arguments */
+	protected static List<String> tokenize( String line ) {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = null;
+		boolean quoted = false;
+		for( int i=0; i<line.length(); ++i ) {
+			char c = line.charAt(i);
+			if( quoted ) {
+				if( c == '"' ) quoted = false;
+				else token.append(c);
+			} else if( Character.isWhitespace(c) ) {
+				if( token != null ) tokens.add(token.toString());
+				token = null;
+			} else if( c == '#' && token == null ) {
+				break;
+			} else {
+				if( token == null ) token = new StringBuilder();
+				if( c == '"' ) quoted = true;
+				else token.append(c);
+			}
+		}
+		if( token != null ) tokens.add(token.toString());
+		return tokens;
+	}
+
+	public static List<Job> read( File jobFile ) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(jobFile), "UTF-8"));
+		try {
+			String line;
+			for( int lineNumber = 1; (line = r.readLine()) != null; ++lineNumber ) {
+				List<String> args = tokenize(line);
+				if( !args.isEmpty() ) jobs.add(new Job(lineNumber, args.toArray(new String[args.size()])));
+			}
+		} finally {
+			r.close();
+		}
+		return jobs;
+	}
+
+	private final Map<File,BlockMap> blockMaps = new HashMap<File,BlockMap>();
+	private final Map<File,BiomeMap> biomeMaps = new HashMap<File,BiomeMap>();
+	/** Runs the render threads of every job */
+	public final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread( Runnable r ) {
+			Thread t = new Thread(r, "TMCMR worker "+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** @return the block color map from the given file, or the default one if null, loading it only once */
+	public synchronized BlockMap getBlockMap( File f ) throws IOException {
+		BlockMap map = blockMaps.get(f);
+		if( map == null ) {
+			map = f == null ? BlockMap.loadDefault() : BlockMap.load(f);
+			blockMaps.put(f, map);
+		}
+		return map;
+	}
+
+	/** @return the biome color map from the given file, or the default one if null, loading it only once */
+	public synchronized BiomeMap getBiomeMap( File f ) throws IOException {
+		BiomeMap map = biomeMaps.get(f);
+		if( map == null ) {
+			map = f == null ? BiomeMap.loadDefault() : BiomeMap.load(f);
+			biomeMaps.put(f, map);
+		}
+		return map;
+	}
+
+	protected static String[] concat( String[] a, String[] b ) {
+		String[] c = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+
+	/**
+	 * Run each job in turn, carrying on with the rest if one fails,
+	 * and then report how long each one took.
+	 * @param commonArgs arguments that go before each job's own
+	 * @return 0 if every job succeeded, 1 otherwise
+	 */
+	public int run( String[] commonArgs, List<Job> jobs ) {
+		List<String> report = new ArrayList<String>();
+		int failures = 0;
+		long startTime = System.currentTimeMillis();
+		for( int i=0; i<jobs.size(); ++i ) {
+			Job job = jobs.get(i);
+			String name = "Job " + (i+1) + " (line " + job.lineNumber + ")";
+			RegionRendererCommand cmd = RegionRendererCommand.fromArguments(concat(commonArgs, job.args));
+			if( cmd.errorMessage == null && (cmd.watch || cmd.servePort >= 0 || cmd.jobFile != null) ) {
+				cmd.errorMessage = "-watch, -serve and -jobs can't be used in a job file";
+			}
+			if( cmd.errorMessage == null && cmd.printHelpAndExit ) {
+				// Would print the usage instead of rendering anything
+				cmd.errorMessage = "-help can't be used in a job file";
+			}
+			if( cmd.errorMessage != null ) {
+				System.err.println(name + ": Error: " + cmd.errorMessage);
+				report.add(name + ": " + cmd.errorMessage);
+				++failures;
+				continue;
+			}
+			System.err.println(name + ": rendering to " + cmd.outputDir);
+			cmd.batch = this;
+			long jobStartTime = System.currentTimeMillis();
+			int result;
+			try {
+				result = cmd.run();
+			} catch( Exception e ) {
+				System.err.println(name + " failed");
+				e.printStackTrace(System.err);
+				result = 1;
+			}
+			long time = System.currentTimeMillis() - jobStartTime;
+			if( result != 0 || cmd.renderer == null ) {
+				report.add(name + ": " + cmd.outputDir + ": failed after " + time + "ms");
+				++failures;
+			} else {
+				RegionRenderer.Timer tim = cmd.renderer.timer;
+				report.add(name + ": " + cmd.outputDir + ": " + tim.regionCount.get() + " regions rendered, " +
+					tim.tilesWritten.get() + " tiles written in " + time + "ms");
+			}
+		}
+		System.err.println();
+		for( String line : report ) System.err.println(line);
+		System.err.println(jobs.size() + " jobs, " + failures + " failed, in " + (System.currentTimeMillis() - startTime) + "ms");
+		return failures == 0 ? 0 : 1;
+	}
+}
@@ -1,36 +1,133 @@
 package togos.minecraft.maprend;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
 import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.FileUtil;
+import togos.minecraft.maprend.io.PNGEncoder;
 
+/**
+ * Merges all of the region tiles in a directory into one big image.
+ *
+ * The image is written a row of regions at a time: the tiles of each row
+ * are read (in parallel, if there's an executor) into a band 512 pixels
+ * high, which is then compressed and written out before the next row is
+ * read.  So only one band needs to be held at once, however many rows the
+ * world is high.
+ */
 public class BigImageMerger
 {
-	public void createBigImage( RegionMap rm, File outputDir, boolean debug ) {
+	protected final PNGEncoder encoder;
+	/** Reads the tiles of a row, or null to read them on the calling thread */
+	protected final ExecutorService executor;
+	
+	public BigImageMerger( PNGEncoder encoder, ExecutorService executor ) {
+		this.encoder = encoder;
+		this.executor = executor;
+	}
+	
+	/** Read the tile of a region into its place in a band, leaving it transparent if it can't be read */
+	protected static void readTile( File imageFile, int[] band, int offset, int bandWidth ) {
+		BufferedImage region;
+		try {
+			region = ImageIO.read( imageFile );
+		} catch ( IOException e ) {
+			region = null;
+		}
+		if( region == null || region.getWidth() != 512 || region.getHeight() != 512 ) {
+			System.err.println( "Could not load image "+imageFile.getName() );
+			return;
+		}
+		region.getRGB( 0, 0, 512, 512, band, offset, bandWidth );
+	}
+	
+	/** Fill a band with the tiles of the given regions, all in one row */
+	protected void readBand( List<Region> row, final int[] band, final int minX, final int width, final File outputDir ) throws IOException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for( final Region r : row ) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					readTile( new File( outputDir, "tile."+r.rx+"."+r.rz+".png" ), band, (r.rx-minX)*512, width );
+					return null;
+				}
+			});
+		}
+		if( executor == null ) {
+			for( Callable<Void> task : tasks ) {
+				try {
+					task.call();
+				} catch( Exception e ) {
+					throw new RuntimeException(e);
+				}
+			}
+			return;
+		}
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for( Callable<Void> task : tasks ) futures.add( executor.submit(task) );
+		try {
+			for( Future<Void> f : futures ) f.get();
+		} catch( InterruptedException e ) {
+			for( Future<Void> f : futures ) f.cancel(true);
+			throw new IOException("Interrupted while reading tiles", e);
+		} catch( ExecutionException e ) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/** Write the merged image of the given regions to out */
+	public void write( RegionMap rm, File outputDir, OutputStream out, boolean debug ) throws IOException {
 		int width = (rm.maxX-rm.minX)*512;
 		int height = (rm.maxZ-rm.minZ)*512;
-		BufferedImage bigImage = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
 		if( debug ) System.err.println( "Dimension: "+width+", "+height );
 		
-		for( Region r : rm.regions ) {
-			BufferedImage region = null;
-			try {
-				region = ImageIO.read( r.imageFile );
-			} catch ( IOException e ) {
-				System.err.println( "Could not load image "+r.imageFile.getName() );
-				continue;
+		List<List<Region>> rows = new ArrayList<List<Region>>();
+		for( int rz=rm.minZ; rz<rm.maxZ; ++rz ) rows.add( new ArrayList<Region>() );
+		for( Region r : rm.regions ) rows.get( r.rz-rm.minZ ).add( r );
+		
+		PNGEncoder.StreamWriter writer = encoder.new StreamWriter( out, width, height );
+		int[] band = new int[width*512];
+		for( List<Region> row : rows ) {
+			Arrays.fill( band, 0 );
+			readBand( row, band, rm.minX, width, outputDir );
+			writer.writeRows( band, 512 );
+			if( debug ) {
+				for( Region r : row ) System.err.println( "Region "+r.rx+", "+r.rz+" drawn to "+(r.rx-rm.minX)*512+", "+(r.rz-rm.minZ)*512 );
 			}
-			bigImage.createGraphics().drawImage( region, (r.rx-rm.minX)*512, (r.rz-rm.minZ)*512, null );
-			if( debug ) System.err.println( "Region "+r.rx+", "+r.rz+" drawn to "+(r.rx-rm.minX)*512+", "+(r.rz-rm.minZ)*512 );
 		}
+	}
+	
+	public void createBigImage( RegionMap rm, File outputDir, boolean debug ) {
+		File bigImageFile = new File( outputDir, "big.png" );
+		if( rm.regions.isEmpty() ) return;
+		File temp = null;
 		try {
-			ImageIO.write( bigImage, "png", new File( outputDir+"/big.png" ) );
+			temp = FileUtil.tempFile( bigImageFile );
+			OutputStream out = new BufferedOutputStream( new FileOutputStream( temp ), 1024*1024 );
+			try {
+				write( rm, outputDir, out, debug );
+			} finally {
+				out.close();
+			}
+			FileUtil.replace( temp, bigImageFile );
 		} catch ( IOException e ) {
-			System.err.println( "Could not write big image to "+outputDir+"/big.png" );
+			if( temp != null ) temp.delete();
+			System.err.println( "Could not write big image to "+bigImageFile );
+			e.printStackTrace();
 		}
 	}
 }
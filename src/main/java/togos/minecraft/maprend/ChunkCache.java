@@ -0,0 +1,227 @@
+package togos.minecraft.maprend;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * On-disk cache of composited chunks, so that chunks whose stored bytes
+ * haven't changed can skip inflating, NBT parsing and compositing
+ * even when the region file they're in has been rewritten.
+ *
+ * Entries are keyed by a hash of the compressed chunk as it appears in
+ * the region file, prefixed with a fingerprint of everything else that
+ * affects the composited result (colors, biome colors, slices).  Each
+ * entry holds the pre-shading colors and heights of the chunk's 16x16
+ * columns for every slice, plus its biome IDs.
+ *
+ * The total size of the entries is kept under a limit by deleting the
+ * least recently used ones.  Recency is kept in the entries' modification
+ * times so that it carries over from one run to the next.
+ *
+ * Safe to use from several threads at once.
+ */
+public class ChunkCache
+{
+	/** Bump this whenever the entry format or the meaning of entries changes */
+	protected static final int FORMAT_VERSION = 1;
+
+	public final File directory;
+	public final long maxSize;
+	protected final byte[] fingerprint;
+
+	/** Entry key -> size in bytes, least recently used first */
+	private final LinkedHashMap<String,Long> entries = new LinkedHashMap<String,Long>(16, 0.75f, true);
+	private long totalSize;
+
+	/**
+	 * @param directory where entries are stored; created if it doesn't exist
+	 * @param maxSize total size in bytes that entries may take up
+	 * @param fingerprint identifies the settings that entries are valid for;
+	 *   entries made with a different fingerprint will never be hit
+	 */
+	public ChunkCache( File directory, long maxSize, byte[] fingerprint ) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.fingerprint = fingerprint.clone();
+		scan();
+	}
+
+	/** Index the entries left by previous runs, oldest first */
+	private void scan() {
+		List<File> files = new ArrayList<File>();
+		File[] shards = directory.listFiles();
+		if( shards != null ) for( File shard : shards ) {
+			File[] shardFiles = shard.listFiles();
+			if( shardFiles == null ) continue;
+			for( File f : shardFiles ) {
+				if( f.getName().startsWith(".") ) f.delete(); // Left over from an interrupted write
+				else files.add(f);
+			}
+		}
+		final Map<File,Long> lastModified = new HashMap<File,Long>();
+		for( File f : files ) lastModified.put(f, f.lastModified());
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare( File a, File b ) {
+				return lastModified.get(a).compareTo(lastModified.get(b));
+			}
+		});
+		synchronized( this ) {
+			for( File f : files ) {
+				entries.put(f.getName(), f.length());
+				totalSize += f.length();
+			}
+			evict();
+		}
+	}
+
+	protected static MessageDigest getDigestor() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch( NoSuchAlgorithmException e ) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * @param compressedChunk a chunk as returned by {@link togos.minecraft.maprend.io.RegionFile#getCompressedChunk(int, int)}
+	 * @return the key that the chunk's entry is stored under
+	 */
+	public String key( byte[] compressedChunk ) {
+		MessageDigest md = getDigestor();
+		md.update(fingerprint);
+		md.update(compressedChunk);
+		byte[] digest = md.digest();
+		char[] hex = new char[digest.length*2];
+		for( int i=0; i<digest.length; ++i ) {
+			hex[i*2  ] = HEX_DIGITS[digest[i] >> 4 & 0xF];
+			hex[i*2+1] = HEX_DIGITS[digest[i]      & 0xF];
+		}
+		return new String(hex);
+	}
+
+	protected File entryFile( String key ) {
+		return new File(directory, key.substring(0, 2) + "/" + key);
+	}
+
+	/** Mark an entry as most recently used; @return true if it is in the cache */
+	private synchronized boolean touch( String key ) {
+		return entries.get(key) != null;
+	}
+
+	private synchronized void forget( String key ) {
+		Long size = entries.remove(key);
+		if( size != null ) totalSize -= size;
+	}
+
+	private synchronized void evict() {
+		Iterator<Map.Entry<String,Long>> i = entries.entrySet().iterator();
+		while( totalSize > maxSize && i.hasNext() ) {
+			Map.Entry<String,Long> eldest = i.next();
+			entryFile(eldest.getKey()).delete();
+			totalSize -= eldest.getValue();
+			i.remove();
+		}
+	}
+
+	/** @return the total size in bytes of the entries currently in the cache */
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	/** @return the number of entries currently in the cache */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Copy a cached chunk into each slice's color and height buffers
+	 * and into ctx.biomeIds.
+	 * @param cx x position of the chunk within its region
+	 * @param cz z position of the chunk within its region
+	 * @return true if the entry was found, false if the chunk needs to be rendered
+	 */
+	public boolean load( String key, RenderContext ctx, int cx, int cz ) {
+		if( !touch(key) ) return false;
+		File f = entryFile(key);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(f))));
+			try {
+				if( in.readInt() != FORMAT_VERSION || in.readInt() != ctx.getSliceCount() ) {
+					throw new IOException("Mismatched cache entry");
+				}
+				for( int i=0; i<ctx.getSliceCount(); ++i ) {
+					RenderContext.SliceBuffers buffers = ctx.getSlice(i);
+					for( int z=0; z<16; ++z ) {
+						for( int x=0, dIdx=512*(cz*16+z)+16*cx; x<16; ++x, ++dIdx ) {
+							buffers.surfaceColor[dIdx] = in.readInt();
+							buffers.surfaceHeight[dIdx] = in.readShort();
+						}
+					}
+				}
+				in.readFully(ctx.biomeIds);
+			} finally {
+				in.close();
+			}
+		} catch( IOException e ) {
+			// Deleted by someone else or damaged; either way it needs to be rendered again
+			forget(key);
+			f.delete();
+			return false;
+		}
+		f.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Store a chunk that has just been composited into ctx's slice buffers
+	 * and whose biome IDs are in ctx.biomeIds.  Errors are reported
+	 * but otherwise ignored, since the cache is only an optimization.
+	 */
+	public void store( String key, RenderContext ctx, int cx, int cz ) {
+		File f = entryFile(key);
+		File parent = f.getParentFile();
+		if( !parent.exists() ) parent.mkdirs();
+		File temp = null;
+		try {
+			temp = File.createTempFile("."+key+".", ".temp", parent);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(temp))));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(ctx.getSliceCount());
+				for( int i=0; i<ctx.getSliceCount(); ++i ) {
+					RenderContext.SliceBuffers buffers = ctx.getSlice(i);
+					for( int z=0; z<16; ++z ) {
+						for( int x=0, sIdx=512*(cz*16+z)+16*cx; x<16; ++x, ++sIdx ) {
+							out.writeInt(buffers.surfaceColor[sIdx]);
+							out.writeShort(buffers.surfaceHeight[sIdx]);
+						}
+					}
+				}
+				out.write(ctx.biomeIds);
+			} finally {
+				out.close();
+			}
+			f.delete();
+			if( !temp.renameTo(f) ) throw new IOException("Failed to rename "+temp+" to "+f);
+		} catch( IOException e ) {
+			System.err.println("Error writing chunk cache entry "+f);
+			e.printStackTrace(System.err);
+			if( temp != null ) temp.delete();
+			return;
+		}
+		long size = f.length();
+		synchronized( this ) {
+			Long oldSize = entries.put(key, size);
+			if( oldSize != null ) totalSize -= oldSize;
+			totalSize += size;
+			evict();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package togos.minecraft.maprend;
+
+/**
+ * Block data for the sections that are actually present in one chunk,
+ * sorted by Y, along with the runs of absent (all-air) sections between them.
+ *
+ * Storage grows to the largest section count seen and is then reused
+ * from chunk to chunk, so memory scales with the real number of
+ * sections rather than with a fixed world height.
+ */
+public class ChunkSections
+{
+	/** Number of sections present */
+	public int count;
+	/** Y index (absolute Y / 16) of each present section, ascending once {@link #finish()} has been called */
+	public int[] sectionY = new int[0];
+	public short[][] blockIds = new short[0][];
+	public byte[][] blockData = new byte[0][];
+	/** Number of absent sections directly below each present section */
+	public int[] airRunBelow = new int[0];
+	/** Number of absent sections above the topmost present one */
+	public int airRunAbove;
+	/** Lowest and highest section Y (inclusive) that a column walk covers */
+	public int minSectionY, maxSectionY;
+
+	public void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Add a section, growing storage if needed.
+	 * @return the index of the new section's slot, whose blockIds and blockData
+	 *   the caller should fill in
+	 */
+	public int add( int y ) {
+		if( count == sectionY.length ) {
+			int newCapacity = count + 4;
+			int[] newSectionY = new int[newCapacity];
+			short[][] newBlockIds = new short[newCapacity][];
+			byte[][] newBlockData = new byte[newCapacity][];
+			System.arraycopy(sectionY, 0, newSectionY, 0, count);
+			System.arraycopy(blockIds, 0, newBlockIds, 0, count);
+			System.arraycopy(blockData, 0, newBlockData, 0, count);
+			for( int i=count; i<newCapacity; ++i ) {
+				newBlockIds[i] = new short[16*16*16];
+				newBlockData[i] = new byte[16*16*16];
+			}
+			sectionY = newSectionY;
+			blockIds = newBlockIds;
+			blockData = newBlockData;
+			airRunBelow = new int[newCapacity];
+		}
+		sectionY[count] = y;
+		return count++;
+	}
+
+	/**
+	 * Sort sections by Y and work out the air runs between them.
+	 * The range covered always includes sections 0 to 15,
+	 * so classic 256-block-high worlds are walked the same as always.
+	 */
+	public void finish() {
+		// Insertion sort; sections almost always arrive in order already
+		for( int i=1; i<count; ++i ) {
+			for( int j=i; j>0 && sectionY[j-1] > sectionY[j]; --j ) {
+				int y = sectionY[j]; sectionY[j] = sectionY[j-1]; sectionY[j-1] = y;
+				short[] ids = blockIds[j]; blockIds[j] = blockIds[j-1]; blockIds[j-1] = ids;
+				byte[] data = blockData[j]; blockData[j] = blockData[j-1]; blockData[j-1] = data;
+			}
+		}
+
+		minSectionY = count > 0 ? Math.min(0, sectionY[0]) : 0;
+		maxSectionY = count > 0 ? Math.max(15, sectionY[count-1]) : 15;
+		int nextY = minSectionY;
+		for( int i=0; i<count; ++i ) {
+			airRunBelow[i] = Math.max(0, sectionY[i] - nextY);
+			nextY = sectionY[i] + 1;
+		}
+		airRunAbove = maxSectionY + 1 - nextY;
+	}
+}
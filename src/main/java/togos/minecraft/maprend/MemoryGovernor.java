@@ -0,0 +1,205 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import togos.minecraft.maprend.RegionMap.Region;
+
+/**
+ * Limits how many regions are being rendered at once by how much memory
+ * they're expected to need, so that a machine with many cores but not
+ * much memory doesn't run out of heap.
+ *
+ * Each region is reckoned to need a fixed amount for its buffers and
+ * images plus some multiple of its region file's size for the chunk data
+ * read from it.  Regions are let through as long as the total for those
+ * in flight stays within the budget (one is always let through).
+ *
+ * The governor also watches the garbage collector.  If collections take
+ * up much of the time, or leave the heap nearly full, the budget is cut;
+ * once things have been calm for a while it is raised again.
+ * The fixed amount per region covers its render context, so a
+ * {@link RenderPipeline} lets go of the contexts it keeps beyond what a
+ * lowered budget allows.
+ * Every such decision is recorded; see {@link #getDecisions()}.
+ */
+public class MemoryGovernor
+{
+	/** Share of time spent collecting garbage above which the budget is cut */
+	protected static final double GC_TIME_HIGH = 0.15;
+	/** Share of time spent collecting garbage below which things count as calm */
+	protected static final double GC_TIME_LOW = 0.03;
+	/** How full the old generation may be after a collection before the budget is cut */
+	protected static final double OCCUPANCY_HIGH = 0.85;
+	protected static final long CHECK_INTERVAL = 1000;
+	/** Number of calm checks in a row before the budget is raised again */
+	protected static final int CALM_CHECKS = 5;
+
+	public final long budget;
+	public final long bytesPerRegion;
+	private long effectiveBudget;
+	private long inUse;
+	private int inFlight;
+
+	private final long startTime = System.currentTimeMillis();
+	private long lastCheckTime = startTime;
+	private long lastGcTime = getGcTime();
+	private int calmChecks;
+	private final List<String> decisions = new ArrayList<String>();
+
+	/**
+	 * @param budget number of bytes that regions in flight may use between them
+	 * @param bytesPerRegion memory needed for each region besides its chunk data;
+	 *   see {@link #estimateBytesPerRegion(RenderSettings)}
+	 */
+	public MemoryGovernor( long budget, long bytesPerRegion ) {
+		this.budget = budget;
+		this.bytesPerRegion = bytesPerRegion;
+		this.effectiveBudget = budget;
+		log("Memory budget for regions being rendered is " + mib(budget) + " of " +
+			mib(Runtime.getRuntime().maxMemory()) + " maximum heap; each needs about " + mib(bytesPerRegion) +
+			" plus its chunk data, so at most " + getMaxConcurrent() + " at once");
+	}
+
+	/** The budget to use when none is given: a share of the maximum heap size */
+	public static long defaultBudget() {
+		return Runtime.getRuntime().maxMemory() / 10 * 6;
+	}
+
+	/** @return how much memory rendering a region with the given settings needs, besides its chunk data */
+	public static long estimateBytesPerRegion( RenderSettings settings ) {
+		final long pixels = 512 * 512;
+		int sliceCount = settings.getSlices().length;
+		// Color, height and image for each slice
+		long bytes = sliceCount * pixels * (4 + 2 + 4);
+		if( settings.products.contains(RenderProduct.HEIGHTMAP) ) bytes += sliceCount * pixels * 4;
+		if( settings.products.contains(RenderProduct.BIOMES) ) bytes += pixels * 4;
+		// Section buffers for a tall chunk, plus its parsed NBT
+		bytes += 24 * 16 * 16 * 16 * 3 + 256 * 1024;
+		// Encoded tiles, and scaled images with theirs
+		for( int i=0; i<settings.getTileSets(new File("")).size(); ++i ) {
+			bytes += pixels * 4;
+			for( int scale : settings.mapScales ) {
+				if( scale != 1 ) bytes += pixels * 4 * 2 / (scale * scale);
+			}
+		}
+		return bytes;
+	}
+
+	/** @return the memory a region is expected to need while being rendered */
+	public long estimate( Region r ) {
+		// The compressed chunks, and each one as it is inflated
+		long chunkBytes = r.regionFile == null ? 0 : r.regionFile.length() * 2;
+		return bytesPerRegion + chunkBytes;
+	}
+
+	/** @return the most regions that could be rendered at once within the full budget */
+	public int getMaxConcurrent() {
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE, budget / bytesPerRegion));
+	}
+
+	/** @return the most regions that could be rendered at once within the budget currently in effect */
+	public synchronized int getEffectiveMaxConcurrent() {
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE, effectiveBudget / bytesPerRegion));
+	}
+
+	/** Wait until there is room in the budget for the given number of bytes, and then take them */
+	public synchronized void acquire( long bytes ) throws InterruptedException {
+		checkPressure();
+		while( inFlight > 0 && inUse + bytes > effectiveBudget ) {
+			wait(CHECK_INTERVAL);
+			checkPressure();
+		}
+		inUse += bytes;
+		++inFlight;
+	}
+
+	/** Give back bytes taken by {@link #acquire(long)} */
+	public synchronized void release( long bytes ) {
+		inUse -= bytes;
+		--inFlight;
+		checkPressure();
+		notifyAll();
+	}
+
+	protected static long getGcTime() {
+		long total = 0;
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+
+	/** @return how full the old generation was after its last collection, from 0 to 1 */
+	protected static double getOccupancyAfterGc() {
+		// Young pools are emptied (or filled with survivors) by every collection,
+		// so look at the biggest pool, which is the old generation for every collector
+		MemoryUsage oldGen = null;
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+			if( pool.getType() != MemoryType.HEAP ) continue;
+			MemoryUsage usage = pool.getCollectionUsage();
+			if( usage == null || usage.getMax() <= 0 ) continue;
+			if( oldGen == null || usage.getMax() > oldGen.getMax() ) oldGen = usage;
+		}
+		return oldGen == null ? 0 : (double)oldGen.getUsed() / oldGen.getMax();
+	}
+
+	protected synchronized void checkPressure() {
+		long now = System.currentTimeMillis();
+		long interval = now - lastCheckTime;
+		if( interval < CHECK_INTERVAL ) return;
+		long gcTime = getGcTime();
+		double gcShare = (double)(gcTime - lastGcTime) / interval;
+		double occupancy = getOccupancyAfterGc();
+		lastCheckTime = now;
+		lastGcTime = gcTime;
+		pressure( gcShare, occupancy );
+	}
+
+	/** Adjust the budget for the given share of time spent collecting garbage and heap occupancy after collection */
+	protected synchronized void pressure( double gcShare, double occupancy ) {
+		String reason = String.format("GC took %d%% of the time and left the heap %d%% full",
+			Math.round(gcShare * 100), Math.round(occupancy * 100));
+		if( gcShare > GC_TIME_HIGH || occupancy > OCCUPANCY_HIGH ) {
+			calmChecks = 0;
+			long lowered = Math.max(bytesPerRegion, effectiveBudget / 4 * 3);
+			if( lowered < effectiveBudget ) {
+				effectiveBudget = lowered;
+				log(reason + "; lowering the budget to " + mib(effectiveBudget) + " (" + inFlight + " regions in flight)");
+			}
+		} else if( gcShare < GC_TIME_LOW && occupancy < OCCUPANCY_HIGH * 0.75 && effectiveBudget < budget ) {
+			if( ++calmChecks >= CALM_CHECKS ) {
+				calmChecks = 0;
+				effectiveBudget = Math.min(budget, effectiveBudget / 4 * 5);
+				log(reason + "; raising the budget to " + mib(effectiveBudget));
+				notifyAll();
+			}
+		} else {
+			calmChecks = 0;
+		}
+	}
+
+	/** @return the budget currently in effect, which is lowered while memory is short */
+	public synchronized long getEffectiveBudget() {
+		return effectiveBudget;
+	}
+
+	protected static String mib( long bytes ) {
+		return (bytes / (1024 * 1024)) + " MiB";
+	}
+
+	protected synchronized void log( String decision ) {
+		long elapsed = System.currentTimeMillis() - startTime;
+		decisions.add(String.format("%6.1fs: %s", elapsed / 1000.0, decision));
+	}
+
+	/** @return a line for each decision made about the budget, with the time since this governor was created */
+	public synchronized List<String> getDecisions() {
+		return new ArrayList<String>(decisions);
+	}
+}
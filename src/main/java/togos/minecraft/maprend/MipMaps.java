@@ -0,0 +1,139 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import togos.minecraft.maprend.io.PNGEncoder;
+
+/**
+ * Makes the scaled-down tiles for -scales from a full-size tile's pixels.
+ *
+ * Each pixel of a scaled tile is the average of the block of pixels it
+ * covers.  Colors are weighted by alpha, so the color of transparent
+ * pixels (which is meaningless) doesn't bleed into their neighbors.
+ * Scales are worked out smallest first, and each one is made from the
+ * biggest one already made that it evenly divides, so 1:4 comes from 1:2
+ * and not from the full-size tile again.  Since the averages are weighted
+ * by alpha, this gives the same colors (give or take rounding) as
+ * averaging the full-size pixels directly.
+ */
+public class MipMaps
+{
+	/** @return the pixels of an image as ARGB, one row after another; the image's own array if it has one like that */
+	public static int[] getPixels( BufferedImage image ) {
+		int[] pixels = PNGEncoder.getPixels(image);
+		if( pixels != null ) return pixels;
+		int w = image.getWidth(), h = image.getHeight();
+		return image.getRGB(0, 0, w, h, null, 0, w);
+	}
+
+	/** @return the average of n pixels from their total alpha and their color channels totalled weighted by alpha */
+	protected static int average( long a, long r, long g, long b, long n ) {
+		if( a == 0 ) return 0;
+		return
+			(int)((a + n/2) / n) << 24 |
+			(int)((r + a/2) / a) << 16 |
+			(int)((g + a/2) / a) << 8 |
+			(int)((b + a/2) / a);
+	}
+
+	/**
+	 * Halve an image with even width and height, writing into dest
+	 * @param destOffset index in dest of the top left pixel
+	 * @param destStride distance in dest from one row to the next
+	 */
+	public static void halve( int[] src, int srcWidth, int srcHeight, int[] dest, int destOffset, int destStride ) {
+		int width = srcWidth / 2, height = srcHeight / 2;
+		for( int y=0; y<height; ++y ) {
+			int i = 2 * y * srcWidth, j = destOffset + y * destStride;
+			for( int x=0; x<width; ++x, i+=2, ++j ) {
+				int c0 = src[i], c1 = src[i+1], c2 = src[i+srcWidth], c3 = src[i+srcWidth+1];
+				if( (c0 & c1 & c2 & c3) >>> 24 == 0xFF ) {
+					// All opaque, so weighting by alpha makes no difference;
+					// red and blue can be added together, as can green
+					int rb = (c0 & 0xFF00FF) + (c1 & 0xFF00FF) + (c2 & 0xFF00FF) + (c3 & 0xFF00FF);
+					int g = (c0 & 0xFF00) + (c1 & 0xFF00) + (c2 & 0xFF00) + (c3 & 0xFF00);
+					dest[j] = 0xFF000000 | ((rb + 0x20002) >>> 2) & 0xFF00FF | ((g + 0x200) >>> 2) & 0xFF00;
+				} else {
+					int a0 = c0 >>> 24, a1 = c1 >>> 24, a2 = c2 >>> 24, a3 = c3 >>> 24;
+					dest[j] = average(a0 + a1 + a2 + a3,
+						a0 * ((c0 >> 16) & 0xFF) + a1 * ((c1 >> 16) & 0xFF) + a2 * ((c2 >> 16) & 0xFF) + a3 * ((c3 >> 16) & 0xFF),
+						a0 * ((c0 >> 8) & 0xFF) + a1 * ((c1 >> 8) & 0xFF) + a2 * ((c2 >> 8) & 0xFF) + a3 * ((c3 >> 8) & 0xFF),
+						a0 * (c0 & 0xFF) + a1 * (c1 & 0xFF) + a2 * (c2 & 0xFF) + a3 * (c3 & 0xFF),
+						4);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shrink an image to the given size, making each pixel the alpha-weighted
+	 * average of the block of source pixels it covers, writing into dest.
+	 * If the sizes don't divide evenly, blocks differ in size by a pixel.
+	 */
+	public static void shrink( int[] src, int srcWidth, int srcHeight, int[] dest, int width, int height ) {
+		if( srcWidth == width * 2 && srcHeight == height * 2 ) {
+			halve(src, srcWidth, srcHeight, dest, 0, width);
+			return;
+		}
+		for( int y=0; y<height; ++y ) {
+			int y0 = y * srcHeight / height, y1 = Math.max(y0 + 1, (y + 1) * srcHeight / height);
+			for( int x=0; x<width; ++x ) {
+				int x0 = x * srcWidth / width, x1 = Math.max(x0 + 1, (x + 1) * srcWidth / width);
+				long a = 0, r = 0, g = 0, b = 0;
+				for( int sy=y0; sy<y1; ++sy ) {
+					for( int i=sy*srcWidth+x0, end=sy*srcWidth+x1; i<end; ++i ) {
+						int c = src[i];
+						int ca = c >>> 24;
+						a += ca;
+						r += ca * ((c >> 16) & 0xFF);
+						g += ca * ((c >> 8) & 0xFF);
+						b += ca * (c & 0xFF);
+					}
+				}
+				dest[y*width+x] = average(a, r, g, b, (x1 - x0) * (y1 - y0));
+			}
+		}
+	}
+
+	/**
+	 * @param scales scales as in {@link RenderSettings#mapScales}; 1 is left out
+	 * @return the image scaled down by each of the given factors, in the order given
+	 */
+	public static Map<Integer,BufferedImage> scale( BufferedImage fullSize, int[] scales ) {
+		int width = fullSize.getWidth(), height = fullSize.getHeight();
+		int[] sorted = scales.clone();
+		Arrays.sort(sorted);
+		// Levels made so far, smallest scale first
+		int[] levelScales = new int[sorted.length + 1];
+		int[][] levels = new int[sorted.length + 1][];
+		levelScales[0] = 1;
+		levels[0] = getPixels(fullSize);
+		int levelCount = 1;
+		Map<Integer,BufferedImage> made = new LinkedHashMap<Integer,BufferedImage>();
+		for( int scale : sorted ) {
+			if( scale <= 1 || made.containsKey(scale) ) continue;
+			int from = 0;
+			for( int i=levelCount-1; i>0; --i ) {
+				int s = levelScales[i];
+				if( scale % s == 0 && width % scale == 0 && height % scale == 0 ) {
+					from = i;
+					break;
+				}
+			}
+			int fromScale = levelScales[from];
+			BufferedImage image = new BufferedImage(width / scale, height / scale, BufferedImage.TYPE_INT_ARGB);
+			int[] pixels = PNGEncoder.getPixels(image);
+			shrink(levels[from], width / fromScale, height / fromScale, pixels, width / scale, height / scale);
+			levelScales[levelCount] = scale;
+			levels[levelCount++] = pixels;
+			made.put(scale, image);
+		}
+		Map<Integer,BufferedImage> ordered = new LinkedHashMap<Integer,BufferedImage>();
+		for( int scale : scales ) {
+			if( made.containsKey(scale) ) ordered.put(scale, made.get(scale));
+		}
+		return ordered;
+	}
+}
@@ -0,0 +1,173 @@
+package togos.minecraft.maprend;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import togos.minecraft.maprend.RegionMap.Region;
+
+/**
+ * Lets several renderer processes, possibly on different hosts sharing
+ * the output directory over NFS, split a world between them.
+ *
+ * Before rendering a region a process claims it by creating a lease file
+ * (r.x.z.lease, containing the owner's ID) in a shared directory.  Lease
+ * files are created by hard-linking a freshly written temporary file,
+ * which is atomic even over NFS.  While a process holds leases it keeps
+ * touching them; a lease that hasn't been touched for longer than the
+ * lease time belongs to a process that has died or hung, and may be taken
+ * over by anyone else.  Leases are deleted once their region is done.
+ *
+ * Clocks of the hosts involved should agree to well within the lease time.
+ */
+public class RegionLeases
+{
+	public final File directory;
+	public final long leaseMillis;
+	public final String owner;
+
+	private final Set<File> held = new HashSet<File>();
+	private Timer renewer;
+
+	public RegionLeases( File directory, long leaseMillis ) {
+		this.directory = directory;
+		this.leaseMillis = leaseMillis;
+		this.owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + Long.toHexString(new Random().nextLong());
+	}
+
+	protected File leaseFile( Region r ) {
+		return new File(directory, "r."+r.rx+"."+r.rz+".lease");
+	}
+
+	protected static String readOwner( File f ) {
+		try {
+			BufferedReader r = new BufferedReader(new FileReader(f));
+			try {
+				return r.readLine();
+			} finally {
+				r.close();
+			}
+		} catch( IOException e ) {
+			return null;
+		}
+	}
+
+	/** Atomically create f with our ID in it, failing if it already exists */
+	protected boolean create( File f ) throws IOException {
+		if( !directory.exists() ) directory.mkdirs();
+		File temp = new File(directory, "."+f.getName()+"."+owner+".temp");
+		Writer w = new FileWriter(temp);
+		try {
+			w.write(owner+"\n");
+		} finally {
+			w.close();
+		}
+		try {
+			Files.createLink(f.toPath(), temp.toPath());
+			return true;
+		} catch( FileAlreadyExistsException e ) {
+			return false;
+		} catch( UnsupportedOperationException e ) {
+			// No hard links here; renaming would replace an existing lease, so fall back to createNewFile
+			if( !f.createNewFile() ) return false;
+			Writer fw = new FileWriter(f);
+			try {
+				fw.write(owner+"\n");
+			} finally {
+				fw.close();
+			}
+			return true;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Try to claim a region.
+	 * @return true if this process now holds the lease and should render the region,
+	 *   false if another live process holds it
+	 */
+	public boolean claim( Region r ) throws IOException {
+		File f = leaseFile(r);
+		if( create(f) ) {
+			renewed(f);
+			return true;
+		}
+		long lastModified = f.lastModified();
+		if( lastModified == 0 || lastModified + leaseMillis > System.currentTimeMillis() ) {
+			// Held (or just released, in which case the region is done)
+			return false;
+		}
+		// Expired; move it out of the way so that only one process gets to take it over
+		File broken = new File(directory, "."+f.getName()+"."+owner+".broken");
+		if( !f.renameTo(broken) ) return false;
+		if( broken.lastModified() + leaseMillis > System.currentTimeMillis() ) {
+			// Renewed or re-claimed between our checking and moving it; put it back if we can
+			try {
+				Files.createLink(f.toPath(), broken.toPath());
+			} catch( IOException e ) {
+				// Someone else has claimed it in the meantime
+			} catch( UnsupportedOperationException e ) {
+				broken.renameTo(f);
+			}
+			broken.delete();
+			return false;
+		}
+		System.err.println("Taking over expired lease on region "+r.rx+", "+r.rz+" from "+readOwner(broken));
+		broken.delete();
+		if( create(f) ) {
+			renewed(f);
+			return true;
+		}
+		return false;
+	}
+
+	private synchronized void renewed( File f ) {
+		held.add(f);
+		if( renewer == null ) {
+			renewer = new Timer("TMCMR lease renewer", true);
+			long period = Math.max(1, leaseMillis / 3);
+			renewer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					renewAll();
+				}
+			}, period, period);
+		}
+	}
+
+	protected synchronized void renewAll() {
+		long now = System.currentTimeMillis();
+		for( File f : held ) {
+			if( !f.setLastModified(now) ) {
+				System.err.println("Failed to renew lease "+f+"; another process may render the same region");
+			}
+		}
+	}
+
+	/** Give up the lease on a region, e.g. because it's been rendered */
+	public void release( Region r ) {
+		File f = leaseFile(r);
+		synchronized( this ) {
+			if( !held.remove(f) ) return;
+		}
+		if( owner.equals(readOwner(f)) ) f.delete();
+	}
+
+	/** Stop renewing leases; any that are still held are released */
+	public synchronized void close() {
+		if( renewer != null ) {
+			renewer.cancel();
+			renewer = null;
+		}
+		for( File f : held ) {
+			if( owner.equals(readOwner(f)) ) f.delete();
+		}
+		held.clear();
+	}
+}
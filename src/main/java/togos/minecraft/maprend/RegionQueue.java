@@ -0,0 +1,144 @@
+package togos.minecraft.maprend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import togos.minecraft.maprend.RegionMap.Region;
+
+/**
+ * Hands out the regions of a run to render threads, one at a time,
+ * each to exactly one thread.
+ *
+ * When {@link RegionLeases} are given, a region is only handed out once
+ * this process holds its lease, and regions held by other processes are
+ * retried until they can be claimed (because the other process has
+ * finished with them, in which case they'll be found to be up to date,
+ * or because it died and its lease expired).
+ *
+ * When a {@link MemoryGovernor} is given, a region is only handed out
+ * once there's room for it in the memory budget.
+ *
+ * Once the deadline set by {@link #setDeadline(long)} has passed, no more
+ * regions are handed out; {@link #getRemaining()} tells which were left.
+ *
+ * Whoever takes a region must call {@link #done(Region)} once they've
+ * finished with it, whether or not it was rendered successfully.
+ */
+public class RegionQueue
+{
+	protected final LinkedList<Region> pending;
+	protected final List<Region> deferred = new ArrayList<Region>();
+	protected final RegionLeases leases;
+	protected MemoryGovernor governor;
+	/** Memory taken from the governor for each region handed out */
+	protected final Map<Region,Long> reserved = new HashMap<Region,Long>();
+	/** How long to wait before retrying regions that other processes hold */
+	protected final long retryMillis;
+	/** Time after which no more regions are handed out, or 0 for none */
+	protected long deadline;
+
+	/**
+	 * @param regions regions in the order they should be rendered
+	 * @param leases leases to claim regions with, or null if this is the only process rendering
+	 */
+	public RegionQueue( List<Region> regions, RegionLeases leases ) {
+		this.pending = new LinkedList<Region>(regions);
+		this.leases = leases;
+		this.retryMillis = leases == null ? 0 : Math.max(10, Math.min(1000, leases.leaseMillis / 10));
+	}
+
+	/** Stop handing out regions at the given time, in milliseconds since the epoch */
+	public synchronized void setDeadline( long deadline ) {
+		this.deadline = deadline;
+	}
+
+	protected boolean pastDeadline() {
+		return deadline > 0 && System.currentTimeMillis() >= deadline;
+	}
+
+	/** @return true if regions were left because the deadline passed */
+	public synchronized boolean isPastDeadline() {
+		return pastDeadline() && !(pending.isEmpty() && deferred.isEmpty());
+	}
+
+	/** @return regions that haven't been handed out */
+	public synchronized List<Region> getRemaining() {
+		List<Region> remaining = new ArrayList<Region>(pending);
+		remaining.addAll(deferred);
+		return remaining;
+	}
+
+	/** Only hand out regions once there's room for them in the governor's memory budget */
+	public void setGovernor( MemoryGovernor governor ) {
+		this.governor = governor;
+	}
+
+	/**
+	 * @return the next region to render, or null once there are none left;
+	 *   may wait for regions held by other processes, or for memory
+	 */
+	public Region take() throws InterruptedException {
+		Region r = nextRegion();
+		if( r != null && governor != null ) {
+			long bytes = governor.estimate(r);
+			try {
+				governor.acquire(bytes);
+			} catch( InterruptedException e ) {
+				if( leases != null ) leases.release(r);
+				throw e;
+			}
+			synchronized( this ) {
+				if( pastDeadline() ) {
+					// Ran out of time while waiting for memory
+					governor.release(bytes);
+					if( leases != null ) leases.release(r);
+					pending.addFirst(r);
+					return null;
+				}
+			}
+			synchronized( reserved ) {
+				reserved.put(r, bytes);
+			}
+		}
+		return r;
+	}
+
+	protected synchronized Region nextRegion() throws InterruptedException {
+		while( true ) {
+			if( pastDeadline() ) return null;
+			while( !pending.isEmpty() ) {
+				Region r = pending.removeFirst();
+				if( leases == null ) return r;
+				try {
+					if( leases.claim(r) ) return r;
+					deferred.add(r);
+				} catch( IOException e ) {
+					System.err.println("Error claiming region "+r.rx+", "+r.rz+"; skipping it");
+					e.printStackTrace(System.err);
+				}
+			}
+			if( deferred.isEmpty() ) return null;
+			wait(retryMillis);
+			pending.addAll(deferred);
+			deferred.clear();
+		}
+	}
+
+	/** Report that the given region, which was returned by {@link #take()}, has been dealt with */
+	public void done( Region r ) {
+		if( leases != null ) leases.release(r);
+		Long bytes;
+		synchronized( reserved ) {
+			bytes = reserved.remove(r);
+		}
+		if( bytes != null ) governor.release(bytes);
+	}
+
+	/** Release any leases still held */
+	public void close() {
+		if( leases != null ) leases.close();
+	}
+}
@@ -1,43 +1,60 @@
 package togos.minecraft.maprend;
 
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
 import org.jnbt.*;
 import togos.minecraft.maprend.BiomeMap.Biome;
 import togos.minecraft.maprend.BlockMap.Block;
 import togos.minecraft.maprend.RegionMap.Region;
 import togos.minecraft.maprend.io.ContentStore;
+import togos.minecraft.maprend.io.FileUtil;
+import togos.minecraft.maprend.io.PNGEncoder;
 import togos.minecraft.maprend.io.RegionFile;
+import togos.minecraft.maprend.io.SurfaceDataFile;
 
 public class RegionRenderer
 {
 	static class Timer {
-		public long regionLoading;
-		public long preRendering;
-		public long postProcessing;
-		public long imageSaving;
-		public long total;
+		// Counted from the threads of every stage at once; times are in nanoseconds
+		public final AtomicLong regionLoading = new AtomicLong();
+		public final AtomicLong preRendering = new AtomicLong();
+		public final AtomicLong postProcessing = new AtomicLong();
+		public final AtomicLong imageSaving = new AtomicLong();
+		public final AtomicLong total = new AtomicLong();
 		
-		public int regionCount;
-		public int sectionCount;
+		public final AtomicInteger regionCount = new AtomicInteger();
+		public final AtomicInteger sectionCount = new AtomicInteger();
+		public final AtomicInteger chunkCacheHits = new AtomicInteger();
+		public final AtomicInteger chunkCacheMisses = new AtomicInteger();
+		public final AtomicInteger tilesWritten = new AtomicInteger();
+		public final AtomicInteger tilesUnchanged = new AtomicInteger();
 		
-		protected String formatTime( String name, long millis ) {
-			return String.format("%20s: % 8d   % 8.2f   % 8.4f", name, millis, millis/(double)regionCount, millis/(double)sectionCount);
+		protected String formatTime( String name, long nanos ) {
+			long millis = nanos / 1000000;
+			return String.format("%20s: % 8d   % 8.2f   % 8.4f", name, millis, millis/(double)regionCount.get(), millis/(double)sectionCount.get());
 		}
 	}
 	
+	/**
+	 * Takes regions from a queue shared with the other render threads
+	 * until it's empty, so that no thread sits idle while there's work left.
+	 */
 	class RenderThread extends Thread {
-		public List<Region> regions;
-		public int startIndex;
-		public int endIndex;
-		public File outputDir;
-		public boolean force;
+		public final RegionQueue regions;
+		public final File outputDir;
+		public final boolean force;
 		
-		RenderThread( List<Region> regions, File outputDir, boolean force) throws IOException {
+		RenderThread( RegionQueue regions, File outputDir, boolean force ) {
 			this.regions = regions;
 			this.outputDir = outputDir;
 			this.force = force;
@@ -46,10 +63,21 @@ public class RegionRenderer
 		@Override
 		public void run() {
 			try {
-				for( Region reg : regions ) renderRegion(reg, outputDir, force);
-			} catch (IOException e) {
-				System.err.println("Error in threaded renderer!");
-				e.printStackTrace(System.err);
+				Region reg;
+				while( (reg = regions.take()) != null ) {
+					try {
+						renderRegion(reg, outputDir, force);
+						regionCompleted(reg);
+					} catch (IOException e) {
+						System.err.println("Error in threaded renderer!");
+						e.printStackTrace(System.err);
+						regionFailed(reg, outputDir);
+					} finally {
+						regions.done(reg);
+					}
+				}
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
@@ -60,6 +88,12 @@ public class RegionRenderer
 	public final BlockMap blockMap;
 	public final BiomeMap biomeMap;
 	public final int air16Color; // Color of 16 air blocks stacked
+	protected final boolean air16Transparent;
+	/** Composited chunks from previous renders, or null if not caching */
+	public final ChunkCache chunkCache;
+	/** Progress of the current run, or null if it isn't being recorded */
+	protected RunJournal journal;
+	private MemoryGovernor memoryGovernor;
 	
 	/**
 	 * Alpha below which blocks are considered transparent for purposes of shading
@@ -70,12 +104,92 @@ public class RegionRenderer
 	public final RenderSettings	settings;
 
 	public RegionRenderer(RenderSettings settings) throws IOException {
+		this(settings,
+			settings.colorMapFile == null ? BlockMap.loadDefault() : BlockMap.load(settings.colorMapFile),
+			settings.biomeMapFile == null ? BiomeMap.loadDefault() : BiomeMap.load(settings.biomeMapFile));
+	}
+	
+	/**
+	 * Create a renderer that uses already loaded color maps,
+	 * which may be shared with other renderers
+	 */
+	public RegionRenderer(RenderSettings settings, BlockMap blockMap, BiomeMap biomeMap) {
 		this.settings = settings;
 
-		blockMap = settings.colorMapFile == null ? BlockMap.loadDefault() : BlockMap.load(settings.colorMapFile);
-		biomeMap = settings.biomeMapFile == null ? BiomeMap.loadDefault() : BiomeMap.load(settings.biomeMapFile);
+		this.blockMap = blockMap;
+		this.biomeMap = biomeMap;
 
 		this.air16Color = Color.overlay(0, getColor(0, 0, 0), 16);
+		this.air16Transparent = Color.alpha(air16Color) == 0;
+		
+		this.chunkCache = settings.chunkCacheDir == null ? null :
+			new ChunkCache( settings.chunkCacheDir, settings.chunkCacheSize, getChunkCacheFingerprint() );
+	}
+	
+	/**
+	 * @return a summary of everything besides a chunk's own data that
+	 *   affects how it is composited, so that cached chunks are only
+	 *   reused when they would come out the same
+	 */
+	protected byte[] getChunkCacheFingerprint() {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		try {
+			for( Block b : blockMap.blocks ) {
+				out.writeInt(b.baseColor);
+				out.writeInt(b.baseInfluence);
+				for( int d=0; d<b.hasSubColors.length; ++d ) {
+					if( !b.hasSubColors[d] ) continue;
+					out.writeInt(d);
+					out.writeInt(b.subColors[d]);
+					out.writeInt(b.subColorInfluences[d]);
+				}
+				out.writeInt(-1);
+			}
+			for( int i=0; i<BiomeMap.SIZE; ++i ) {
+				Biome biome = biomeMap.getBiome(i);
+				out.writeInt(biome.grassColor);
+				out.writeInt(biome.foliageColor);
+				out.writeInt(biome.waterColor);
+			}
+			for( Slice slice : settings.getSlices() ) {
+				out.writeInt(slice.minHeight);
+				out.writeInt(slice.maxHeight);
+			}
+			out.writeInt(shadeOpacityCutoff);
+			out.close();
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		}
+		return bos.toByteArray();
+	}
+	
+	/**
+	 * @return an ID for the settings that a run's output depends on, so that
+	 *   an interrupted run is only resumed by one that would produce the same tiles
+	 */
+	protected String getRunId( boolean force ) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		try {
+			out.write(getChunkCacheFingerprint());
+			ShadingTable shading = settings.getShadingTable();
+			out.writeInt(shading.shadingReferenceAltitude);
+			out.writeInt(shading.altitudeShadingFactor);
+			out.writeInt(shading.minAltitudeShading);
+			out.writeInt(shading.maxAltitudeShading);
+			for( int scale : settings.mapScales ) out.writeInt(scale);
+			out.writeUTF(settings.products.toString());
+			out.writeBoolean(force);
+			out.writeBoolean(settings.reshade);
+			out.writeBoolean(settings.saveSurfaceData);
+			out.close();
+			return TileDigests.toHex( MessageDigest.getInstance("SHA-1").digest(bos.toByteArray()) );
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
+		} catch( NoSuchAlgorithmException e ) {
+			throw new RuntimeException(e);
+		}
 	}
 	
 	/**
@@ -93,18 +207,14 @@ public class RegionRenderer
 	
 	/**
 	 * @param levelTag
-	 * @param maxSectionCount
-	 * @param sectionBlockIds block IDs for non-empty sections will be written to sectionBlockIds[sectionIndex][blockIndex]
-	 * @param sectionBlockData block data for non-empty sections will be written to sectionBlockData[sectionIndex][blockIndex]
-	 * @param sectionsUsed sectionsUsed[sectionIndex] will be set to true for non-empty sections
+	 * @param sections block IDs and data for each section present in the chunk will be written here
+	 * @param biomeIds biome IDs for each column will be written here, or -1 if unknown
 	 */
-	protected static void loadChunkData( CompoundTag levelTag, int maxSectionCount, short[][] sectionBlockIds, byte[][] sectionBlockData, boolean[] sectionsUsed, byte[] biomeIds ) {
-		for( int i=0; i<maxSectionCount; ++i ) {
-			sectionsUsed[i] = false;
-		}
+	protected static void loadChunkData( CompoundTag levelTag, ChunkSections sections, byte[] biomeIds ) {
+		sections.clear();
 		
 		Tag biomesTag = levelTag.getValue().get( "Biomes" );
-		if (biomesTag != null) {
+		if( biomesTag instanceof ByteArrayTag && ((ByteArrayTag)biomesTag).getValue().length == 16*16 ) {
 			System.arraycopy( ((ByteArrayTag)biomesTag).getValue(), 0, biomeIds, 0, 16*16 );
 		} else {
 			for(int i = 0; i< 16*16; i++) {
@@ -114,17 +224,20 @@ public class RegionRenderer
 		
 		for( Tag t : ((ListTag)levelTag.getValue().get("Sections")).getValue() ) {
 			CompoundTag sectionInfo = (CompoundTag)t;
-			int sectionIndex = ((ByteTag)sectionInfo.getValue().get("Y")).getValue().intValue();
-			byte[]  blockIdsLow = ((ByteArrayTag)sectionInfo.getValue().get("Blocks")).getValue();
+			Tag blocksTag = sectionInfo.getValue().get("Blocks");
+			// Sections that only hold lighting have no blocks to draw
+			if( blocksTag == null ) continue;
+			int sectionY = ((ByteTag)sectionInfo.getValue().get("Y")).getValue().intValue();
+			byte[]  blockIdsLow = ((ByteArrayTag)blocksTag).getValue();
 			byte[]  blockData   = ((ByteArrayTag)sectionInfo.getValue().get("Data")).getValue();
 			Tag addTag = sectionInfo.getValue().get("Add");
 			byte[] blockAdd = null;
 			if (addTag != null) {
 				blockAdd = ((ByteArrayTag)addTag).getValue();
 			}
-			short[] destSectionBlockIds = sectionBlockIds[sectionIndex];
-			byte[]  destSectionData = sectionBlockData[sectionIndex];
-			sectionsUsed[sectionIndex] = true;
+			int sectionIndex = sections.add( sectionY );
+			short[] destSectionBlockIds = sections.blockIds[sectionIndex];
+			byte[]  destSectionData = sections.blockData[sectionIndex];
 			for( int y=0; y<16; ++y ) {
 				for( int z=0; z<16; ++z ) {
 					for( int x=0; x<16; ++x ) {
@@ -139,6 +252,7 @@ public class RegionRenderer
 				}
 			}
 		}
+		sections.finish();
 	}
 	
 	//// Color look-up ////
@@ -184,133 +298,254 @@ public class RegionRenderer
 	
 	//// Handy color-manipulation functions ////
 	
-	protected static void demultiplyAlpha( int[] color ) {
-		for( int i=color.length-1; i>=0; --i ) color[i] = Color.demultiplyAlpha(color[i]);
+	/**
+	 * Turn pre-rendered colors into final pixels in a single pass:
+	 * demultiply alpha, apply slope and altitude shading, and write
+	 * the result into dest.  color is left untouched, so dest may be
+	 * an image's backing array.
+	 * 
+	 * @param height surface heights from {@link #preRender}
+	 * @param color pre-multiplied surface colors from {@link #preRender}
+	 * @param dest 512*512 ARGB pixels will be written here
+	 */
+	public void postProcess( short[] height, int[] color, int[] dest ) {
+		settings.getShadingTable().shade( height, color, dest );
+	}
+	
+	//// Rendering ////
+	
+	private final ThreadLocal<RenderContext> renderContexts = new ThreadLocal<RenderContext>() {
+		@Override
+		protected RenderContext initialValue() {
+			return new RenderContext();
+		}
+	};
+	
+	/**
+	 * @return the calling thread's render context, which is created the
+	 *   first time it is asked for and reused for every region after that
+	 */
+	public RenderContext getRenderContext() {
+		return renderContexts.get();
 	}
 	
-	protected void shade( short[] height, int[] color ) {
-		int width=512, depth=512;
-
-		int idx = 0;
-		for( int z=0; z<depth; ++z ) {
-			for( int x=0; x<width; ++x, ++idx ) {
-				float dyx, dyz;
-				
-				if( color[idx] == 0 ) continue;
-				
-				if(      x == 0       ) dyx = height[idx+1]-height[idx];
-				else if( x == width-1 ) dyx = height[idx]-height[idx-1];
-				else dyx = (height[idx+1]-height[idx-1]) * 2;
-
-				if(      z == 0       ) dyz = height[idx+width]-height[idx];
-				else if( z == depth-1 ) dyz = height[idx]-height[idx-width];
-				else dyz = (height[idx+width]-height[idx-width]) * 2;
-				
-				float shade = dyx+dyz;
-				if( shade >  10 ) shade =  10;
-				if( shade < -10 ) shade = -10;
-				
-				int altShade = settings.altitudeShadingFactor * (height[idx] - settings.shadingReferenceAltitude) / 255;
-				if (altShade < settings.minAltitudeShading)
-					altShade = settings.minAltitudeShading;
-				if (altShade > settings.maxAltitudeShading)
-					altShade = settings.maxAltitudeShading;
+	Timer timer = new Timer();
+	
+	/**
+	 * Composite the chunk most recently loaded into ctx into each slice's
+	 * color and height buffers.
+	 * @param cx x position of the chunk within its region
+	 * @param cz z position of the chunk within its region
+	 */
+	protected void compositeChunk( RenderContext ctx, Slice[] slices, int cx, int cz ) {
+		final ChunkSections sections = ctx.sections;
+		final byte[] biomeIds = ctx.biomeIds;
+		final int sliceCount = slices.length;
+		final int[] pixelColor = ctx.columnColor;
+		final short[] pixelHeight = ctx.columnHeight;
+		
+		// Blocks outside of every slice don't need to be looked at
+		int minHeight = Integer.MAX_VALUE, maxHeight = Integer.MIN_VALUE;
+		for( Slice slice : slices ) {
+			minHeight = Math.min(minHeight, slice.minHeight);
+			maxHeight = Math.max(maxHeight, slice.maxHeight);
+		}
+		
+		for( int z=0; z<16; ++z ) {
+			for( int x=0; x<16; ++x ) {
+				Arrays.fill( pixelColor, 0 );
+				Arrays.fill( pixelHeight, (short)0 );
+				int biomeId = biomeIds[z*16+x]&0xFF;
 				
-				shade += altShade;
+				int s=0;
+				for( ; s<sections.count; ++s ) {
+					int absY=sections.sectionY[s]*16;
+					
+					overlayAir( sections.sectionY[s] - sections.airRunBelow[s], sections.airRunBelow[s], slices, pixelColor );
+					if (absY >= maxHeight)
+						break;
+					if (absY + 16 <= minHeight)
+						continue;
+					
+					short[] blockIds  = sections.blockIds[s];
+					byte[]  blockData = sections.blockData[s];
+					
+					for( int idx=z*16+x, y=0; y<16; ++y, idx+=256, ++absY ) {
+						if (absY < minHeight || absY >= maxHeight)
+							continue;
+						
+						final short blockId    =  blockIds[idx];
+						final byte  blockDatum = blockData[idx];
+						int blockColor = getColor( blockId&0xFFFF, blockDatum, biomeId );
+						boolean opaque = Color.alpha(blockColor) >= shadeOpacityCutoff;
+						for( int i=0; i<sliceCount; ++i ) {
+							if( !slices[i].contains(absY) ) continue;
+							pixelColor[i] = Color.overlay( pixelColor[i], blockColor );
+							if( opaque ) pixelHeight[i] = (short)absY;
+						}
+					}
+				}
+				if( s == sections.count ) {
+					overlayAir( sections.maxSectionY + 1 - sections.airRunAbove, sections.airRunAbove, slices, pixelColor );
+				}
 				
-				color[idx] = Color.shade( color[idx], (int)(shade*8) );
+				final int dIdx = 512*(cz*16+z)+16*cx+x;
+				for( int i=0; i<sliceCount; ++i ) {
+					RenderContext.SliceBuffers buffers = ctx.getSlice(i);
+					buffers.surfaceColor[dIdx] = pixelColor[i];
+					buffers.surfaceHeight[dIdx] = pixelHeight[i];
+				}
 			}
 		}
 	}
 	
-	//// Rendering ////
+	/**
+	 * Overlay a run of absent (all-air) sections onto each slice's column color.
+	 * @param firstSectionY Y index of the lowest section in the run
+	 * @param sectionCount length of the run
+	 */
+	protected void overlayAir( int firstSectionY, int sectionCount, Slice[] slices, int[] pixelColor ) {
+		// Overlaying fully transparent air leaves colors exactly as they were
+		if( sectionCount == 0 || air16Transparent ) return;
+		
+		for( int s=firstSectionY; s<firstSectionY+sectionCount; ++s ) {
+			int absY = s*16;
+			for( int i=0; i<slices.length; ++i ) {
+				if (slices[i].minHeight <= absY && slices[i].maxHeight >= absY + 16) {
+					// Optimize the 16-blocks-of-air case:
+					pixelColor[i] = Color.overlay( pixelColor[i], air16Color );
+				} else {
+					// TODO: mix
+				}
+			}
+		}
+	}
 	
-	Timer timer = new Timer();
-	protected long startTime;
-	protected void resetInterval() { startTime = System.currentTimeMillis(); }
-	protected long getInterval() { return System.currentTimeMillis() - startTime; }
+	/**
+	 * Write a chunk's biome IDs into a 512x512 biome map as gray levels.
+	 * Unknown biomes (255, i.e. -1) are left transparent.
+	 */
+	protected static void writeBiomes( byte[] biomeIds, int cx, int cz, int[] dest ) {
+		for( int z=0; z<16; ++z ) {
+			for( int x=0; x<16; ++x ) {
+				int biomeId = biomeIds[z*16+x]&0xFF;
+				dest[512*(cz*16+z)+16*cx+x] = biomeId == 0xFF ? 0 : 0xFF000000 | biomeId << 16 | biomeId << 8 | biomeId;
+			}
+		}
+	}
+	
+	/** Lowest Y and highest Y plus one that blocks may have in any world */
+	public static final int WORLD_MIN_Y = -64, WORLD_MAX_Y = 320;
+	
+	/**
+	 * Write surface heights as gray levels, from black at minY to
+	 * white at maxY-1.  Columns with nothing in them are left transparent.
+	 */
+	protected static void writeHeightmap( short[] height, int[] color, int[] dest, int minY, int maxY ) {
+		final int range = Math.max(1, maxY - 1 - minY);
+		for( int i=0; i<dest.length; ++i ) {
+			int gray = Color.clampByte(((height[i] - minY) * 255 + range/2) / range);
+			dest[i] = color[i] == 0 ? 0 : 0xFF000000 | gray << 16 | gray << 8 | gray;
+		}
+	}
 	
 	/**
-	 * Load color and height data from a region.
+	 * Read every chunk of a region without decompressing any of them.
+	 * @return the chunks, indexed by cz*32+cx, with null for any that are missing
+	 */
+	protected static byte[][] readChunks( RegionFile rf ) {
+		return readChunks( rf, 0, 0, 32, 32 );
+	}
+	
+	/**
+	 * Like {@link #readChunks(RegionFile)}, but only reads the chunks between
+	 * the given chunk coordinates within the region (max exclusive),
+	 * leaving the rest null.
+	 */
+	protected static byte[][] readChunks( RegionFile rf, int minCx, int minCz, int maxCx, int maxCz ) {
+		byte[][] chunks = new byte[32*32][];
+		for( int cz=minCz; cz<maxCz; ++cz ) {
+			for( int cx=minCx; cx<maxCx; ++cx ) {
+				chunks[cz*32+cx] = rf.getCompressedChunk(cx, cz);
+			}
+		}
+		return chunks;
+	}
+	
+	/**
+	 * Load color and height data for each of the configured slices
+	 * from a region into the context's slice buffers.  Columns of chunks
+	 * that are missing from the region are left clear.
 	 * @param rf
-	 * @param colors color data will be written here
-	 * @param heights height data (height of top of topmost non-transparent block) will be written here
+	 * @param ctx scratch buffers to use; color and height data will be written here
+	 */
+	protected void preRender( RegionFile rf, RenderContext ctx ) {
+		long t0 = System.nanoTime();
+		byte[][] chunks = readChunks( rf );
+		timer.regionLoading.addAndGet(System.nanoTime() - t0);
+		preRender( chunks, ctx, rf.getFile() );
+	}
+	
+	/**
+	 * Like {@link #preRender(RegionFile, RenderContext)}, but from chunks
+	 * that have already been read by {@link #readChunks(RegionFile)}.
+	 * @param source the file the chunks came from, for error messages
 	 */
-	protected void preRender( RegionFile rf, int[] colors, short[] heights ) {
-		int maxSectionCount = 16;
-		short[][] sectionBlockIds = new short[maxSectionCount][16*16*16];
-		byte[][] sectionBlockData = new byte[maxSectionCount][16*16*16];
-		boolean[] usedSections = new boolean[maxSectionCount];
-		byte[] biomeIds = new byte[16*16];
+	protected void preRender( byte[][] chunks, RenderContext ctx, File source ) {
+		final Slice[] slices = settings.getSlices();
+		
+		final int[] biomePixels = settings.products.contains(RenderProduct.BIOMES) ?
+			RenderContext.pixels(ctx.getBiomeImage()) : null;
+		// Biomes come straight from the chunk data, so slices are only
+		// composited for the products made from them
+		final boolean composite = settings.products.contains(RenderProduct.SURFACE) ||
+			settings.products.contains(RenderProduct.HEIGHTMAP);
+		
+		ctx.setSliceCount( slices.length );
+		if( composite ) {
+			for( int i=0; i<slices.length; ++i ) {
+				Arrays.fill( ctx.getSlice(i).surfaceColor, 0 );
+				Arrays.fill( ctx.getSlice(i).surfaceHeight, (short)0 );
+			}
+		}
+		if( biomePixels != null ) Arrays.fill( biomePixels, 0 );
 		
 		for( int cz=0; cz<32; ++cz ) {
 			for( int cx=0; cx<32; ++cx ) {				
-				resetInterval();
-				DataInputStream cis = rf.getChunkDataInputStream(cx,cz);
+				long t0 = System.nanoTime();
+				byte[] compressedChunk = chunks[cz*32+cx];
+				if( compressedChunk == null ) continue;
+				String cacheKey = null;
+				if( chunkCache != null ) {
+					cacheKey = chunkCache.key(compressedChunk);
+					if( chunkCache.load(cacheKey, ctx, cx, cz) ) {
+						timer.chunkCacheHits.incrementAndGet();
+						if( biomePixels != null ) writeBiomes( ctx.biomeIds, cx, cz, biomePixels );
+						timer.regionLoading.addAndGet(System.nanoTime() - t0);
+						continue;
+					}
+					timer.chunkCacheMisses.incrementAndGet();
+				}
+				DataInputStream cis = RegionFile.getChunkDataInputStream(compressedChunk);
 				if( cis == null ) continue;
 				NBTInputStream nis = null;
 				try {
 					nis = new NBTInputStream(cis);
 					CompoundTag rootTag = (CompoundTag)nis.readTag();
 					CompoundTag levelTag = (CompoundTag)rootTag.getValue().get("Level");
-					loadChunkData( levelTag, maxSectionCount, sectionBlockIds, sectionBlockData, usedSections, biomeIds );
-					timer.regionLoading += getInterval();
+					loadChunkData( levelTag, ctx.sections, ctx.biomeIds );
+					long t1 = System.nanoTime();
+					timer.regionLoading.addAndGet(t1 - t0);
+					timer.sectionCount.addAndGet(ctx.sections.count);
 					
-					for( int s=0; s<maxSectionCount; ++s ) {
-						if( usedSections[s] ) {
-							++timer.sectionCount;
-						}
-					}
+					if( composite ) compositeChunk( ctx, slices, cx, cz );
+					if( biomePixels != null ) writeBiomes( ctx.biomeIds, cx, cz, biomePixels );
+					timer.preRendering.addAndGet(System.nanoTime() - t1);
 					
-					resetInterval();
-					for( int z=0; z<16; ++z ) {
-						for( int x=0; x<16; ++x ) {
-							int pixelColor = 0;
-							short pixelHeight = 0;
-							int biomeId = biomeIds[z*16+x]&0xFF;
-							
-							for( int s=0; s<maxSectionCount; ++s ) {
-								int absY=s*16;
-								
-								if (absY >= settings.maxHeight)
-									continue;
-								if (absY + 16 <= settings.minHeight)
-									continue;
-								
-								if( usedSections[s] ) {
-									short[] blockIds  = sectionBlockIds[s];
-									byte[]  blockData = sectionBlockData[s];
-									
-									for( int idx=z*16+x, y=0; y<16; ++y, idx+=256, ++absY ) {
-										if (absY < settings.minHeight || absY >= settings.maxHeight)
-											continue;
-										
-										final short blockId    =  blockIds[idx];
-										final byte  blockDatum = blockData[idx];
-										int blockColor = getColor( blockId&0xFFFF, blockDatum, biomeId );
-										pixelColor = Color.overlay( pixelColor, blockColor );
-										if( Color.alpha(blockColor) >= shadeOpacityCutoff  ) {
-											pixelHeight = (short)absY;
-										}
-									}
-								} else {
-									if (settings.minHeight <= absY && settings.maxHeight >= absY + 16) {
-										// Optimize the 16-blocks-of-air case:
-										pixelColor = Color.overlay( pixelColor, air16Color );
-									} else {
-										// TODO: mix
-									}
-								}
-							}
-							
-							final int dIdx = 512*(cz*16+z)+16*cx+x; 
-							colors[dIdx] = pixelColor;
-							heights[dIdx] = pixelHeight;
-						}
-					}
-					timer.preRendering += getInterval();
+					// Entries hold composited slices, which a later render may want
+					if( cacheKey != null && composite ) chunkCache.store( cacheKey, ctx, cx, cz );
 				} catch( IOException e ) {
-					System.err.println("Error reading chunk from "+rf.getFile()+" at "+cx+","+cz);
+					System.err.println("Error reading chunk from "+source+" at "+cx+","+cz);
 					e.printStackTrace(System.err);
 				} finally {
 					if( nis != null ) {
@@ -326,25 +561,140 @@ public class RegionRenderer
 		}
 	}
 	
+	/**
+	 * Render a region into a newly allocated image.
+	 * Prefer {@link #render(RegionFile, RenderContext)} when rendering many regions.
+	 */
 	public BufferedImage render( RegionFile rf ) {
-		resetInterval();
-		int width=512, depth=512;
-		
-		int[] surfaceColor  = new int[width*depth];
-		short[] surfaceHeight = new short[width*depth];
-		
-		preRender( rf, surfaceColor, surfaceHeight );
-		demultiplyAlpha( surfaceColor );
-		shade( surfaceHeight, surfaceColor );
-		
-		BufferedImage bi = new BufferedImage( width, depth, BufferedImage.TYPE_INT_ARGB );
-		
-		for( int z=0; z<depth; ++z ) {
-			bi.setRGB( 0, z, width, 1, surfaceColor, width*z, width );
+		return render( rf, new RenderContext() );
+	}
+	
+	/**
+	 * Render every configured slice and product of a region using the buffers in the given context.
+	 * @return the first slice's surface image, which will be overwritten the next time ctx is used;
+	 *   the others are available from ctx.getImage(tileSet)
+	 */
+	public BufferedImage render( RegionFile rf, RenderContext ctx ) {
+		preRender( rf, ctx );
+		postProcess( ctx );
+		return ctx.getSlice(0).image;
+	}
+	
+	/**
+	 * Render exactly the blocks within a rectangle, which needn't line up
+	 * with regions or chunks.  Only the chunks that overlap it are decoded,
+	 * along with any within a block of its edges so that slope shading
+	 * there comes out the same as on the tiles.
+	 * @param crop block coordinates (x, z) of the area to render; see {@link BoundingRect}
+	 * @return an image of exactly the crop's size for each of the tile sets
+	 *   from {@link RenderSettings#getTileSets(File)}, in the same order
+	 */
+	public List<BufferedImage> renderCrop( RegionMap rm, BoundingRect crop ) throws IOException {
+		return renderCrop( rm, crop, settings.getTileSets(new File(".")) );
+	}
+	
+	/**
+	 * Like {@link #renderCrop(RegionMap, BoundingRect)}, but only makes
+	 * images for the given tile sets, which must be among the settings' own.
+	 */
+	public List<BufferedImage> renderCrop( RegionMap rm, BoundingRect crop, List<TileSet> tileSets ) throws IOException {
+		long width = (long)crop.maxX - crop.minX, depth = (long)crop.maxY - crop.minY;
+		if( width <= 0 || depth <= 0 ) {
+			throw new IllegalArgumentException("Crop area is empty: "+width+"x"+depth);
+		}
+		if( width * depth > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException("Crop area is too big for one image: "+width+"x"+depth);
+		}
+		List<BufferedImage> images = new ArrayList<BufferedImage>();
+		for( int i=0; i<tileSets.size(); ++i ) {
+			images.add( new BufferedImage( (int)width, (int)depth, BufferedImage.TYPE_INT_ARGB ) );
 		}
-		timer.postProcessing += getInterval();
 		
-		return bi;
+		RenderContext ctx = getRenderContext();
+		for( int rz=Math.floorDiv(crop.minY, 512); rz<=Math.floorDiv(crop.maxY-1, 512); ++rz ) {
+			for( int rx=Math.floorDiv(crop.minX, 512); rx<=Math.floorDiv(crop.maxX-1, 512); ++rx ) {
+				Region r = rm.regionAt( rx, rz );
+				if( r == null || r.regionFile == null ) continue;
+				
+				// The part of the crop within this region, in blocks from its corner
+				int x0 = Math.max(crop.minX - rx*512, 0), x1 = (int)Math.min(crop.maxX - rx*512L, 512);
+				int z0 = Math.max(crop.minY - rz*512, 0), z1 = (int)Math.min(crop.maxY - rz*512L, 512);
+				
+				RegionFile rf = new RegionFile( r.regionFile );
+				byte[][] chunks;
+				try {
+					long t0 = System.nanoTime();
+					chunks = readChunks( rf,
+						Math.max(x0-1, 0) >> 4, Math.max(z0-1, 0) >> 4,
+						(Math.min(x1+1, 512) + 15) >> 4, (Math.min(z1+1, 512) + 15) >> 4 );
+					timer.regionLoading.addAndGet(System.nanoTime() - t0);
+				} finally {
+					rf.close();
+				}
+				preRender( chunks, ctx, r.regionFile );
+				postProcess( ctx );
+				
+				for( int i=0; i<tileSets.size(); ++i ) {
+					int[] src = RenderContext.pixels( ctx.getImage(tileSets.get(i)) );
+					int[] dest = RenderContext.pixels( images.get(i) );
+					for( int z=z0; z<z1; ++z ) {
+						int destRow = rz*512 + z - crop.minY;
+						System.arraycopy( src, z*512+x0, dest, destRow*(int)width + rx*512+x0-crop.minX, x1-x0 );
+					}
+				}
+				timer.regionCount.incrementAndGet();
+			}
+		}
+		return images;
+	}
+	
+	/**
+	 * Render a crop with {@link #renderCrop(RegionMap, BoundingRect)} and
+	 * write an image for each tile set into its directory.
+	 * @return the files written
+	 */
+	public List<File> writeCrop( RegionMap rm, BoundingRect crop, File outputDir ) throws IOException {
+		List<TileSet> tileSets = settings.getTileSets(outputDir);
+		List<BufferedImage> images = renderCrop( rm, crop );
+		List<File> files = new ArrayList<File>();
+		for( int i=0; i<tileSets.size(); ++i ) {
+			File f = tileSets.get(i).getCropFile(crop);
+			if( !f.getParentFile().exists() ) f.getParentFile().mkdirs();
+			long t0 = System.nanoTime();
+			byte[] png = encodePNG( images.get(i) );
+			timer.imageSaving.addAndGet(System.nanoTime() - t0);
+			FileUtil.write( f, png );
+			files.add( f );
+		}
+		return files;
+	}
+	
+	/**
+	 * Turn the color and height data in each of ctx's slices into
+	 * the surface and heightmap images, as configured.
+	 */
+	protected void postProcess( RenderContext ctx ) {
+		final long t0 = System.nanoTime();
+		final boolean surface = settings.products.contains(RenderProduct.SURFACE);
+		final boolean heightmap = settings.products.contains(RenderProduct.HEIGHTMAP);
+		final Slice[] slices = settings.getSlices();
+		for( int i=0; i<ctx.getSliceCount(); ++i ) {
+			RenderContext.SliceBuffers buffers = ctx.getSlice(i);
+			if( surface ) {
+				postProcess( buffers.surfaceHeight, buffers.surfaceColor, buffers.imagePixels );
+			}
+			if( heightmap ) {
+				// Spread the slice's part of the world over every gray level
+				int minY = Math.max(WORLD_MIN_Y, slices[i].minHeight);
+				int maxY = Math.min(WORLD_MAX_Y, slices[i].maxHeight);
+				if( maxY <= minY ) {
+					minY = WORLD_MIN_Y;
+					maxY = WORLD_MAX_Y;
+				}
+				writeHeightmap( buffers.surfaceHeight, buffers.surfaceColor, RenderContext.pixels(buffers.getHeightmapImage()), minY, maxY );
+			}
+		}
+		timer.postProcessing.addAndGet(System.nanoTime() - t0);
 	}
 	
 	protected static String pad( String v, int targetLength ) {
@@ -356,201 +706,642 @@ public class RegionRenderer
 		return pad( ""+v, targetLength );
 	}
 	
+	/** Create the directories that rendering into outputDir will write to */
+	protected void prepareOutputDirectories( File outputDir ) {
+		for( TileSet tileSet : settings.getTileSets(outputDir) ) {
+			if( !tileSet.directory.exists() ) tileSet.directory.mkdirs();
+		}
+		if( settings.saveSurfaceData ) {
+			for( int i=0; i<settings.getSlices().length; ++i ) {
+				File dir = settings.getSurfaceDataFile(outputDir, i, 0, 0).getParentFile();
+				if( !dir.exists() ) dir.mkdirs();
+			}
+		}
+	}
+	
 	public void renderAll( RegionMap rm, File outputDir, boolean force, int threadCount ) throws IOException, InterruptedException {
-		final long startTime = System.currentTimeMillis();
+		final long startTime = System.nanoTime();
 		
-		if( !outputDir.exists() ) outputDir.mkdirs();
+		prepareOutputDirectories( outputDir );
 		
 		if( rm.regions.size() == 0 ) {
 			System.err.println("Warning: no regions found!");
 		}
 		
-		final int regionCount = rm.regions.size();
-		final int regionsPerThread = (int)Math.ceil((float)regionCount / threadCount);
+		openJournal( outputDir, force );
+		try {
+			final RegionQueue queue = createRegionQueue( rm.regions, outputDir );
+			
+			List<RenderThread> renderThreads = new ArrayList<RenderThread>();
+			int maxThreads = Math.min(rm.regions.size(), getMemoryGovernor().getMaxConcurrent());
+			for( int i = 0; i < Math.min(threadCount, maxThreads); ++i ) {
+				renderThreads.add(new RenderThread(queue, outputDir, force));
+			}
+			
+			if (settings.debug)
+				System.err.println("Using " + renderThreads.size() + " render threads");
+			
+			try {
+				for( RenderThread renderThread : renderThreads ) renderThread.start();
+				
+				for( RenderThread renderThread : renderThreads ) renderThread.join();
+			} finally {
+				queue.close();
+			}
+			recordStaleRegions( queue, outputDir, force );
+			
+			saveTileDigests();
+			finishJournal();
+		} finally {
+			closeJournal();
+		}
 		
-		List<RenderThread> renderThreads = new ArrayList<RenderThread>();
+		timer.total.addAndGet(System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * Like {@link #renderAll(RegionMap, File, boolean, int)}, but with the work
+	 * for each region split into stages that each have their own threads;
+	 * see {@link RenderPipeline}.
+	 * @param stageThreads number of threads for each of {@link RenderPipeline#STAGE_NAMES}
+	 * @return the pipeline, for its utilization report
+	 */
+	public RenderPipeline renderAllStaged( RegionMap rm, File outputDir, boolean force, int[] stageThreads ) throws IOException, InterruptedException {
+		RenderPipeline pipeline = new RenderPipeline( this, outputDir, force, stageThreads );
+		renderAllStaged( rm, pipeline );
+		return pipeline;
+	}
+	
+	/**
+	 * Render regions with an existing pipeline, which keeps its render contexts between runs.
+	 */
+	public void renderAllStaged( RegionMap rm, RenderPipeline pipeline ) throws IOException, InterruptedException {
+		final long startTime = System.nanoTime();
+		File outputDir = pipeline.outputDir;
 		
-		for( int i = 0; i < regionCount; i += regionsPerThread ) {
-			// You know, we really ought to figure out which regions need to be updated
-			// /before/ we start all these threads...
-			List<Region> threadRegions = rm.regions.subList(i, Math.min(i+regionCount, regionCount));
-			RenderThread renderThread = new RenderThread(threadRegions, outputDir, force);
-			renderThreads.add(renderThread);
-		}
+		prepareOutputDirectories( outputDir );
 		
-		if (settings.debug)
-			System.err.println("Using " + renderThreads.size() + " render threads");
+		if( rm.regions.size() == 0 ) {
+			System.err.println("Warning: no regions found!");
+		}
 		
-		for( RenderThread renderThread : renderThreads ) renderThread.start();
+		openJournal( outputDir, pipeline.force );
+		try {
+			RegionQueue queue = createRegionQueue( rm.regions, outputDir );
+			try {
+				pipeline.run( queue );
+			} finally {
+				queue.close();
+			}
+			recordStaleRegions( queue, outputDir, pipeline.force );
+			
+			saveTileDigests();
+			finishJournal();
+		} finally {
+			closeJournal();
+		}
 		
-		for( RenderThread renderThread : renderThreads ) renderThread.join();
+		timer.total.addAndGet(System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * @return a queue of the given regions, biggest first, that claims
+	 *   each region with a lease in the output directory if {@link RenderSettings#cooperate} is set
+	 *   and leaves out those already finished by an interrupted run.
+	 *   With a {@link RenderSettings#timeBudget}, regions left stale by the last run come first,
+	 *   then the most recently changed ones, and the queue stops once the time is up.
+	 */
+	protected RegionQueue createRegionQueue( List<Region> regions, File outputDir ) {
+		RegionLeases leases = settings.cooperate ? new RegionLeases( new File(outputDir, ".leases"), settings.leaseTime ) : null;
+		if( journal != null ) {
+			// Those that the interrupted run finished have their tiles
+			for( Region r : regions ) {
+				if( journal.isCompleted(r) ) recordTiles( r, outputDir );
+			}
+			regions = journal.getRemaining( regions );
+		}
+		RegionQueue queue;
+		if( settings.timeBudget > 0 ) {
+			queue = new RegionQueue( freshestFirst(regions, readStaleRegions(outputDir)), leases );
+			queue.setDeadline( System.currentTimeMillis() + settings.timeBudget );
+		} else {
+			queue = new RegionQueue( largestFirst(regions), leases );
+		}
+		queue.setGovernor( getMemoryGovernor() );
+		return queue;
+	}
+	
+	/** Lists the regions that a run cut short by its time budget left out of date */
+	public static final String STALE_REGIONS_FILENAME = ".stale-regions";
+	
+	protected static String regionKey( Region r ) {
+		return r.rx + " " + r.rz;
+	}
+	
+	/** @return the regions recorded as stale by the last run, as "x z" */
+	protected static Set<String> readStaleRegions( File outputDir ) {
+		Set<String> stale = new HashSet<String>();
+		File f = new File( outputDir, STALE_REGIONS_FILENAME );
+		if( !f.exists() ) return stale;
+		try {
+			BufferedReader r = new BufferedReader( new FileReader(f) );
+			try {
+				String line;
+				while( (line = r.readLine()) != null ) stale.add( line.trim() );
+			} finally {
+				r.close();
+			}
+		} catch( IOException e ) {
+			System.err.println("Error reading "+f+"; stale regions won't be given priority");
+		}
+		return stale;
+	}
+	
+	/**
+	 * If the queue stopped because the time budget ran out, record which of
+	 * the regions it didn't get to are out of date, so that the next run starts with them.
+	 */
+	protected void recordStaleRegions( RegionQueue queue, File outputDir, boolean force ) throws IOException {
+		if( settings.timeBudget <= 0 ) return;
+		File f = new File( outputDir, STALE_REGIONS_FILENAME );
+		if( !queue.isPastDeadline() ) {
+			f.delete();
+			return;
+		}
+		List<Region> remaining = queue.getRemaining();
+		StringBuilder stale = new StringBuilder();
+		int staleCount = 0;
+		for( Region r : remaining ) {
+			if( isRegionOutdated(r, outputDir, force) ) {
+				stale.append( regionKey(r) ).append( "\n" );
+				++staleCount;
+			}
+		}
+		FileUtil.write( f, stale.toString().getBytes("UTF-8") );
+		System.err.println("Time budget ran out with " + remaining.size() + " regions not checked; " +
+			staleCount + " of them are out of date and will be rendered first next time");
+	}
+	
+	/**
+	 * Order regions by the newest chunk timestamp in their headers, newest first,
+	 * except that the given stale regions come before all others.
+	 */
+	protected static List<Region> freshestFirst( List<Region> regions, final Set<String> stale ) {
+		final Map<Region,Long> timestamps = new HashMap<Region,Long>();
+		for( Region r : regions ) {
+			timestamps.put(r, r.regionFile == null ? 0 : RegionFile.getNewestChunkTimestamp(r.regionFile));
+		}
+		List<Region> sorted = new ArrayList<Region>(regions);
+		Collections.sort(sorted, new Comparator<Region>() {
+			@Override
+			public int compare( Region a, Region b ) {
+				boolean aStale = stale.contains(regionKey(a)), bStale = stale.contains(regionKey(b));
+				if( aStale != bStale ) return aStale ? -1 : 1;
+				return timestamps.get(b).compareTo(timestamps.get(a));
+			}
+		});
+		return sorted;
+	}
+	
+	/**
+	 * @return the governor that keeps the regions being rendered at once
+	 *   within {@link RenderSettings#memoryBudget}, created the first time it's asked for
+	 */
+	public synchronized MemoryGovernor getMemoryGovernor() {
+		if( memoryGovernor == null ) {
+			memoryGovernor = new MemoryGovernor(
+				settings.memoryBudget > 0 ? settings.memoryBudget : MemoryGovernor.defaultBudget(),
+				MemoryGovernor.estimateBytesPerRegion(settings) );
+		}
+		return memoryGovernor;
+	}
+	
+	/**
+	 * Start recording the run's progress in outputDir if {@link RenderSettings#journal} is set,
+	 * resuming an interrupted run with the same settings if there is one.
+	 */
+	protected void openJournal( File outputDir, boolean force ) throws IOException {
+		// Leases already keep cooperating processes from redoing each other's work
+		if( !settings.journal || settings.cooperate ) return;
+		journal = new RunJournal( outputDir, getRunId(force) );
+		if( journal.getCompletedCount() > 0 ) {
+			System.err.println("Resuming interrupted render; " + journal.getCompletedCount() + " regions were already done");
+		}
+		// Their digests were never saved, so don't trust the ones on record
+		for( File tile : journal.getInterruptedTiles() ) {
+			getTileDigests( tile.getParentFile() ).remove( tile.getName() );
+		}
+	}
+	
+	/** Record that a region taken from a {@link RegionQueue} has been dealt with */
+	protected void regionCompleted( Region r ) {
+		if( journal == null ) return;
+		try {
+			journal.regionCompleted( r );
+		} catch( IOException e ) {
+			System.err.println("Error writing to render journal "+journal.file);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Record that rendering a region failed, so that it is left out of
+	 * the tile manifests whatever tiles it may have from before.
+	 */
+	protected void regionFailed( Region r, File outputDir ) {
+		for( TileSet tileSet : settings.getTileSets(outputDir) ) {
+			getTileManifest( tileSet.directory ).regionFailed( r.rx, r.rz );
+		}
+	}
+	
+	/** Record that a region's full-size tiles in outputDir are all there and up to date */
+	protected void recordTiles( Region r, File outputDir ) {
+		for( TileSet tileSet : settings.getTileSets(outputDir) ) {
+			getTileManifest( tileSet.directory ).tileMade( r.rx, r.rz );
+		}
+	}
+	
+	/** Delete the journal once everything it records has been saved */
+	protected void finishJournal() throws IOException {
+		if( journal == null ) return;
+		journal.finish();
+		journal = null;
+	}
+	
+	protected void closeJournal() throws IOException {
+		if( journal == null ) return;
+		journal.close();
+		journal = null;
+	}
+	
+	/**
+	 * Order regions by how many sectors their chunks take up, biggest first,
+	 * so that the slowest regions are started early and the threads finish
+	 * around the same time instead of one being left with a huge region at the end.
+	 */
+	protected static List<Region> largestFirst( List<Region> regions ) {
+		final Map<Region,Integer> sectorCounts = new HashMap<Region,Integer>();
+		for( Region r : regions ) {
+			sectorCounts.put(r, r.regionFile == null ? 0 : RegionFile.countChunkSectors(r.regionFile));
+		}
+		List<Region> sorted = new ArrayList<Region>(regions);
+		Collections.sort(sorted, new Comparator<Region>() {
+			@Override
+			public int compare( Region a, Region b ) {
+				return sectorCounts.get(b).compareTo(sectorCounts.get(a));
+			}
+		});
+		return sorted;
+	}
+	
+	protected static boolean isOutdated( File imageFile, Region r, boolean force ) {
+		return force || !imageFile.exists() || imageFile.lastModified() < r.regionFile.lastModified();
+	}
+	
+	private final Map<File,TileDigests> tileDigests = new HashMap<File,TileDigests>();
+	
+	/** @return the digests of the tiles in the given directory, loaded the first time they're asked for */
+	public synchronized TileDigests getTileDigests( File directory ) {
+		TileDigests digests = tileDigests.get(directory);
+		if( digests == null ) {
+			digests = new TileDigests(directory);
+			tileDigests.put(directory, digests);
+		}
+		return digests;
+	}
+	
+	private final Map<File,TileManifest> tileManifests = new HashMap<File,TileManifest>();
+	
+	/** @return the manifest of the tiles in the given directory, created the first time it's asked for */
+	public synchronized TileManifest getTileManifest( File directory ) {
+		TileManifest manifest = tileManifests.get(directory);
+		if( manifest == null ) {
+			manifest = new TileManifest(directory);
+			tileManifests.put(directory, manifest);
+		}
+		return manifest;
+	}
+	
+	/** Write out any tile digests that have changed; {@link #renderAll} does this when it finishes */
+	public synchronized void saveTileDigests() throws IOException {
+		for( TileDigests digests : tileDigests.values() ) digests.save();
+	}
+	
+	/**
+	 * Like {@link #isOutdated(File, Region, boolean)}, but a tile that was left
+	 * untouched because its pixels didn't change counts as being as new
+	 * as the region it was last rendered from.
+	 */
+	protected boolean isTileOutdated( File imageFile, Region r, boolean force ) {
+		if( force || !imageFile.exists() ) return true;
+		long renderedFrom = getTileDigests(imageFile.getParentFile()).getSourceLastModified(imageFile.getName());
+		return Math.max(renderedFrom, imageFile.lastModified()) < r.regionFile.lastModified();
+	}
+	
+	/** A tile that has been encoded as a PNG but not yet written */
+	protected static class EncodedTile {
+		public final File file;
+		public final byte[] data;
 		
-		timer.total += System.currentTimeMillis() - startTime;
+		public EncodedTile( File file, byte[] data ) {
+			this.file = file;
+			this.data = data;
+		}
 	}
 	
-	public void renderRegion( Region r, File outputDir, boolean force ) throws IOException {
-		if( r == null ) return; 
+	/**
+	 * Encode an image for a tile file, unless the file already holds exactly the same pixels.
+	 * @param sourceLastModified modification time of the data the image was rendered from
+	 * @return the encoded tile, or null if the file doesn't need to be written
+	 */
+	protected EncodedTile encodeTile( BufferedImage image, File f, long sourceLastModified ) throws IOException {
+		TileDigests digests = getTileDigests(f.getParentFile());
+		if( !digests.update(f.getName(), TileDigests.digest(image), sourceLastModified) && f.exists() ) {
+			timer.tilesUnchanged.incrementAndGet();
+			getTileManifest(f.getParentFile()).tileMade(f.getName());
+			return null;
+		}
+		return new EncodedTile(f, encodePNG(image));
+	}
+	
+	private PNGEncoder pngEncoder;
+	
+	/**
+	 * @return the encoder for PNG files at {@link RenderSettings#pngCompressionLevel}
+	 *   and with {@link RenderSettings#pngPalette}, created the first time it's asked for
+	 */
+	public synchronized PNGEncoder getPNGEncoder() {
+		if( pngEncoder == null ) pngEncoder = PNGEncoder.create( settings.pngCompressionLevel, settings.pngPalette );
+		return pngEncoder;
+	}
+	
+	/** Encode an image as a PNG file, with ImageIO if {@link RenderSettings#imageIOPNG} is set */
+	public byte[] encodePNG( BufferedImage image ) throws IOException {
+		if( settings.imageIOPNG ) return PNGEncoder.encodeWithImageIO(image);
+		return getPNGEncoder().encode(image);
+	}
+	
+	/**
+	 * Write an encoded tile to a temporary file and then move it into place,
+	 * so that a run that is killed doesn't leave half-written tiles behind.
+	 */
+	protected void writeTile( EncodedTile tile ) {
+		try {
+			if( journal != null ) journal.tileWriting(tile.file);
+			FileUtil.write(tile.file, tile.data);
+			timer.tilesWritten.incrementAndGet();
+			getTileManifest(tile.file.getParentFile()).tileMade(tile.file.getName());
+		} catch( IOException e ) {
+			// Make sure it's written next time
+			getTileDigests(tile.file.getParentFile()).remove(tile.file.getName());
+			System.err.println("Error writing PNG to "+tile.file);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Write an image to a tile file, unless the file already holds exactly the same pixels.
+	 * @param sourceLastModified modification time of the data the image was rendered from
+	 */
+	protected void writeTile( BufferedImage image, File f, long sourceLastModified ) throws IOException {
+		EncodedTile tile = encodeTile(image, f, sourceLastModified);
+		if( tile != null ) writeTile(tile);
+	}
+	
+	/**
+	 * Encode the full-size and scaled tiles of a region for each of the given
+	 * tile sets from the images in ctx, leaving out any that haven't changed.
+	 * Once this returns, ctx is no longer needed.
+	 */
+	protected List<EncodedTile> encodeTiles( Region r, RenderContext ctx, List<TileSet> tileSets, long sourceLastModified ) throws IOException {
+		List<EncodedTile> tiles = new ArrayList<EncodedTile>();
+		for( TileSet tileSet : tileSets ) {
+			BufferedImage fullSize = ctx.getImage(tileSet);
+			EncodedTile tile = encodeTile(fullSize, tileSet.getImageFile(r.rx, r.rz), sourceLastModified);
+			if( tile != null ) tiles.add(tile);
+			for( Map.Entry<Integer,BufferedImage> e : MipMaps.scale(fullSize, settings.mapScales).entrySet() ) {
+				File f = tileSet.getScaledImageFile( r.rx, r.rz, e.getKey() );
+				if (settings.debug)
+					System.err.println("generating " + f + "...");
+				tile = encodeTile(e.getValue(), f, sourceLastModified);
+				if( tile != null ) tiles.add(tile);
+			}
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Write the full-size and scaled tiles of a region for each of the given tile sets
+	 * from the images in ctx.
+	 */
+	protected void writeTiles( Region r, RenderContext ctx, List<TileSet> tileSets, long sourceLastModified ) throws IOException {
+		long t0 = System.nanoTime();
+		for( EncodedTile tile : encodeTiles(r, ctx, tileSets, sourceLastModified) ) writeTile(tile);
+		timer.imageSaving.addAndGet(System.nanoTime() - t0);
+	}
+	
+	protected void writeScaledImages( BufferedImage fullSize, Region r, TileSet tileSet, long sourceLastModified ) throws IOException {
+		for( Map.Entry<Integer,BufferedImage> e : MipMaps.scale(fullSize, settings.mapScales).entrySet() ) {
+			File f = tileSet.getScaledImageFile( r.rx, r.rz, e.getKey() );
+			if (settings.debug)
+				System.err.println("generating " + f + "...");
+			writeTile(e.getValue(), f, sourceLastModified);
+		}
+	}
+	
+	protected void saveSurfaceData( Region r, File outputDir, RenderContext ctx ) {
+		for( int i=0; i<ctx.getSliceCount(); ++i ) {
+			File f = settings.getSurfaceDataFile(outputDir, i, r.rx, r.rz);
+			try {
+				RenderContext.SliceBuffers buffers = ctx.getSlice(i);
+				SurfaceDataFile.write( f, buffers.surfaceHeight, buffers.surfaceColor );
+			} catch( IOException e ) {
+				System.err.println("Error writing surface data to "+f);
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Load a region's saved surface data into ctx's slice buffers.
+	 * @return the time the data was saved, or -1 if there isn't any
+	 */
+	protected long loadSurfaceData( Region r, File outputDir, RenderContext ctx ) throws IOException {
+		final Slice[] slices = settings.getSlices();
+		ctx.setSliceCount( slices.length );
+		// The data is as new as the region it was rendered from, so count the tiles as that new too
+		long sourceLastModified = Long.MAX_VALUE;
+		for( int i=0; i<slices.length; ++i ) {
+			File f = settings.getSurfaceDataFile(outputDir, i, r.rx, r.rz);
+			if( !f.exists() ) {
+				System.err.println("No surface data for region "+r.rx+", "+r.rz+" in "+f.getParent()+"; skipping");
+				return -1;
+			}
+			sourceLastModified = Math.min(sourceLastModified, f.lastModified());
+			long t0 = System.nanoTime();
+			RenderContext.SliceBuffers buffers = ctx.getSlice(i);
+			SurfaceDataFile.read( f, buffers.surfaceHeight, buffers.surfaceColor );
+			timer.regionLoading.addAndGet(System.nanoTime() - t0);
+		}
+		if (settings.debug)
+			System.err.println("Region " + pad(r.rx, 4) + ", " + pad(r.rz, 4) + "...re-shading");
+		return sourceLastModified;
+	}
+	
+	/** The tile sets that can be regenerated from surface data */
+	protected List<TileSet> getReshadeTileSets( File outputDir ) {
+		List<TileSet> tileSets = new ArrayList<TileSet>();
+		for( TileSet tileSet : settings.getTileSets(outputDir) ) {
+			// Biomes aren't part of the surface data, and don't depend on shading anyway
+			if( tileSet.product.perSlice ) tileSets.add(tileSet);
+		}
+		return tileSets;
+	}
+	
+	/**
+	 * Regenerate a region's surface and heightmap tiles from its saved
+	 * surface data, using the current shading settings.  The world is not read.
+	 */
+	public void reshadeRegion( Region r, File outputDir ) throws IOException {
+		RenderContext ctx = getRenderContext();
+		long sourceLastModified = loadSurfaceData( r, outputDir, ctx );
+		if( sourceLastModified < 0 ) return;
+		
+		postProcess( ctx );
 		
+		List<TileSet> tileSets = getReshadeTileSets( outputDir );
+		if( !tileSets.isEmpty() ) r.imageFile = tileSets.get(0).getImageFile(r.rx, r.rz);
+		writeTiles( r, ctx, tileSets, sourceLastModified );
+		timer.regionCount.incrementAndGet();
+	}
+	
+	/** @return true if any of a region's tiles (or its surface data, if kept) are out of date */
+	protected boolean isRegionOutdated( Region r, File outputDir, boolean force ) {
+		for( TileSet tileSet : settings.getTileSets(outputDir) ) {
+			if( isTileOutdated(tileSet.getImageFile(r.rx, r.rz), r, force) ) return true;
+			for( int scale : settings.mapScales ) {
+				if( scale != 1 && isTileOutdated(tileSet.getScaledImageFile(r.rx, r.rz, scale), r, force) ) return true;
+			}
+		}
+		if( settings.saveSurfaceData ) {
+			for( int i=0; i<settings.getSlices().length; ++i ) {
+				if( isOutdated(settings.getSurfaceDataFile(outputDir, i, r.rx, r.rz), r, force) ) return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Work out whether a region needs to be rendered again.
+	 * If it doesn't, but some of its scaled tiles are outdated,
+	 * they are brought up to date from the full-size ones.
+	 * @return true if the region needs to be rendered
+	 */
+	protected boolean checkRegion( Region r, File outputDir, boolean force ) throws IOException {
 		if (settings.debug)
 			System.err.print("Region " + pad(r.rx, 4) + ", " + pad(r.rz, 4) + "...");
 		
+		final List<TileSet> tileSets = settings.getTileSets( outputDir );
 		String imageFilename = "tile."+r.rx+"."+r.rz+".png";
-		File fullSizeImageFile = r.imageFile = new File( outputDir, imageFilename );
+		boolean[] scalesNeedReRender = new boolean[tileSets.size()];
 		
 		boolean fullSizeNeedsReRender = false;
-		if( force || !fullSizeImageFile.exists() || fullSizeImageFile.lastModified() < r.regionFile.lastModified() ) {
-			fullSizeNeedsReRender = true;
-		} else {
-			if (settings.debug)
-				System.err.println("image already up-to-date");
+		for( int i=0; i<tileSets.size(); ++i ) {
+			TileSet tileSet = tileSets.get(i);
+			if( isTileOutdated(tileSet.getImageFile(r.rx, r.rz), r, force) ) {
+				fullSizeNeedsReRender = true;
+			}
+			for (int scale : settings.mapScales) {
+				if( scale == 1 ) continue;
+				if( isTileOutdated(tileSet.getScaledImageFile(r.rx, r.rz, scale), r, force) ) {
+					scalesNeedReRender[i] = true;
+				}
+			}
 		}
-		
-		boolean anyScalesNeedReRender = false;
-		for (int scale : settings.mapScales) {
-			if( scale == 1 ) continue;
-			File f = new File( outputDir, "tile."+r.rx+"."+r.rz+".1-"+scale+".png" );
-			if( force || !f.exists() || f.lastModified() < r.regionFile.lastModified() ) {
-				anyScalesNeedReRender = true;
+		if( settings.saveSurfaceData ) {
+			for( int i=0; i<settings.getSlices().length; ++i ) {
+				if( isOutdated(settings.getSurfaceDataFile(outputDir, i, r.rx, r.rz), r, force) ) {
+					fullSizeNeedsReRender = true;
+				}
 			}
 		}
+		if( !tileSets.isEmpty() ) r.imageFile = tileSets.get(0).getImageFile(r.rx, r.rz);
 		
-		BufferedImage fullSize;
 		if( fullSizeNeedsReRender ) {
-			fullSizeImageFile.delete();
 			if (settings.debug)
 				System.err.println("generating " + imageFilename + "...");
-			
-			RegionFile rf = new RegionFile( r.regionFile );
-			try {
-				fullSize = render( rf );
-			} finally {
-				rf.close();
-			}
-			
-			try {
-				resetInterval();
-				ImageIO.write(fullSize, "png", fullSizeImageFile);
-				timer.imageSaving += getInterval();
-			} catch( IOException e ) {
-				System.err.println("Error writing PNG to "+fullSizeImageFile);
-				e.printStackTrace();
+			return true;
+		}
+		
+		if (settings.debug)
+			System.err.println("image already up-to-date");
+		recordTiles( r, outputDir );
+		for( int i=0; i<tileSets.size(); ++i ) {
+			if( scalesNeedReRender[i] ) {
+				TileSet tileSet = tileSets.get(i);
+				writeScaledImages( ImageIO.read(tileSet.getImageFile(r.rx, r.rz)), r, tileSet, r.regionFile.lastModified() );
 			}
-			++timer.regionCount;
-		} else if( anyScalesNeedReRender ) {
-			fullSize = ImageIO.read(fullSizeImageFile);
-		} else {
+		}
+		return false;
+	}
+	
+	public void renderRegion( Region r, File outputDir, boolean force ) throws IOException {
+		if( r == null ) return; 
+		
+		if( settings.reshade ) {
+			reshadeRegion( r, outputDir );
 			return;
 		}
 		
-		for (int scale : settings.mapScales) {
-			if( scale == 1 ) continue; // Already wrote!
-			File f = new File( outputDir, "tile."+r.rx+"."+r.rz+".1-"+scale+".png" );
-			if (settings.debug)
-				System.err.println("generating " + f + "...");
-			int size = 512 / scale;
-			BufferedImage rescaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
-			Graphics2D g = rescaled.createGraphics();
-			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-			g.drawImage(fullSize, 0, 0, size, size, 0, 0, 512, 512, null);
-			g.dispose();
-			ImageIO.write(rescaled, "png", f);
+		if( !checkRegion( r, outputDir, force ) ) return;
+		
+		RenderContext ctx = getRenderContext();
+		RegionFile rf = new RegionFile( r.regionFile );
+		try {
+			render( rf, ctx );
+		} finally {
+			rf.close();
+		}
+		
+		writeTiles( r, ctx, settings.getTileSets(outputDir), rf.lastModified() );
+		if( settings.saveSurfaceData ) saveSurfaceData( r, outputDir, ctx );
+		timer.regionCount.incrementAndGet();
+	}
+	
+	/** @return the contents of a file that's kept next to this class */
+	protected byte[] readResource( String name ) throws IOException {
+		InputStream in = getClass().getResourceAsStream(name);
+		try {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			byte[] buffer = new byte[65536];
+			int r;
+			while( (r = in.read(buffer)) > 0 ) data.write(buffer, 0, r);
+			return data.toByteArray();
+		} finally {
+			in.close();
 		}
 	}
 	
 	/**
-	 * Create a "tiles.html" file containing a table with
-	 * all region images (tile.<x>.<z>.png) that exist in outDir
-	 * within the given bounds (inclusive)
+	 * Write "tiles.json", listing the regions that have tiles in outputDir as found
+	 * by this renderer's runs and earlier ones (see {@link TileManifest}), along with
+	 * "tiles.html", a page that shows them, loading only those near the part of the
+	 * map in view.  The manifest is written into the page as well, so that it can be
+	 * opened straight from disk.
 	 */
-	public void createTileHtml( int minX, int minZ, int maxX, int maxZ, File outputDir ) {
+	public void createTileHtml( File outputDir ) {
 		if (settings.debug)
-			System.err.println("Writing HTML tiles...");
-		for (int scale : settings.mapScales) {
-			int regionSize = 512 / scale;
+			System.err.println("Writing tile manifest and viewer...");
+		try {
+			File cssFile = new File(outputDir, "tiles.css");
+			if( !cssFile.exists() ) FileUtil.write(cssFile, readResource("tiles.css"));
 			
-			try {
-				File cssFile = new File(outputDir, "tiles.css");
-				if( !cssFile.exists() ) {
-					InputStream cssInputStream = getClass().getResourceAsStream("tiles.css");
-					byte[] buffer = new byte[1024*1024];
-					try {
-						FileOutputStream cssOutputStream = new FileOutputStream(cssFile);
-						try {
-							int r;
-							while( (r = cssInputStream.read(buffer)) > 0 ) {
-								cssOutputStream.write(buffer, 0, r);
-							}
-						} finally {
-							cssOutputStream.close();
-						}
-					} finally {
-						cssInputStream.close();
-					}
-				}
-				
-				Writer w = new OutputStreamWriter(new FileOutputStream(new File(
-					outputDir,
-					scale == 1 ? "tiles.html" : "tiles.1-"+scale+".html"
-				)));
-				try {
-					w.write("<html><head>\n");
-					w.write("<title>" + settings.mapTitle + " - 1:" + scale + "</title>\n");
-					w.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"tiles.css\"/>\n");
-					w.write("</head><body>\n");
-					w.write("<div style=\"height: "+(maxZ-minZ+1)*regionSize+"px\">");
-					
-					for( int z=minZ; z<=maxZ; ++z ) {
-						for( int x=minX; x<=maxX; ++x ) {
-							String fullSizeImageFilename = "tile."+x+"."+z+".png";
-							File imageFile = new File( outputDir+"/"+fullSizeImageFilename );
-							String scaledImageFilename = scale == 1 ?
-								fullSizeImageFilename :
-								"tile."+x+"."+z+".1-"+scale+".png";
-							if( imageFile.exists() ) {
-								int top = (z-minZ) * regionSize, left = (x-minX) * regionSize;
-								String title = "Region "+x+", "+z;
-								String name = "r."+x+"."+z;
-								String style =
-									"width: "+regionSize+"px; height: "+regionSize+"px; "+
-									"position: absolute; top: "+top+"px; left: "+left+"px; "+
-									"background-image: url("+scaledImageFilename+")";
-								w.write("<a\n"+
-									"\tclass=\"tile\"\n"+
-									"\tstyle=\""+style+"\"\n"+
-									"\ttitle=\""+title+"\"\n"+
-									"\tname=\""+name+"\"\n"+
-									"\thref=\""+fullSizeImageFilename+"\"\n"+
-									">&nbsp;</a>");
-							}
-						}
-					}
-					
-					w.write("</div>\n");
-					if (settings.mapScales.length > 1) {
-						w.write("<div class=\"scales-nav\">");
-						w.write("<p>Scales:</p>");
-						w.write("<ul>");
-						for (int otherScale : settings.mapScales) {
-							if( otherScale == scale ) {
-								w.write("<li>1:"+scale+"</li>");
-							} else {
-								String otherFilename = otherScale == 1 ? "tiles.html" : "tiles.1-"+otherScale+".html";
-								w.write("<li><a href=\""+otherFilename+"\">1:"+otherScale+"</a></li>");
-							}
-						}
-						w.write("</ul>");
-						w.write("</div>");
-					}
-					w.write("<p class=\"notes\">");
-					w.write("Page rendered at "+ new Date().toString());
-					w.write("</p>\n");
-					w.write("</body></html>");
-				} finally {
-					w.close();
-				}
-			} catch( IOException e ) {
-				throw new RuntimeException(e);
-			}
+			String manifest = getTileManifest(outputDir).write(settings.mapTitle, settings.mapScales);
+			
+			String html = new String(readResource("tiles.html"), "UTF-8").replace("/*MANIFEST*/null", manifest.trim());
+			FileUtil.write(new File(outputDir, "tiles.html"), html.getBytes("UTF-8"));
+		} catch( IOException e ) {
+			throw new RuntimeException(e);
 		}
 	}
 	
@@ -561,10 +1352,31 @@ public class RegionRenderer
 		System.out.println( itc.compose( rm ) );
 	}
 	
+	/** Bring the tile pyramid for the region tiles in outputDir up to date; see {@link TilePyramid} */
+	public void createPyramid( RegionMap rm, File outputDir ) throws IOException {
+		createPyramid( rm, null, outputDir );
+	}
+	
+	/**
+	 * Bring the tile pyramid for the region tiles in outputDir up to date
+	 * @param changed the only regions whose tiles may have changed, or null to check them all
+	 */
+	public void createPyramid( RegionMap rm, Collection<Region> changed, File outputDir ) throws IOException {
+		if (settings.debug)
+			System.err.println("Updating tile pyramid...");
+		long startTime = System.currentTimeMillis();
+		TilePyramid pyramid = new TilePyramid(this, outputDir);
+		if( changed == null ) pyramid.update(rm);
+		else pyramid.update(rm, changed);
+		System.err.println("Tile pyramid in " + pyramid.directory + ": " + pyramid.tilesMade + " tiles made and " +
+			pyramid.regionTilesLinked + " region tiles linked in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+	
 	public void createBigImage( RegionMap rm, File outputDir) {
 		if (settings.debug)
 			System.err.println("Creating big image...");
-		BigImageMerger bic = new BigImageMerger();
+		boolean parallel = Runtime.getRuntime().availableProcessors() > 1;
+		BigImageMerger bic = new BigImageMerger(getPNGEncoder(), parallel ? ForkJoinPool.commonPool() : null);
 		bic.createBigImage(rm, outputDir, settings.debug);
 	}
 	
@@ -575,21 +1387,84 @@ public class RegionRenderer
 		"  -debug ; be chatty\n" +
 		"  -color-map <file>  ; load a custom color map from the specified file\n" +
 		"  -biome-map <file>  ; load a custom biome color map from the specified file\n" +
-		"  -create-tile-html  ; generate tiles.html in the output directory\n" +
+		"  -create-tile-html  ; generate tiles.json, listing the tiles, and tiles.html,\n" +
+		"                     ; which shows them, in the output directory\n" +
 		"  -create-image-tree ; generate a PicGrid-compatible image tree\n" +
 		"  -create-big-image  ; merges all rendered images into a single file\n" +
+		"  -create-pyramid    ; build a z/x/y tile pyramid for web map viewers in\n" +
+		"                     ; 'pyramid/', remaking only tiles over changed regions\n" +
 		"  -min-height <y>    ; only draw blocks above this height\n" +
 		"  -max-height <y>    ; only draw blocks below this height\n" +
+		"  -slices <y0>-<y1>,... ; render each height range into its own subdirectory\n" +
+		"                     ; of the output directory, decoding the world only once\n" +
+		"                     ; (overrides -min-height and -max-height)\n" +
+		"  -products <p>,...  ; images to produce in the same pass, each as its own\n" +
+		"                     ; set of tiles: surface (the color map, default),\n" +
+		"                     ; heightmap (in 'heightmap/' under each slice's directory,\n" +
+		"                     ; black at the bottom of the slice or of the world,\n" +
+		"                     ; y=-64, and white at the top, whichever are nearer)\n" +
+		"                     ; and biomes (in 'biomes/')\n" +
 		"  -region-limit-rect <x0> <y0> <x1> <y1> ; limit which regions are rendered\n" +
 		"                     ; to those between the given region coordinates, e.g.\n" +
 		"                     ; 0 0 2 2 to render the 4 regions southeast of the origin.\n" +
+		"  -crop <x0> <z0> <x1> <z1> ; instead of tiles, render exactly the blocks\n" +
+		"                     ; between the given block coordinates into one image\n" +
+		"                     ; per tile set, named crop.<x0>.<z0>.<x1>.<z1>.png,\n" +
+		"                     ; decoding only the chunks that overlap them\n" +
 		"  -altitude-shading-factor <f>    ; how much altitude affects shading [36]\n" +
 		"  -shading-reference-altitude <y> ; reference altitude for shading [64]\n" +
 		"  -min-altitude-shading <x>       ; lowest altitude shading modifier [-20]\n" +
 		"  -max-altitude-shading <x>       ; highest altitude shading modifier [20]\n" +
 		"  -title <title>     ; title to include with maps\n" +
 		"  -scales 1:<n>,...  ; list scales at which to render\n" +
-		"  -threads <n>       ; maximum number of CPU threads to use for rendering\n" +
+		"  -threads <n>       ; number of CPU threads to plan for [all of them]; the\n" +
+		"                     ; threads of each stage of rendering are worked out from\n" +
+		"                     ; it, so more than n threads run in all (see -stage-threads)\n" +
+		"  -cooperate         ; share the work with other processes rendering to the\n" +
+		"                     ; same output directory, possibly on other hosts;\n" +
+		"                     ; regions are claimed with lease files in '.leases/'\n" +
+		"  -lease-time <s>    ; seconds after which a lease that hasn't been renewed\n" +
+		"                     ; is taken to belong to a dead process [300]\n" +
+		"  -stage-threads <read>,<decode>,<shade>,<encode>,<write> ; number of threads\n" +
+		"                     ; for each stage of rendering [1,n,n/4,n/2,1 where n is\n" +
+		"                     ; the -threads value]; -debug shows how busy each stage was\n" +
+		"  -chunk-cache <dir> ; keep composited chunks in the given directory and reuse\n" +
+		"                     ; them for chunks whose stored data hasn't changed\n" +
+		"  -chunk-cache-size <MiB> ; how big the chunk cache may grow [512]\n" +
+		"  -save-surface-data ; keep each region's unshaded colors and heights in\n" +
+		"                     ; 'surface-data/' under each slice's directory\n" +
+		"  -reshade           ; regenerate surface and heightmap tiles from saved\n" +
+		"                     ; surface data with the current shading options,\n" +
+		"                     ; without reading the world\n" +
+		"  -watch             ; after rendering, keep running and re-render regions\n" +
+		"                     ; as the game saves them, updating tiles.html too\n" +
+		"  -watch-delay <s>   ; how long region files must go unwritten before\n" +
+		"                     ; they are re-rendered in -watch mode [5]\n" +
+		"  -serve <port>      ; instead of rendering to the output directory, serve\n" +
+		"                     ; tiles at http://localhost:<port>/, rendering them\n" +
+		"                     ; when they're first asked for; -o isn't needed\n" +
+		"  -serve-cache-size <MiB> ; how much memory -serve may keep tiles in [256]\n" +
+		"  -jobs <file>       ; run each line of the given file as a separate job, with\n" +
+		"                     ; the same arguments as this command, in one process;\n" +
+		"                     ; other options given here apply to every job\n" +
+		"  -memory-budget <MiB> ; how much heap the regions being rendered may use\n" +
+		"                     ; between them; fewer are rendered at once if they\n" +
+		"                     ; wouldn't fit, or while the heap is short [60% of max]\n" +
+		"  -png-compression <n> ; deflate level for tiles, from 0 (fastest) to 9\n" +
+		"                     ; (smallest) [4]\n" +
+		"  -png-encoder <e>   ; what to write PNG files with: builtin, which is faster,\n" +
+		"                     ; or imageio [builtin]\n" +
+		"  -png-palette <p>   ; write tiles with no more than 256 colors with a\n" +
+		"                     ; palette, which makes them smaller (exact), or reduce\n" +
+		"                     ; every tile to 256 colors to do so (lossy); how much\n" +
+		"                     ; was saved is reported at the end\n" +
+		"  -time-budget <t>   ; stop starting on regions after the given time, in\n" +
+		"                     ; seconds or with a unit (e.g. 50m, 2h), rendering\n" +
+		"                     ; the most recently changed regions first; regions\n" +
+		"                     ; left out of date go first next time\n" +
+		"  -no-journal        ; don't record progress in '.render-journal' in the\n" +
+		"                     ; output directory; by default a run that is\n" +
+		"                     ; interrupted carries on from there the next time\n" +
 		"\n" +
 		"Input files may be 'region/' directories or individual '.mca' files.\n" +
 		"\n" +
@@ -612,8 +1487,19 @@ public class RegionRenderer
 	{
 		public static RegionRendererCommand fromArguments( String...args ) {
 			RegionRendererCommand m = new RegionRendererCommand();
+			List<String> commonArgs = new ArrayList<String>();
+			for( int i = 0; i < args.length; ++i ) {
+				if( "-jobs".equals(args[i]) ) {
+					m.jobFile = new File(args[++i]);
+					continue;
+				}
+				commonArgs.add(args[i]);
+			}
+			m.commonArgs = commonArgs.toArray(new String[commonArgs.size()]);
 			for( int i = 0; i < args.length; ++i ) {
-				if( args[i].charAt(0) != '-' ) {
+				if( "-jobs".equals(args[i]) ) {
+					++i;
+				} else if( args[i].charAt(0) != '-' ) {
 					m.regionFiles.add(new File(args[i]));
 				} else if( "-o".equals(args[i]) ) {
 					m.outputDir = new File(args[++i]);
@@ -625,6 +1511,27 @@ public class RegionRenderer
 					m.minHeight = Integer.parseInt(args[++i]);
 				} else if( "-max-height".equals(args[i]) ) {
 					m.maxHeight = Integer.parseInt(args[++i]);
+				} else if( "-slices".equals(args[i]) ) {
+					String[] specs = args[++i].split(",");
+					Slice[] slices = new Slice[specs.length];
+					for( int j=0; j<specs.length; ++j ) {
+						slices[j] = Slice.parse(specs[j]);
+						if( slices[j] == null ) {
+							m.errorMessage = "Invalid slice: '"+specs[j]+"'; must be of the form '<min>-<max>' with min < max";
+							return m;
+						}
+					}
+					m.slices = slices;
+				} else if( "-products".equals(args[i]) ) {
+					m.products = EnumSet.noneOf(RenderProduct.class);
+					for( String name : args[++i].split(",") ) {
+						RenderProduct product = RenderProduct.forName(name);
+						if( product == null ) {
+							m.errorMessage = "Invalid product: '"+name+"'; must be one of surface, heightmap, biomes";
+							return m;
+						}
+						m.products.add(product);
+					}
 				} else if( "-create-tile-html".equals(args[i]) ) {
 					m.createTileHtml = Boolean.TRUE;
 				} else if( "-create-image-tree".equals(args[i]) ) {
@@ -635,8 +1542,16 @@ public class RegionRenderer
 					int maxX = Integer.parseInt(args[++i]);
 					int maxY = Integer.parseInt(args[++i]);
 					m.regionLimitRect = new BoundingRect( minX, minY, maxX, maxY );
+				} else if( "-crop".equals(args[i]) ) {
+					int minX = Integer.parseInt(args[++i]);
+					int minZ = Integer.parseInt(args[++i]);
+					int maxX = Integer.parseInt(args[++i]);
+					int maxZ = Integer.parseInt(args[++i]);
+					m.crop = new BoundingRect( minX, minZ, maxX, maxZ );
 				} else if( "-create-big-image".equals(args[i]) ) {
 					m.createBigImage = true;
+				} else if( "-create-pyramid".equals(args[i]) ) {
+					m.createPyramid = true;
 				} else if( "-color-map".equals(args[i]) ) {
 					m.colorMapFile = new File(args[++i]);
 				} else if( "-biome-map".equals(args[i]) ) {
@@ -666,6 +1581,100 @@ public class RegionRenderer
 						}
 					}
 					m.mapScales = invScales;
+				} else if( "-save-surface-data".equals(args[i]) ) {
+					m.saveSurfaceData = true;
+				} else if( "-reshade".equals(args[i]) ) {
+					m.reshade = true;
+				} else if( "-watch".equals(args[i]) ) {
+					m.watch = true;
+				} else if( "-watch-delay".equals(args[i]) ) {
+					m.watchDelay = Integer.parseInt(args[++i]);
+					if( m.watchDelay < 1 ) {
+						m.errorMessage = "Invalid watch delay; must be at least 1 second; given "+m.watchDelay;
+						return m;
+					}
+				} else if( "-serve".equals(args[i]) ) {
+					m.servePort = Integer.parseInt(args[++i]);
+					if( m.servePort < 0 || m.servePort > 65535 ) {
+						m.errorMessage = "Invalid port to serve on; given "+m.servePort;
+						return m;
+					}
+				} else if( "-serve-cache-size".equals(args[i]) ) {
+					m.serveCacheSize = Long.parseLong(args[++i]);
+					if( m.serveCacheSize < 1 ) {
+						m.errorMessage = "Invalid serve cache size; must be at least 1; given "+m.serveCacheSize;
+						return m;
+					}
+				} else if( "-memory-budget".equals(args[i]) ) {
+					m.memoryBudget = Long.parseLong(args[++i]);
+					if( m.memoryBudget < 1 ) {
+						m.errorMessage = "Invalid memory budget; must be at least 1; given "+m.memoryBudget;
+						return m;
+					}
+				} else if( "-png-compression".equals(args[i]) ) {
+					m.pngCompressionLevel = Integer.parseInt(args[++i]);
+					if( m.pngCompressionLevel < 0 || m.pngCompressionLevel > 9 ) {
+						m.errorMessage = "Invalid PNG compression level; must be from 0 to 9; given "+m.pngCompressionLevel;
+						return m;
+					}
+				} else if( "-png-encoder".equals(args[i]) ) {
+					String encoder = args[++i];
+					if( "imageio".equals(encoder) ) {
+						m.imageIOPNG = true;
+					} else if( "builtin".equals(encoder) ) {
+						m.imageIOPNG = false;
+					} else {
+						m.errorMessage = "Invalid PNG encoder: '"+encoder+"'; must be builtin or imageio";
+						return m;
+					}
+				} else if( "-png-palette".equals(args[i]) ) {
+					String palette = args[++i];
+					if( "exact".equals(palette) ) {
+						m.pngPalette = PNGEncoder.PaletteMode.EXACT;
+					} else if( "lossy".equals(palette) ) {
+						m.pngPalette = PNGEncoder.PaletteMode.LOSSY;
+					} else {
+						m.errorMessage = "Invalid PNG palette: '"+palette+"'; must be exact or lossy";
+						return m;
+					}
+				} else if( "-time-budget".equals(args[i]) ) {
+					m.timeBudget = parseDuration(args[++i]);
+					if( m.timeBudget <= 0 ) {
+						m.errorMessage = "Invalid time budget: '"+args[i]+"'; must be a number of seconds, optionally followed by s, m or h";
+						return m;
+					}
+				} else if( "-no-journal".equals(args[i]) ) {
+					m.journal = false;
+				} else if( "-chunk-cache".equals(args[i]) ) {
+					m.chunkCacheDir = new File(args[++i]);
+				} else if( "-chunk-cache-size".equals(args[i]) ) {
+					m.chunkCacheSize = Long.parseLong(args[++i]);
+					if( m.chunkCacheSize < 1 ) {
+						m.errorMessage = "Invalid chunk cache size; must be at least 1; given "+m.chunkCacheSize;
+						return m;
+					}
+				} else if( "-cooperate".equals(args[i]) ) {
+					m.cooperate = true;
+				} else if( "-lease-time".equals(args[i]) ) {
+					m.leaseTime = Integer.parseInt(args[++i]);
+					if( m.leaseTime < 1 ) {
+						m.errorMessage = "Invalid lease time; must be at least 1 second; given "+m.leaseTime;
+						return m;
+					}
+				} else if( "-stage-threads".equals(args[i]) ) {
+					String[] counts = args[++i].split(",");
+					if( counts.length != RenderPipeline.STAGE_NAMES.length ) {
+						m.errorMessage = "Invalid stage thread counts: '"+args[i]+"'; must give one for each of read, decode, shade, encode and write";
+						return m;
+					}
+					m.stageThreads = new int[counts.length];
+					for( int j=0; j<counts.length; ++j ) {
+						m.stageThreads[j] = Integer.parseInt(counts[j]);
+						if( m.stageThreads[j] < 1 ) {
+							m.errorMessage = "Invalid thread count for "+RenderPipeline.STAGE_NAMES[j]+" stage; must be at least 1; given "+m.stageThreads[j];
+							return m;
+						}
+					}
 				} else if( "-threads".equals(args[i]) ) {
 					m.threadCount = Integer.parseInt(args[++i]);
 					if( m.threadCount < 1 ) {
@@ -681,11 +1690,31 @@ public class RegionRenderer
 			return m;
 		}
 		
+		/** @return the number of milliseconds in a duration such as "90", "90s", "50m" or "2h", or -1 if it isn't one */
+		protected static long parseDuration( String s ) {
+			Matcher m = Pattern.compile("^(\\d{1,9})([smh]?)$").matcher(s);
+			if( !m.matches() ) return -1;
+			long n = Long.parseLong(m.group(1));
+			String unit = m.group(2);
+			return n * 1000 * ("h".equals(unit) ? 3600 : "m".equals(unit) ? 60 : 1);
+		}
+		
 		private static String validateSettings( RegionRendererCommand m ) {
-			if( m.regionFiles.size() == 0 )
+			if( m.jobFile != null )
+				// Checked for each job
+				return null;
+			else if( m.regionFiles.size() == 0 )
 				return "No regions or directories specified.";
-			else if( m.outputDir == null )
+			else if( m.outputDir == null && m.servePort < 0 )
 				return "Output directory unspecified.";
+			else if( m.watch && m.reshade )
+				return "-watch can't be used with -reshade, which doesn't read the world.";
+			else if( m.pngPalette != PNGEncoder.PaletteMode.NONE && m.imageIOPNG )
+				return "-png-palette can't be used with -png-encoder imageio.";
+			else if( m.crop != null && (m.watch || m.reshade || m.servePort >= 0) )
+				return "-crop can't be used with -watch, -reshade or -serve.";
+			else if( m.crop != null && (m.crop.maxX <= m.crop.minX || m.crop.maxY <= m.crop.minY) )
+				return "Crop area is empty; the second corner must be east and south of the first.";
 			else
 				return null;
 		}
@@ -700,16 +1729,44 @@ public class RegionRenderer
 		Boolean createTileHtml = null;
 		Boolean createImageTree = null;
 		boolean createBigImage = false;
+		boolean createPyramid = false;
 		BoundingRect regionLimitRect = BoundingRect.INFINITE;
+		BoundingRect crop = null;
 		int minHeight = Integer.MIN_VALUE;
 		int maxHeight = Integer.MAX_VALUE;
+		Slice[] slices = null;
+		EnumSet<RenderProduct> products = EnumSet.of(RenderProduct.SURFACE);
 		int shadingReferenceAltitude = 64;
 		int minAltitudeShading = -20;
 		int maxAltitudeShading = +20;
 		int altitudeShadingFactor = 36;
 		int[] mapScales = {1};
 		int threadCount = Runtime.getRuntime().availableProcessors();
+		int[] stageThreads = null;
+		boolean cooperate = false;
+		int leaseTime = 300;
 		String mapTitle = "Regions";
+		File chunkCacheDir = null;
+		long chunkCacheSize = 512;
+		boolean saveSurfaceData = false;
+		boolean reshade = false;
+		boolean journal = true;
+		boolean watch = false;
+		int watchDelay = 5;
+		int servePort = -1;
+		long serveCacheSize = 256;
+		long memoryBudget = 0;
+		long timeBudget = 0;
+		int pngCompressionLevel = PNGEncoder.DEFAULT_LEVEL;
+		boolean imageIOPNG = false;
+		PNGEncoder.PaletteMode pngPalette = PNGEncoder.PaletteMode.NONE;
+		File jobFile = null;
+		/** Arguments other than -jobs, which go before those of each job */
+		String[] commonArgs = {};
+		/** The batch this command is a job of, whose color maps and threads it shares, if any */
+		BatchJobs batch = null;
+		/** The renderer used by {@link #run()} */
+		RegionRenderer renderer;
 		
 		String errorMessage = null;
 		
@@ -735,27 +1792,83 @@ public class RegionRenderer
 				System.out.println( USAGE );
 				return 0;
 			}
+			if( jobFile != null ) {
+				return new BatchJobs().run( commonArgs, BatchJobs.read(jobFile) );
+			}
 			
 			RegionMap rm = RegionMap.load(regionFiles, regionLimitRect);
-			RegionRenderer rr = new RegionRenderer(new RenderSettings(
+			RenderSettings settings = new RenderSettings(
 					colorMapFile, biomeMapFile, debug, minHeight, maxHeight,
 				shadingReferenceAltitude, minAltitudeShading, maxAltitudeShading, altitudeShadingFactor,
 				mapTitle, mapScales
-			));
+			);
+			settings.slices = slices;
+			settings.products = products;
+			settings.chunkCacheDir = chunkCacheDir;
+			settings.chunkCacheSize = chunkCacheSize * 1024 * 1024;
+			settings.saveSurfaceData = saveSurfaceData;
+			settings.reshade = reshade;
+			settings.journal = journal;
+			settings.memoryBudget = memoryBudget * 1024 * 1024;
+			settings.timeBudget = timeBudget;
+			settings.pngCompressionLevel = pngCompressionLevel;
+			settings.imageIOPNG = imageIOPNG;
+			settings.pngPalette = pngPalette;
+			settings.cooperate = cooperate;
+			settings.leaseTime = leaseTime * 1000L;
+			RegionRenderer rr = batch == null ? new RegionRenderer(settings) :
+				new RegionRenderer(settings, batch.getBlockMap(colorMapFile), batch.getBiomeMap(biomeMapFile));
+			renderer = rr;
+			
+			if( crop != null ) {
+				for( File f : rr.writeCrop(rm, crop, outputDir) ) System.err.println("Wrote " + f);
+				return 0;
+			}
+			
+			if( servePort >= 0 ) {
+				TileServer server = new TileServer(rr, regionFiles, serveCacheSize * 1024 * 1024);
+				int port = server.start(servePort, threadCount);
+				System.err.println("Serving tiles at http://localhost:" + port + "/");
+				// Until the process is killed
+				new CountDownLatch(1).await();
+			}
+			
+			// Start watching before the first render so that nothing saved during it is missed
+			RegionWatcher watcher = watch ? new RegionWatcher(regionFiles, watchDelay * 1000L) : null;
 			
-			rr.renderAll(rm, outputDir, forceReRender, threadCount);
+			int[] threads = stageThreads != null ? stageThreads : RenderPipeline.defaultStageThreads(threadCount);
+			RenderPipeline pipeline = new RenderPipeline(rr, outputDir, forceReRender, threads);
+			if( batch != null ) pipeline.setExecutor(batch.executor);
+			rr.renderAllStaged(rm, pipeline);
+			System.err.println("Tiles: " + rr.timer.tilesWritten.get() + " written, " +
+				rr.timer.tilesUnchanged.get() + " unchanged and left as they were");
+			if( pngPalette != PNGEncoder.PaletteMode.NONE && !imageIOPNG ) {
+				System.err.println(rr.getPNGEncoder().stats.format());
+			}
 			
 			if( debug ) {
 				final Timer tim = rr.timer;
-				System.err.println("Rendered " + tim.regionCount + " regions, " + tim.sectionCount + " sections in " + (tim.total) + "ms");
+				System.err.println("Rendered " + tim.regionCount.get() + " regions, " + tim.sectionCount.get() + " sections in " + tim.total.get()/1000000 + "ms");
 				System.err.println("The following times lines indicate milliseconds total, per region, and per section");
-				System.err.println(tim.formatTime("Loading",         tim.regionLoading));
-				System.err.println(tim.formatTime("Pre-rendering",   tim.preRendering));
-				System.err.println(tim.formatTime("Post-processing", tim.postProcessing));
-				System.err.println(tim.formatTime("Image saving",    tim.imageSaving));
-				System.err.println(tim.formatTime("Total",           tim.total));
+				System.err.println(tim.formatTime("Loading",         tim.regionLoading.get()));
+				System.err.println(tim.formatTime("Pre-rendering",   tim.preRendering.get()));
+				System.err.println(tim.formatTime("Post-processing", tim.postProcessing.get()));
+				System.err.println(tim.formatTime("Image saving",    tim.imageSaving.get()));
+				System.err.println(tim.formatTime("Total",           tim.total.get()));
+				System.err.println();
+				System.err.print(pipeline.formatUtilization());
+				System.err.println();
+				
+				System.err.println("Memory governor decisions:");
+				for( String decision : rr.getMemoryGovernor().getDecisions() ) System.err.println("  " + decision);
 				System.err.println();
 				
+				if( rr.chunkCache != null ) {
+					System.err.println("Chunk cache: " + tim.chunkCacheHits.get() + " hits, " + tim.chunkCacheMisses.get() + " misses; " +
+						rr.chunkCache.getEntryCount() + " entries taking " + rr.chunkCache.getTotalSize()/1024 + " KiB");
+					System.err.println();
+				}
+				
 				if( rr.defaultedBlockIds.size() > 0 ) {
 					System.err.println("The following block IDs were not explicitly mapped to colors:");
 					int z=0;
@@ -800,12 +1913,57 @@ public class RegionRenderer
 				System.err.println();
 			}
 			
-			if( shouldCreateTileHtml()  ) rr.createTileHtml(rm.minX, rm.minZ, rm.maxX, rm.maxZ, outputDir);
+			for( TileSet tileSet : settings.getTileSets(outputDir) ) {
+				if( shouldCreateTileHtml() ) rr.createTileHtml(tileSet.directory);
+				if( createBigImage ) rr.createBigImage(rm, tileSet.directory);
+				if( createPyramid ) rr.createPyramid(rm, tileSet.directory);
+			}
 			if( shouldCreateImageTree() ) rr.createImageTree(rm);
-			if( createBigImage ) rr.createBigImage(rm, outputDir);
+			
+			if( watcher != null ) {
+				try {
+					watch( rr, rm, watcher, new RenderPipeline(rr, outputDir, false, threads) );
+				} finally {
+					watcher.close();
+				}
+			}
 			
 			return 0;
 		}
+		
+		/**
+		 * Re-render regions as they are saved, until the process is killed.
+		 * The renderer, along with its color maps, tile digests and render
+		 * contexts, is kept between renders.
+		 */
+		protected void watch( RegionRenderer rr, RegionMap rm, RegionWatcher watcher, RenderPipeline pipeline )
+			throws IOException, InterruptedException
+		{
+			System.err.println("Watching for changes to region files...");
+			while( true ) {
+				Set<File> changed = watcher.awaitChanges();
+				RegionMap changedMap = RegionMap.load(new ArrayList<File>(changed), regionLimitRect);
+				if( changedMap.regions.isEmpty() ) continue;
+				
+				long startTime = System.currentTimeMillis();
+				int regionCount = rr.timer.regionCount.get();
+				rr.renderAllStaged(changedMap, pipeline);
+				System.err.println("Re-rendered " + (rr.timer.regionCount.get() - regionCount) + " of " +
+					changedMap.regions.size() + " changed regions in " + (System.currentTimeMillis() - startTime) + "ms");
+				
+				// The manifest takes in the tiles the render recorded, and the
+				// pyramid only needs remaking above the changed regions
+				for( Region r : changedMap.regions ) {
+					if( rm.regionAt(r.rx, r.rz) == null ) rm.addRegion(r);
+				}
+				if( shouldCreateTileHtml() ) {
+					for( TileSet tileSet : rr.settings.getTileSets(outputDir) ) rr.createTileHtml(tileSet.directory);
+				}
+				if( createPyramid ) {
+					for( TileSet tileSet : rr.settings.getTileSets(outputDir) ) rr.createPyramid(rm, changedMap.regions, tileSet.directory);
+				}
+			}
+		}
 	}
 	
 	public static void main( String[] args ) throws Exception {
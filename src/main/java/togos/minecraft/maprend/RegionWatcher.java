@@ -0,0 +1,106 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches region directories for region files being written.
+ *
+ * The game writes a region file many times over while saving the world,
+ * so {@link #awaitChanges()} waits for things to go quiet (or for a
+ * limit to pass, in case they never do) before reporting what changed.
+ */
+public class RegionWatcher
+{
+	protected final WatchService watchService;
+	protected final Map<WatchKey,File> directories = new HashMap<WatchKey,File>();
+	/** Individual region files to report changes to, or null to report all of them */
+	protected final Set<File> files;
+	/** How long things must be quiet for before changes are reported */
+	public final long quietMillis;
+	/** Longest time to hold back changes while files keep being written */
+	public final long maxDelayMillis;
+
+	/**
+	 * @param inputs region directories and individual region files, as given to {@link RegionMap#load(List, BoundingRect)}
+	 */
+	public RegionWatcher( List<File> inputs, long quietMillis ) throws IOException {
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.quietMillis = quietMillis;
+		this.maxDelayMillis = quietMillis * 12;
+		Set<File> dirs = new HashSet<File>();
+		Set<File> files = new HashSet<File>();
+		boolean allFiles = false;
+		for( File f : inputs ) {
+			f = f.getAbsoluteFile();
+			if( f.isDirectory() ) {
+				dirs.add(f);
+				allFiles = true;
+			} else {
+				dirs.add(f.getParentFile());
+				files.add(f);
+			}
+		}
+		this.files = allFiles ? null : files;
+		for( File dir : dirs ) {
+			WatchKey key = dir.toPath().register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			directories.put(key, dir);
+		}
+	}
+
+	protected boolean isWatched( File f ) {
+		return RegionMap.rfpat.matcher(f.getName()).matches() && (files == null || files.contains(f));
+	}
+
+	/** Add the region files that the key's events are about to changed */
+	protected void collect( WatchKey key, Set<File> changed ) {
+		File dir = directories.get(key);
+		for( WatchEvent<?> event : key.pollEvents() ) {
+			if( dir == null ) continue;
+			if( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+				// Events were lost; assume everything changed and let the usual up-to-date check sort it out
+				File[] all = dir.listFiles();
+				if( all != null ) for( File f : all ) if( isWatched(f) ) changed.add(f);
+				continue;
+			}
+			File f = new File(dir, ((Path)event.context()).toString());
+			if( isWatched(f) ) changed.add(f);
+		}
+		key.reset();
+	}
+
+	/**
+	 * Wait until some region files have been written and then stopped being written.
+	 * @return the region files that were written
+	 */
+	public Set<File> awaitChanges() throws InterruptedException {
+		Set<File> changed = new TreeSet<File>();
+		while( changed.isEmpty() ) collect(watchService.take(), changed);
+		long deadline = System.currentTimeMillis() + maxDelayMillis;
+		long wait;
+		while( (wait = Math.min(quietMillis, deadline - System.currentTimeMillis())) > 0 ) {
+			WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+			if( key == null ) break;
+			collect(key, changed);
+		}
+		return changed;
+	}
+
+	public void close() throws IOException {
+		watchService.close();
+	}
+}
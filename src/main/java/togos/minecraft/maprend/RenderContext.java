@@ -0,0 +1,97 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Owns all of the scratch buffers needed to render a single region,
+ * so that they can be reused from one region to the next instead of
+ * being allocated (and thrown away) every time.
+ *
+ * A context may be used for any number of regions, but only by one
+ * thread at a time.  {@link RegionRenderer#getRenderContext()} hands
+ * out one context per thread.
+ */
+public class RenderContext
+{
+	/** Buffers for one {@link Slice} of a region */
+	public static class SliceBuffers {
+		/** Pre-multiplied, unshaded color of each column in the region */
+		public final int[] surfaceColor = new int[512*512];
+		/** Height of the top of the topmost opaque block of each column in the region */
+		public final short[] surfaceHeight = new short[512*512];
+		/**
+		 * Image that the final colors are written into.
+		 * Its contents are only valid until the next region is rendered with this context.
+		 */
+		public final BufferedImage image = newImage();
+		/** The ARGB array backing image; writes to it show up in the image directly */
+		public final int[] imagePixels = pixels(image);
+		
+		private BufferedImage heightmapImage;
+		
+		/** Image for {@link RenderProduct#HEIGHTMAP}, allocated the first time it is needed */
+		public BufferedImage getHeightmapImage() {
+			if( heightmapImage == null ) heightmapImage = newImage();
+			return heightmapImage;
+		}
+	}
+	
+	protected static BufferedImage newImage() {
+		return new BufferedImage( 512, 512, BufferedImage.TYPE_INT_ARGB );
+	}
+	
+	protected static int[] pixels( BufferedImage image ) {
+		return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+	}
+
+	protected final ChunkSections sections = new ChunkSections();
+	protected final byte[] biomeIds = new byte[16*16];
+
+	private SliceBuffers[] slices = new SliceBuffers[0];
+	private BufferedImage biomeImage;
+	/** Color and height of the column currently being composited, one entry per slice */
+	protected int[] columnColor = new int[0];
+	protected short[] columnHeight = new short[0];
+
+	/**
+	 * Make sure there are buffers for sliceCount slices,
+	 * keeping any that already exist.
+	 */
+	public void setSliceCount( int sliceCount ) {
+		if( slices.length == sliceCount ) return;
+		SliceBuffers[] newSlices = new SliceBuffers[sliceCount];
+		for( int i=0; i<sliceCount; ++i ) {
+			newSlices[i] = i < slices.length ? slices[i] : new SliceBuffers();
+		}
+		slices = newSlices;
+		columnColor = new int[sliceCount];
+		columnHeight = new short[sliceCount];
+	}
+
+	public int getSliceCount() {
+		return slices.length;
+	}
+
+	public SliceBuffers getSlice( int slice ) {
+		return slices[slice];
+	}
+	
+	/** Image for {@link RenderProduct#BIOMES}, allocated the first time it is needed */
+	public BufferedImage getBiomeImage() {
+		if( biomeImage == null ) biomeImage = newImage();
+		return biomeImage;
+	}
+	
+	/**
+	 * @return the image produced for the given tile set by the most recent render with this context
+	 */
+	public BufferedImage getImage( TileSet tileSet ) {
+		switch( tileSet.product ) {
+		case SURFACE: return getSlice(tileSet.sliceIndex).image;
+		case HEIGHTMAP: return getSlice(tileSet.sliceIndex).getHeightmapImage();
+		case BIOMES: return getBiomeImage();
+		default: throw new RuntimeException("Unknown product: "+tileSet.product);
+		}
+	}
+}
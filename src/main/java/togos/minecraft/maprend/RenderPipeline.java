@@ -0,0 +1,373 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.RegionRenderer.EncodedTile;
+import togos.minecraft.maprend.io.RegionFile;
+
+/**
+ * Renders regions in stages, each with its own threads, connected by
+ * bounded queues so that a slow stage holds back the ones before it
+ * instead of letting work pile up in memory:
+ *
+ *   read   - check whether the region is outdated and read its chunks, still compressed
+ *   decode - inflate, parse and composite the chunks (or load saved surface data when re-shading)
+ *   shade  - turn colors and heights into final pixels
+ *   encode - compare with the existing tiles and encode the changed ones as PNGs
+ *   write  - write the encoded tiles out
+ *
+ * Render contexts are taken from a pool by the decode stage and given
+ * back once the encode stage is done with them.  The pool makes them as
+ * they're needed, and lets go of idle ones while the memory governor's
+ * budget is lowered.
+ *
+ * Each stage keeps track of how much of its threads' time was spent
+ * working, waiting for input and waiting for room in the next stage's
+ * queue (or for a render context); see {@link #formatUtilization()}.
+ * A stage that is mostly busy while the others wait is the one to give more threads.
+ */
+public class RenderPipeline
+{
+	public static final String[] STAGE_NAMES = { "read", "decode", "shade", "encode", "write" };
+	public static final int READ = 0, DECODE = 1, SHADE = 2, ENCODE = 3, WRITE = 4;
+
+	/** Reasonable thread counts for each stage for a machine with the given number of CPU threads */
+	public static int[] defaultStageThreads( int threadCount ) {
+		return new int[] { 1, threadCount, Math.max(1, threadCount/4), Math.max(1, threadCount/2), 1 };
+	}
+
+	/** One region on its way through the pipeline */
+	static class RegionJob {
+		final Region region;
+		boolean reshade;
+		byte[][] chunks;
+		long sourceLastModified;
+		RenderContext ctx;
+		List<EncodedTile> tiles;
+
+		RegionJob( Region region ) {
+			this.region = region;
+		}
+	}
+
+	/** Marks the end of a queue */
+	private static final RegionJob END = new RegionJob(null);
+
+	abstract class Stage {
+		public final String name;
+		public final int threadCount;
+		protected final BlockingQueue<RegionJob> input;
+		protected BlockingQueue<RegionJob> output;
+		protected final boolean needsContext;
+		private final AtomicInteger running;
+		public final AtomicInteger jobCount = new AtomicInteger();
+		public final AtomicLong busyNanos = new AtomicLong();
+		public final AtomicLong starvedNanos = new AtomicLong();
+		public final AtomicLong blockedNanos = new AtomicLong();
+
+		Stage( int index, int threadCount, boolean needsContext ) {
+			this.name = STAGE_NAMES[index];
+			this.threadCount = threadCount;
+			this.input = new ArrayBlockingQueue<RegionJob>(Math.max(2, threadCount*2));
+			this.needsContext = needsContext;
+			this.running = new AtomicInteger(threadCount);
+		}
+
+		/** @return the next job, or null if there are no more */
+		protected RegionJob take() throws InterruptedException {
+			RegionJob job = input.take();
+			if( job == END ) {
+				// Let this stage's other threads see it, too
+				input.put(END);
+				return null;
+			}
+			return job;
+		}
+
+		/**
+		 * Do this stage's part of a job.
+		 * @return true to pass the job on to the next stage, false to drop it
+		 */
+		protected abstract boolean process( RegionJob job ) throws Exception;
+
+		protected void runThread() throws InterruptedException {
+			try {
+				while( true ) {
+					long t0 = System.nanoTime();
+					RegionJob job = take();
+					long t1 = System.nanoTime();
+					starvedNanos.addAndGet(t1 - t0);
+					if( job == null ) return;
+
+					if( needsContext && job.ctx == null ) {
+						job.ctx = takeContext();
+						t0 = t1;
+						t1 = System.nanoTime();
+						blockedNanos.addAndGet(t1 - t0);
+					}
+
+					boolean keep, failed = false;
+					try {
+						keep = process(job);
+					} catch( Exception e ) {
+						System.err.println("Error in "+name+" stage for region "+job.region.rx+", "+job.region.rz);
+						e.printStackTrace(System.err);
+						keep = false;
+						failed = true;
+					}
+					long t2 = System.nanoTime();
+					busyNanos.addAndGet(t2 - t1);
+					jobCount.incrementAndGet();
+
+					if( !keep || output == null ) {
+						releaseContext(job);
+						if( failed ) renderer.regionFailed(job.region, outputDir);
+						else renderer.regionCompleted(job.region);
+						regionQueue.done(job.region);
+					} else {
+						output.put(job);
+						blockedNanos.addAndGet(System.nanoTime() - t2);
+					}
+				}
+			} finally {
+				if( running.decrementAndGet() == 0 && output != null ) output.put(END);
+			}
+		}
+
+		void start( List<Thread> threads, List<Future<?>> tasks ) {
+			for( int i=0; i<threadCount; ++i ) {
+				Runnable worker = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							runThread();
+						} catch( InterruptedException e ) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				};
+				if( executor != null ) {
+					tasks.add(executor.submit(worker));
+				} else {
+					Thread t = new Thread(worker, "TMCMR "+name+" "+i);
+					threads.add(t);
+					t.start();
+				}
+			}
+		}
+	}
+
+	protected final RegionRenderer renderer;
+	protected final RenderSettings settings;
+	protected final File outputDir;
+	protected final boolean force;
+	protected final int[] stageThreads;
+
+	private ExecutorService executor;
+	private final List<RenderContext> idleContexts = new ArrayList<RenderContext>();
+	/** Number of contexts made and not let go of, idle or in use */
+	private int contextCount;
+	private int maxContexts;
+	private RegionQueue regionQueue;
+	private List<Stage> stages = new ArrayList<Stage>();
+	private long wallNanos;
+
+	public RenderPipeline( RegionRenderer renderer, File outputDir, boolean force, int[] stageThreads ) {
+		if( stageThreads.length != STAGE_NAMES.length ) {
+			throw new IllegalArgumentException("Need a thread count for each of the "+STAGE_NAMES.length+" stages; given "+stageThreads.length);
+		}
+		this.renderer = renderer;
+		this.settings = renderer.settings;
+		this.outputDir = outputDir;
+		this.force = force;
+		this.stageThreads = stageThreads.clone();
+	}
+
+	/**
+	 * Run the stages' threads on the given executor, e.g. one shared by several
+	 * renders, instead of starting new ones.  It must be able to run all of
+	 * the pipeline's threads at once.
+	 */
+	public void setExecutor( ExecutorService executor ) {
+		this.executor = executor;
+	}
+
+	/** @return the most render contexts to keep, which is fewer while the governor's budget is lowered */
+	protected int getContextLimit() {
+		return Math.min(maxContexts, renderer.getMemoryGovernor().getEffectiveMaxConcurrent());
+	}
+
+	/** @return how many render contexts are being kept, idle or in use */
+	public synchronized int getContextCount() {
+		return contextCount;
+	}
+
+	/** Take an idle render context, or make one if the limit allows, or else wait for one to be given back */
+	protected synchronized RenderContext takeContext() throws InterruptedException {
+		while( true ) {
+			if( !idleContexts.isEmpty() ) return idleContexts.remove(idleContexts.size()-1);
+			if( contextCount < getContextLimit() ) {
+				++contextCount;
+				return new RenderContext();
+			}
+			// Some other thread has one, and will give it back
+			wait();
+		}
+	}
+
+	protected synchronized void releaseContext( RegionJob job ) {
+		if( job.ctx != null ) {
+			idleContexts.add(job.ctx);
+			job.ctx = null;
+			dropIdleContexts();
+			notifyAll();
+		}
+	}
+
+	/** Let go of idle contexts beyond the current limit so that they can be collected */
+	protected synchronized void dropIdleContexts() {
+		int limit = getContextLimit(), dropped = 0;
+		while( contextCount > limit && !idleContexts.isEmpty() ) {
+			idleContexts.remove(idleContexts.size()-1);
+			--contextCount;
+			++dropped;
+		}
+		if( dropped > 0 ) {
+			renderer.getMemoryGovernor().log("Letting go of " + dropped + " idle render contexts; " +
+				contextCount + " kept for at most " + limit + " regions at once");
+		}
+	}
+
+	/**
+	 * Render the regions from the given queue, returning once they're all done.
+	 * May be called again to render more regions.
+	 */
+	public void run( RegionQueue regionQueue ) throws InterruptedException {
+		this.regionQueue = regionQueue;
+		final List<TileSet> tileSets = settings.getTileSets(outputDir);
+		final List<TileSet> reshadeTileSets = renderer.getReshadeTileSets(outputDir);
+
+		// Enough for every thread that holds one to have one, plus a couple waiting to be shaded or encoded;
+		// kept for the next run, since they're big, unless the memory budget has been lowered since
+		synchronized( this ) {
+			// No more than the memory budget allows to be in flight, though
+			maxContexts = Math.min(stageThreads[DECODE] + stageThreads[SHADE] + stageThreads[ENCODE] + 2,
+				renderer.getMemoryGovernor().getMaxConcurrent());
+			dropIdleContexts();
+		}
+
+		stages.clear();
+		stages.add(new Stage(READ, stageThreads[READ], false) {
+			@Override
+			protected RegionJob take() throws InterruptedException {
+				Region r = regionQueue.take();
+				return r == null ? null : new RegionJob(r);
+			}
+
+			@Override
+			protected boolean process( RegionJob job ) throws Exception {
+				Region r = job.region;
+				if( settings.reshade ) {
+					job.reshade = true;
+					return true;
+				}
+				if( !renderer.checkRegion(r, outputDir, force) ) return false;
+				RegionFile rf = new RegionFile(r.regionFile);
+				try {
+					job.chunks = RegionRenderer.readChunks(rf);
+					job.sourceLastModified = rf.lastModified();
+				} finally {
+					rf.close();
+				}
+				return true;
+			}
+		});
+		stages.add(new Stage(DECODE, stageThreads[DECODE], true) {
+			@Override
+			protected boolean process( RegionJob job ) throws Exception {
+				if( job.reshade ) {
+					job.sourceLastModified = renderer.loadSurfaceData(job.region, outputDir, job.ctx);
+					if( job.sourceLastModified < 0 ) return false;
+				} else {
+					renderer.preRender(job.chunks, job.ctx, job.region.regionFile);
+					job.chunks = null;
+				}
+				renderer.timer.regionCount.incrementAndGet();
+				return true;
+			}
+		});
+		stages.add(new Stage(SHADE, stageThreads[SHADE], false) {
+			@Override
+			protected boolean process( RegionJob job ) {
+				renderer.postProcess(job.ctx);
+				return true;
+			}
+		});
+		stages.add(new Stage(ENCODE, stageThreads[ENCODE], false) {
+			@Override
+			protected boolean process( RegionJob job ) throws Exception {
+				Region r = job.region;
+				List<TileSet> jobTileSets = job.reshade ? reshadeTileSets : tileSets;
+				if( job.reshade && !jobTileSets.isEmpty() ) r.imageFile = jobTileSets.get(0).getImageFile(r.rx, r.rz);
+				long t0 = System.nanoTime();
+				job.tiles = renderer.encodeTiles(r, job.ctx, jobTileSets, job.sourceLastModified);
+				renderer.timer.imageSaving.addAndGet(System.nanoTime() - t0);
+				if( settings.saveSurfaceData && !job.reshade ) renderer.saveSurfaceData(r, outputDir, job.ctx);
+				releaseContext(job);
+				return !job.tiles.isEmpty();
+			}
+		});
+		stages.add(new Stage(WRITE, stageThreads[WRITE], false) {
+			@Override
+			protected boolean process( RegionJob job ) {
+				long t0 = System.nanoTime();
+				for( EncodedTile tile : job.tiles ) renderer.writeTile(tile);
+				renderer.timer.imageSaving.addAndGet(System.nanoTime() - t0);
+				return true;
+			}
+		});
+		for( int i=0; i+1<stages.size(); ++i ) stages.get(i).output = stages.get(i+1).input;
+
+		long startTime = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		for( Stage stage : stages ) stage.start(threads, tasks);
+		for( Thread t : threads ) t.join();
+		for( Future<?> task : tasks ) {
+			try {
+				task.get();
+			} catch( ExecutionException e ) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		wallNanos = System.nanoTime() - startTime;
+	}
+
+	/**
+	 * @return one line per stage showing its thread count, how many regions
+	 *   went through it, and what share of its threads' time was spent working,
+	 *   waiting for input and waiting on the next stage
+	 */
+	public String formatUtilization() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Stage utilization over "+wallNanos/1000000+"ms (busy / waiting for input / waiting on next stage):\n");
+		for( Stage stage : stages ) {
+			double total = Math.max(1, (double)wallNanos * stage.threadCount);
+			sb.append(String.format("%20s: %3d threads  % 6d regions  %5.1f%% / %5.1f%% / %5.1f%%\n",
+				stage.name, stage.threadCount, stage.jobCount.get(),
+				100 * stage.busyNanos.get() / total,
+				100 * stage.starvedNanos.get() / total,
+				100 * stage.blockedNanos.get() / total));
+		}
+		return sb.toString();
+	}
+}
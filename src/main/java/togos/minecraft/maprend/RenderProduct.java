@@ -0,0 +1,40 @@
+package togos.minecraft.maprend;
+
+/**
+ * The kinds of images that can be produced from one pass over a region.
+ * Each requested product is written as its own set of tiles.
+ */
+public enum RenderProduct
+{
+	/** The shaded color map */
+	SURFACE( "surface", null, true ),
+	/** Height of the topmost opaque block as a gray level, over the height range of the slice */
+	HEIGHTMAP( "heightmap", "heightmap", true ),
+	/** Biome ID of each column as a gray level; transparent where unknown */
+	BIOMES( "biomes", "biomes", false );
+	
+	/** Name used on the command line */
+	public final String name;
+	/**
+	 * Subdirectory (of the slice's directory for per-slice products,
+	 * otherwise of the output directory) that tiles are written to,
+	 * or null to write them to that directory itself
+	 */
+	public final String subdirectory;
+	/** Whether a separate image is produced for each slice */
+	public final boolean perSlice;
+	
+	private RenderProduct( String name, String subdirectory, boolean perSlice ) {
+		this.name = name;
+		this.subdirectory = subdirectory;
+		this.perSlice = perSlice;
+	}
+	
+	/** @return the product with the given command-line name, or null if there is none */
+	public static RenderProduct forName( String name ) {
+		for( RenderProduct p : values() ) {
+			if( p.name.equals(name) ) return p;
+		}
+		return null;
+	}
+}
@@ -1,6 +1,10 @@
 package togos.minecraft.maprend;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import togos.minecraft.maprend.io.PNGEncoder;
 
 public class RenderSettings {
 
@@ -23,6 +27,62 @@ public class RenderSettings {
 	public String	mapTitle					= "Regions";
 	public int[]	mapScales					= { 1 };
 
+	/**
+	 * Height ranges to render in the same pass, each to its own tile set.
+	 * If null, a single slice from minHeight to maxHeight is rendered to the output directory.
+	 */
+	public Slice[]	slices						= null;
+
+	/** Which images to produce; see {@link RenderProduct} */
+	public EnumSet<RenderProduct>	products	= EnumSet.of(RenderProduct.SURFACE);
+
+	/** Directory to keep a {@link ChunkCache} in, or null to not cache chunks */
+	public File		chunkCacheDir				= null;
+	/** Maximum total size in bytes of the chunk cache */
+	public long		chunkCacheSize				= 512L * 1024 * 1024;
+
+	/**
+	 * Keep each region's pre-shading colors and heights alongside its tiles
+	 * (see {@link #getSurfaceDataFile(File, int, int, int)}) so they can be re-shaded later
+	 */
+	public boolean	saveSurfaceData				= false;
+	/**
+	 * Regenerate tiles from saved surface data instead of from the world,
+	 * e.g. after changing the shading parameters
+	 */
+	public boolean	reshade						= false;
+
+	/**
+	 * Claim each region with a lease file in the output directory before rendering it,
+	 * so that several processes can share the work (see {@link RegionLeases})
+	 */
+	public boolean	cooperate					= false;
+	/** How long a lease lasts without being renewed, in milliseconds */
+	public long		leaseTime					= 5 * 60 * 1000;
+	/**
+	 * Keep a journal of the run's progress in the output directory, so that
+	 * an interrupted run can be resumed (see {@link RunJournal})
+	 */
+	public boolean	journal						= false;
+	/**
+	 * Bytes of heap that regions being rendered may use between them,
+	 * or 0 for {@link MemoryGovernor#defaultBudget()}
+	 */
+	public long		memoryBudget				= 0;
+	/**
+	 * Milliseconds after which to stop starting on regions, or 0 for no limit.
+	 * With a limit, regions changed most recently are rendered first.
+	 */
+	public long		timeBudget					= 0;
+	/** Deflate level for PNG files, from 0 (fastest) to 9 (smallest) */
+	public int		pngCompressionLevel			= PNGEncoder.DEFAULT_LEVEL;
+	/** Write PNG files with ImageIO instead of {@link PNGEncoder} */
+	public boolean	imageIOPNG					= false;
+	/** When to write tiles with a palette instead of in true color */
+	public PNGEncoder.PaletteMode	pngPalette	= PNGEncoder.PaletteMode.NONE;
+
+	private volatile ShadingTable	shadingTable;
+
 	public RenderSettings() {
 	}
 
@@ -45,4 +105,50 @@ public class RenderSettings {
 		this.mapTitle = mapTitle;
 		this.mapScales = mapScales;
 	}
+
+	/** The slices to render; see {@link #slices} */
+	public Slice[] getSlices() {
+		if (slices != null)
+			return slices;
+		return new Slice[] { new Slice(minHeight, maxHeight, null) };
+	}
+
+	/**
+	 * The tile sets that rendering writes to the given output directory:
+	 * one per slice for each per-slice product, and one for each other product.
+	 */
+	public List<TileSet> getTileSets(File outputDir) {
+		Slice[] slices = getSlices();
+		List<TileSet> tileSets = new ArrayList<TileSet>();
+		for (RenderProduct product : products) {
+			if (product.perSlice) {
+				for (int i = 0; i < slices.length; i++) {
+					File dir = getSliceDirectory(outputDir, i);
+					tileSets.add(new TileSet(product, i, product.subdirectory == null ? dir : new File(dir, product.subdirectory)));
+				}
+			} else {
+				tileSets.add(new TileSet(product, -1, new File(outputDir, product.subdirectory)));
+			}
+		}
+		return tileSets;
+	}
+
+	/** The directory that the given slice's tiles are written to */
+	public File getSliceDirectory(File outputDir, int sliceIndex) {
+		Slice slice = getSlices()[sliceIndex];
+		return slice.name == null ? outputDir : new File(outputDir, slice.name);
+	}
+
+	/** Where the surface data for a slice of a region is kept when {@link #saveSurfaceData} is set */
+	public File getSurfaceDataFile(File outputDir, int sliceIndex, int rx, int rz) {
+		return new File(getSliceDirectory(outputDir, sliceIndex), "surface-data/r." + rx + "." + rz + ".dat");
+	}
+
+	/** Lookup tables for the current shading parameters, rebuilt if any of them changed since the last call */
+	public ShadingTable getShadingTable() {
+		ShadingTable table = shadingTable;
+		if (table == null || !table.matches(this))
+			shadingTable = table = new ShadingTable(this);
+		return table;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+package togos.minecraft.maprend;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import togos.minecraft.maprend.RegionMap.Region;
+
+/**
+ * Records the progress of a render in its output directory so that,
+ * if the process is killed, the next run with the same settings can
+ * carry on where it stopped instead of checking every region again.
+ *
+ * The journal is a text file named {@link #FILENAME}, starting with a line
+ * identifying the run's settings, followed by a line for each tile about
+ * to be written ("T path") and each region finished ("R x z").  Lines are
+ * written straight through to the file as they happen, so they survive
+ * the process being killed (though not necessarily the machine crashing).
+ * The journal is deleted once a run has finished.
+ *
+ * The digests of tiles written by an interrupted run were never saved,
+ * so the ones on record can't be trusted; {@link #getInterruptedTiles()}
+ * lists those tiles so their digests can be forgotten.
+ */
+public class RunJournal
+{
+	public static final String FILENAME = ".render-journal";
+	protected static final String HEADER = "TMCMR run journal ";
+
+	public final File file;
+	protected final Set<String> completedRegions = new HashSet<String>();
+	protected final Set<File> interruptedTiles = new LinkedHashSet<File>();
+	private Writer writer;
+
+	/**
+	 * Open the journal in the given output directory, picking up the
+	 * progress of an interrupted run if it was made with the same settings.
+	 * @param runId identifies the settings of the run; see {@link RegionRenderer#getRunId(boolean)}
+	 */
+	public RunJournal( File outputDir, String runId ) throws IOException {
+		this.file = new File(outputDir, FILENAME);
+		boolean resuming = file.exists() && read(runId);
+		if( !resuming ) {
+			completedRegions.clear();
+			interruptedTiles.clear();
+		}
+		if( !outputDir.exists() ) outputDir.mkdirs();
+		writer = new OutputStreamWriter(new FileOutputStream(file, resuming), "UTF-8");
+		if( !resuming ) write(HEADER+runId+"\n");
+	}
+
+	private static String regionKey( Region r ) {
+		return r.rx+" "+r.rz;
+	}
+
+	/** @return true if the journal is from a run with the given ID */
+	private boolean read( String runId ) throws IOException {
+		byte[] data = new byte[(int)file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		String[] lines = new String(data, "UTF-8").split("\n", -1);
+		if( !(HEADER+runId).equals(lines[0]) ) return false;
+		// The last element is whatever follows the final newline: nothing,
+		// or a line cut short by the process being killed
+		for( int i=1; i<lines.length-1; ++i ) {
+			String line = lines[i];
+			if( line.startsWith("R ") ) {
+				completedRegions.add(line.substring(2));
+			} else if( line.startsWith("T ") ) {
+				interruptedTiles.add(new File(line.substring(2)));
+			}
+		}
+		return true;
+	}
+
+	private synchronized void write( String line ) throws IOException {
+		if( writer == null ) return;
+		writer.write(line);
+		writer.flush();
+	}
+
+	/** @return the number of regions finished by an interrupted run */
+	public int getCompletedCount() {
+		return completedRegions.size();
+	}
+
+	public boolean isCompleted( Region r ) {
+		return completedRegions.contains(regionKey(r));
+	}
+
+	/** @return the given regions, less those already finished by an interrupted run */
+	public List<Region> getRemaining( List<Region> regions ) {
+		List<Region> remaining = new ArrayList<Region>();
+		for( Region r : regions ) {
+			if( !isCompleted(r) ) remaining.add(r);
+		}
+		return remaining;
+	}
+
+	/** @return tiles that an interrupted run wrote, or may have been writing */
+	public Set<File> getInterruptedTiles() {
+		return interruptedTiles;
+	}
+
+	/** Note that a tile is about to be written */
+	public void tileWriting( File tile ) throws IOException {
+		write("T "+tile.getAbsolutePath()+"\n");
+	}
+
+	/** Note that a region has been dealt with, so that a resumed run can skip it */
+	public void regionCompleted( Region r ) throws IOException {
+		write("R "+regionKey(r)+"\n");
+	}
+
+	/** Close the journal, leaving it for the next run to resume from */
+	public synchronized void close() throws IOException {
+		if( writer == null ) return;
+		writer.close();
+		writer = null;
+	}
+
+	/** Close and delete the journal once the run has finished */
+	public void finish() throws IOException {
+		close();
+		file.delete();
+	}
+}
@@ -0,0 +1,149 @@
+package togos.minecraft.maprend;
+
+/**
+ * Precomputed lookup tables for turning pre-rendered (pre-multiplied,
+ * unshaded) colors into final pixels for one set of shading parameters.
+ *
+ * Get one from {@link RenderSettings#getShadingTable()} rather than
+ * building it yourself; the settings object caches it.
+ */
+public final class ShadingTable
+{
+	/** Slope shading is clamped to plus or minus this */
+	public static final int MAX_SLOPE_SHADE = 10;
+
+	/**
+	 * Any altitude shade beyond this saturates every channel regardless of slope
+	 * (8 * (MAX_ALTITUDE_SHADE - MAX_SLOPE_SHADE) > 255), so table entries are
+	 * clamped to it to keep the channel table small without changing the output.
+	 */
+	protected static final int MAX_ALTITUDE_SHADE = 43;
+
+	/** DEMULTIPLY[alpha << 8 | component] = component * 255 / alpha, clamped */
+	private static final byte[] DEMULTIPLY = new byte[256*256];
+	static {
+		for( int alpha=1; alpha<256; ++alpha ) {
+			for( int component=0; component<256; ++component ) {
+				DEMULTIPLY[alpha << 8 | component] = (byte)Color.clampByte(component * 255 / alpha);
+			}
+		}
+	}
+
+	public final int shadingReferenceAltitude;
+	public final int altitudeShadingFactor;
+	public final int minAltitudeShading;
+	public final int maxAltitudeShading;
+
+	/** altitudeShade[height - Short.MIN_VALUE] = altitude shade for a column of that height */
+	private final int[] altitudeShade = new int[1 << 16];
+	/** Smallest total shade (times 8) that can be applied to a pixel */
+	private final int minAmount;
+	/** channelShade[component + amount - minAmount] = component + amount, clamped */
+	private final int[] channelShade;
+
+	public ShadingTable( int shadingReferenceAltitude, int altitudeShadingFactor, int minAltitudeShading, int maxAltitudeShading ) {
+		this.shadingReferenceAltitude = shadingReferenceAltitude;
+		this.altitudeShadingFactor = altitudeShadingFactor;
+		this.minAltitudeShading = minAltitudeShading;
+		this.maxAltitudeShading = maxAltitudeShading;
+
+		int minAlt = MAX_ALTITUDE_SHADE, maxAlt = -MAX_ALTITUDE_SHADE;
+		for( int height=Short.MIN_VALUE; height<=Short.MAX_VALUE; ++height ) {
+			int altShade = altitudeShadingFactor * (height - shadingReferenceAltitude) / 255;
+			if( altShade < minAltitudeShading ) altShade = minAltitudeShading;
+			if( altShade > maxAltitudeShading ) altShade = maxAltitudeShading;
+			if( altShade < -MAX_ALTITUDE_SHADE ) altShade = -MAX_ALTITUDE_SHADE;
+			if( altShade >  MAX_ALTITUDE_SHADE ) altShade =  MAX_ALTITUDE_SHADE;
+			altitudeShade[height - Short.MIN_VALUE] = altShade;
+			if( altShade < minAlt ) minAlt = altShade;
+			if( altShade > maxAlt ) maxAlt = altShade;
+		}
+
+		minAmount = (minAlt - MAX_SLOPE_SHADE) * 8;
+		int maxAmount = (maxAlt + MAX_SLOPE_SHADE) * 8;
+		channelShade = new int[256 + maxAmount - minAmount];
+		for( int i=0; i<channelShade.length; ++i ) {
+			channelShade[i] = Color.clampByte(i + minAmount);
+		}
+	}
+
+	public ShadingTable( RenderSettings settings ) {
+		this( settings.shadingReferenceAltitude, settings.altitudeShadingFactor, settings.minAltitudeShading, settings.maxAltitudeShading );
+	}
+
+	/** @return true if this table was built from the same shading parameters as settings has */
+	public boolean matches( RenderSettings settings ) {
+		return
+			shadingReferenceAltitude == settings.shadingReferenceAltitude &&
+			altitudeShadingFactor == settings.altitudeShadingFactor &&
+			minAltitudeShading == settings.minAltitudeShading &&
+			maxAltitudeShading == settings.maxAltitudeShading;
+	}
+
+	/**
+	 * @param color pre-multiplied color
+	 * @param slope unclamped slope shade
+	 * @param height height of the column
+	 * @return the demultiplied, shaded color, or 0 if color is fully transparent
+	 */
+	private int shadePixel( int color, int slope, int height ) {
+		final int alpha = color >>> 24;
+		final int row = alpha << 8;
+		final int amount =
+			(Math.max(-MAX_SLOPE_SHADE, Math.min(MAX_SLOPE_SHADE, slope)) +
+			 altitudeShade[height - Short.MIN_VALUE]) * 8 - minAmount;
+		final int shaded =
+			(alpha << 24) |
+			(channelShade[(DEMULTIPLY[row | (color >> 16 & 0xFF)] & 0xFF) + amount] << 16) |
+			(channelShade[(DEMULTIPLY[row | (color >>  8 & 0xFF)] & 0xFF) + amount] <<  8) |
+			(channelShade[(DEMULTIPLY[row | (color       & 0xFF)] & 0xFF) + amount]      );
+		// All ones if alpha != 0, otherwise all zeroes
+		return shaded & ((alpha | -alpha) >> 31);
+	}
+
+	/** Slope at a pixel that may lie on the edge of the region */
+	private static int edgeSlope( short[] height, int x, int z, int width, int depth ) {
+		final int idx = z*width+x;
+		int dyx, dyz;
+
+		if(      x == 0       ) dyx = height[idx+1]-height[idx];
+		else if( x == width-1 ) dyx = height[idx]-height[idx-1];
+		else dyx = (height[idx+1]-height[idx-1]) * 2;
+
+		if(      z == 0       ) dyz = height[idx+width]-height[idx];
+		else if( z == depth-1 ) dyz = height[idx]-height[idx-width];
+		else dyz = (height[idx+width]-height[idx-width]) * 2;
+
+		return dyx+dyz;
+	}
+
+	private void shadeEdgePixel( short[] height, int[] color, int[] dest, int x, int z, int width, int depth ) {
+		final int idx = z*width+x;
+		dest[idx] = shadePixel( color[idx], edgeSlope(height, x, z, width, depth), height[idx] );
+	}
+
+	/**
+	 * Demultiply alpha and apply slope and altitude shading to a
+	 * 512x512 raster, writing the results into dest.
+	 *
+	 * @param height surface heights
+	 * @param color pre-multiplied surface colors; not modified
+	 * @param dest final ARGB pixels will be written here
+	 */
+	public void shade( short[] height, int[] color, int[] dest ) {
+		final int width=512, depth=512;
+
+		for( int x=0; x<width; ++x ) {
+			shadeEdgePixel( height, color, dest, x, 0, width, depth );
+			shadeEdgePixel( height, color, dest, x, depth-1, width, depth );
+		}
+		for( int z=1; z<depth-1; ++z ) {
+			shadeEdgePixel( height, color, dest, 0, z, width, depth );
+			for( int idx=z*width+1, end=z*width+width-1; idx<end; ++idx ) {
+				final int slope = (height[idx+1] - height[idx-1] + height[idx+width] - height[idx-width]) * 2;
+				dest[idx] = shadePixel( color[idx], slope, height[idx] );
+			}
+			shadeEdgePixel( height, color, dest, width-1, z, width, depth );
+		}
+	}
+}
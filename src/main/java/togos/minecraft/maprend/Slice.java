@@ -0,0 +1,50 @@
+package togos.minecraft.maprend;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A range of heights to draw; only blocks with minHeight <= y < maxHeight
+ * contribute to a slice's colors.  Several slices can be rendered from
+ * one pass over the world (see {@link RenderSettings#slices}).
+ */
+public class Slice
+{
+	public final int minHeight, maxHeight;
+	/**
+	 * Name of the subdirectory that this slice's tiles are written to,
+	 * or null to write them directly to the output directory
+	 */
+	public final String name;
+
+	public Slice( int minHeight, int maxHeight, String name ) {
+		this.minHeight = minHeight;
+		this.maxHeight = maxHeight;
+		this.name = name;
+	}
+
+	public boolean contains( int y ) {
+		return y >= minHeight && y < maxHeight;
+	}
+
+	static final Pattern SLICE_PATTERN = Pattern.compile("^(-?\\d+)-(-?\\d+)$");
+
+	/**
+	 * Parse a slice given as "<min>-<max>", e.g. "0-64" or "-64-0".
+	 * The slice is named after the text it was parsed from.
+	 * @return the slice, or null if spec is not of that form or min >= max
+	 */
+	public static Slice parse( String spec ) {
+		Matcher m = SLICE_PATTERN.matcher(spec);
+		if( !m.matches() ) return null;
+		int min = Integer.parseInt(m.group(1));
+		int max = Integer.parseInt(m.group(2));
+		if( min >= max ) return null;
+		return new Slice( min, max, spec );
+	}
+
+	@Override
+	public String toString() {
+		return name != null ? name : minHeight+"-"+maxHeight;
+	}
+}
@@ -0,0 +1,220 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import togos.minecraft.maprend.io.FileUtil;
+
+/**
+ * Remembers a digest of the pixels of each tile in a directory, along with
+ * the modification time of the region file that the tile was rendered from,
+ * so that tiles whose pixels haven't changed can be left untouched
+ * (keeping their modification times, which downstream syncing relies on)
+ * while still being known to be up to date.
+ *
+ * Kept in a text file named {@link #FILENAME} in the tile directory.
+ * Safe to use from several threads at once; call {@link #save()} when done.
+ * Several processes may share a directory: only the entries a process
+ * has changed are written over what's in the file when it saves, and
+ * saves hold a lock on {@link #LOCK_FILENAME} from reading the file to
+ * replacing it, so that two at once can't lose each other's entries.
+ */
+public class TileDigests
+{
+	public static final String FILENAME = "tile-digests.txt";
+	public static final String LOCK_FILENAME = ".tile-digests.lock";
+
+	static final class Entry {
+		final byte[] digest;
+		final long sourceLastModified;
+
+		Entry( byte[] digest, long sourceLastModified ) {
+			this.digest = digest;
+			this.sourceLastModified = sourceLastModified;
+		}
+	}
+
+	public final File directory;
+	private final Map<String,Entry> entries = new HashMap<String,Entry>();
+	/** Names of tiles updated or removed since the file was last saved */
+	private final Set<String> changed = new HashSet<String>();
+
+	public TileDigests( File directory ) {
+		this.directory = directory;
+		try {
+			read(entries);
+		} catch( IOException e ) {
+			System.err.println("Error reading tile digests from "+getFile()+"; all tiles will be rewritten");
+			e.printStackTrace(System.err);
+			entries.clear();
+		}
+	}
+
+	protected File getFile() {
+		return new File(directory, FILENAME);
+	}
+
+	protected void read( Map<String,Entry> into ) throws IOException {
+		File f = getFile();
+		if( !f.exists() ) return;
+		BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			while( (line = r.readLine()) != null ) {
+				String[] parts = line.split("\t");
+				if( parts.length != 3 ) continue;
+				try {
+					into.put(parts[0], new Entry(fromHex(parts[1]), Long.parseLong(parts[2])));
+				} catch( NumberFormatException e ) {
+					// Skip damaged lines; those tiles will simply be rewritten
+				}
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Write the digests out if any have changed since they were loaded or last saved.
+	 * Entries that other processes have saved in the meantime are kept,
+	 * except where this one has changed the same tiles.
+	 */
+	public synchronized void save() throws IOException {
+		if( changed.isEmpty() ) return;
+		// File locks are held by the whole process, so threads of this one take turns first
+		synchronized( TileDigests.class ) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILENAME), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					merge();
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+		changed.clear();
+	}
+
+	/** Write our changed entries over those in the file; the caller holds the lock */
+	private void merge() throws IOException {
+		Map<String,Entry> merged = new TreeMap<String,Entry>();
+		try {
+			read(merged);
+		} catch( IOException e ) {
+			// Only our own entries will be kept; anyone else's tiles will be rewritten
+			merged.clear();
+			merged.putAll(entries);
+		}
+		for( String name : changed ) {
+			Entry e = entries.get(name);
+			if( e == null ) merged.remove(name);
+			else merged.put(name, e);
+		}
+		File f = getFile();
+		File temp = File.createTempFile("."+FILENAME+".", ".temp", directory);
+		try {
+			Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+			try {
+				for( Map.Entry<String,Entry> e : merged.entrySet() ) {
+					w.write(e.getKey()+"\t"+toHex(e.getValue().digest)+"\t"+e.getValue().sourceLastModified+"\n");
+				}
+			} finally {
+				w.close();
+			}
+			FileUtil.replace(temp, f);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @return the modification time of the region file that the named tile was
+	 *   last rendered from, or 0 if that isn't known
+	 */
+	public synchronized long getSourceLastModified( String tileName ) {
+		Entry e = entries.get(tileName);
+		return e == null ? 0 : e.sourceLastModified;
+	}
+
+	/**
+	 * Record that the named tile has been rendered from a region file with the
+	 * given modification time, producing pixels with the given digest.
+	 * @return true if the digest differs from the one recorded previously
+	 *   (or none was), meaning that the tile file needs to be written
+	 */
+	public synchronized boolean update( String tileName, byte[] digest, long sourceLastModified ) {
+		Entry old = entries.put(tileName, new Entry(digest, sourceLastModified));
+		changed.add(tileName);
+		return old == null || !Arrays.equals(old.digest, digest);
+	}
+
+	/** Forget the named tile, so that it will be written next time */
+	public synchronized void remove( String tileName ) {
+		if( entries.remove(tileName) != null ) changed.add(tileName);
+	}
+
+	/** @return a digest of an image's size and pixel values */
+	public static byte[] digest( BufferedImage image ) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch( NoSuchAlgorithmException e ) {
+			throw new RuntimeException(e);
+		}
+		int width = image.getWidth(), height = image.getHeight();
+		byte[] row = new byte[width*4];
+		md.update(new byte[] { (byte)(width >> 8), (byte)width, (byte)(height >> 8), (byte)height });
+		int[] pixels = null;
+		if( image.getType() == BufferedImage.TYPE_INT_ARGB && image.getRaster().getDataBuffer() instanceof DataBufferInt ) {
+			pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		}
+		int[] rowPixels = pixels == null ? new int[width] : null;
+		for( int y=0; y<height; ++y ) {
+			int offset = y*width;
+			if( pixels == null ) {
+				image.getRGB(0, y, width, 1, rowPixels, 0, width);
+			}
+			for( int x=0; x<width; ++x ) {
+				int p = pixels == null ? rowPixels[x] : pixels[offset+x];
+				row[x*4  ] = (byte)(p >> 24);
+				row[x*4+1] = (byte)(p >> 16);
+				row[x*4+2] = (byte)(p >>  8);
+				row[x*4+3] = (byte)(p      );
+			}
+			md.update(row);
+		}
+		return md.digest();
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	protected static String toHex( byte[] data ) {
+		char[] hex = new char[data.length*2];
+		for( int i=0; i<data.length; ++i ) {
+			hex[i*2  ] = HEX_DIGITS[data[i] >> 4 & 0xF];
+			hex[i*2+1] = HEX_DIGITS[data[i]      & 0xF];
+		}
+		return new String(hex);
+	}
+
+	protected static byte[] fromHex( String hex ) {
+		if( hex.length() % 2 != 0 ) throw new NumberFormatException("Odd-length hex string: "+hex);
+		byte[] data = new byte[hex.length()/2];
+		for( int i=0; i<data.length; ++i ) {
+			data[i] = (byte)Integer.parseInt(hex.substring(i*2, i*2+2), 16);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,191 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.FileUtil;
+
+/**
+ * A list, as JSON, of the region tiles a render wrote, for the tile
+ * viewer (tiles.html) and anything else that wants to know which tiles
+ * there are without looking for every one that might be.  It looks like
+ *
+ *   {
+ *     "title": "Regions",
+ *     "regionSize": 512,
+ *     "scales": [1, 4],
+ *     "bounds": [-3, -2, 5, 4],
+ *     "rows": [[-2, -3, 2, 0, 5], ...]
+ *   }
+ *
+ * where bounds are the lowest region x and z and the highest plus one,
+ * and each row lists a z and then runs of regions along it, as the x of
+ * the first and how many there are, so [-2, -3, 2, 0, 5] means regions
+ * -3 and -2, and 0 to 4, of row -2.  Tiles for a region at scale 1:n are
+ * named "tile.<x>.<z>.png" at full size and "tile.<x>.<z>.1-<n>.png" otherwise.
+ *
+ * An instance keeps the manifest of one tile directory up to date from
+ * what renders find: regions are added when their full-size tile is
+ * written or found to be up to date, and dropped when rendering them
+ * fails.  Regions that no render has looked at since are kept as the
+ * manifest on disk has them.  Safe to use from several threads at once.
+ */
+public class TileManifest
+{
+	public static final String FILENAME = "tiles.json";
+
+	private static final Pattern TILE_NAME = Pattern.compile("tile\\.(-?\\d+)\\.(-?\\d+)\\.png");
+	private static final Pattern ROW = Pattern.compile("\\[([-\\d,\\s]*)\\]");
+
+	public final File directory;
+	/** Regions found to have a tile (true) or to have failed (false) since the manifest was last written */
+	private final Map<Long,Boolean> changes = new HashMap<Long,Boolean>();
+
+	public TileManifest( File directory ) {
+		this.directory = directory;
+	}
+
+	protected File getFile() {
+		return new File(directory, FILENAME);
+	}
+
+	protected static long key( int rx, int rz ) {
+		return (long)rx << 32 | (rz & 0xFFFFFFFFL);
+	}
+
+	/** Record that a region's full-size tile has been written or found to be up to date */
+	public synchronized void tileMade( int rx, int rz ) {
+		changes.put(key(rx, rz), Boolean.TRUE);
+	}
+
+	/** Like {@link #tileMade(int, int)}, given the tile's file name; scaled tiles are ignored */
+	public void tileMade( String tileName ) {
+		Matcher m = TILE_NAME.matcher(tileName);
+		if( m.matches() ) tileMade(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+	}
+
+	/** Record that rendering a region failed, so that it's left out whether or not there's a tile for it */
+	public synchronized void regionFailed( int rx, int rz ) {
+		changes.put(key(rx, rz), Boolean.FALSE);
+	}
+
+	/** @return the regions listed in the manifest on disk, or none if there isn't one */
+	protected Set<Long> read() throws IOException {
+		Set<Long> regions = new HashSet<Long>();
+		File f = getFile();
+		if( !f.exists() ) return regions;
+		String json = new String(Files.readAllBytes(f.toPath()), "UTF-8");
+		int rows = json.lastIndexOf("\"rows\":");
+		if( rows < 0 ) throw new IOException("No rows in "+f);
+		Matcher m = ROW.matcher(json);
+		m.region(rows, json.length());
+		while( m.find() ) {
+			String[] parts = m.group(1).split(",");
+			try {
+				int rz = Integer.parseInt(parts[0].trim());
+				for( int i=1; i+1<parts.length; i+=2 ) {
+					int start = Integer.parseInt(parts[i].trim()), n = Integer.parseInt(parts[i+1].trim());
+					for( int j=0; j<n; ++j ) regions.add(key(start + j, rz));
+				}
+			} catch( NumberFormatException e ) {
+				throw new IOException("Bad row in "+f+": "+m.group());
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * Write the manifest, listing the regions found to have tiles since it was
+	 * last written as well as those it listed already, less any that failed.
+	 * @return the manifest as written
+	 */
+	public synchronized String write( String title, int[] scales ) throws IOException {
+		Set<Long> listed;
+		try {
+			listed = read();
+		} catch( IOException e ) {
+			System.err.println("Error reading "+getFile()+"; only the regions rendered since will be listed");
+			e.printStackTrace(System.err);
+			listed = new HashSet<Long>();
+		}
+		for( Map.Entry<Long,Boolean> e : changes.entrySet() ) {
+			if( e.getValue() ) listed.add(e.getKey());
+			else listed.remove(e.getKey());
+		}
+		RegionMap rm = new RegionMap();
+		for( long k : listed ) {
+			Region r = new Region();
+			r.rx = (int)(k >> 32);
+			r.rz = (int)k;
+			rm.addRegion(r);
+		}
+		String json = toJSON(rm, title, scales);
+		FileUtil.write(getFile(), json.getBytes("UTF-8"));
+		changes.clear();
+		return json;
+	}
+
+	protected static String quote( String s ) {
+		StringBuilder sb = new StringBuilder("\"");
+		for( int i=0; i<s.length(); ++i ) {
+			char c = s.charAt(i);
+			if( c == '"' || c == '\\' ) sb.append('\\').append(c);
+			else if( c < 0x20 || c == '<' || c == '>' || c == '&' ) sb.append(String.format("\\u%04x", (int)c));
+			else sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	/** @return the manifest of the tiles of the given regions */
+	public static String toJSON( RegionMap rm, String title, int[] scales ) {
+		List<Region> regions = new ArrayList<Region>(rm.regions);
+		Collections.sort(regions, new Comparator<Region>() {
+			@Override
+			public int compare( Region a, Region b ) {
+				if( a.rz != b.rz ) return a.rz < b.rz ? -1 : 1;
+				return a.rx < b.rx ? -1 : a.rx == b.rx ? 0 : 1;
+			}
+		});
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("\t\"title\": ").append(quote(title)).append(",\n");
+		json.append("\t\"regionSize\": 512,\n");
+		json.append("\t\"scales\": [");
+		for( int i=0; i<scales.length; ++i ) json.append(i == 0 ? "" : ", ").append(scales[i]);
+		json.append("],\n");
+		if( !regions.isEmpty() ) {
+			json.append("\t\"bounds\": [").append(rm.minX).append(", ").append(rm.minZ).append(", ")
+				.append(rm.maxX).append(", ").append(rm.maxZ).append("],\n");
+		}
+		json.append("\t\"rows\": [");
+		for( int i=0; i<regions.size(); ) {
+			int rz = regions.get(i).rz;
+			json.append(i == 0 ? "\n\t\t[" : ",\n\t\t[").append(rz);
+			while( i < regions.size() && regions.get(i).rz == rz ) {
+				// A run of regions next to each other
+				int start = regions.get(i).rx, n = 0;
+				while( i < regions.size() && regions.get(i).rz == rz && regions.get(i).rx <= start + n ) {
+					if( regions.get(i).rx == start + n ) ++n;
+					++i;
+				}
+				json.append(", ").append(start).append(", ").append(n);
+			}
+			json.append("]");
+		}
+		json.append(regions.isEmpty() ? "]\n" : "\n\t]\n");
+		json.append("}\n");
+		return json.toString();
+	}
+}
@@ -0,0 +1,242 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.FileUtil;
+import togos.minecraft.maprend.io.PNGEncoder;
+
+/**
+ * Builds a quadtree of tiles, as web map viewers expect, from the
+ * region tiles in a directory, so that zoomed-out views of a big world
+ * need a handful of tiles instead of thousands of tiny ones.
+ *
+ * Tiles are stored as "<z>/<x>/<y>.png" under the pyramid directory.
+ * At zoom level {@link #REGION_ZOOM} each tile is a region's own tile,
+ * hard-linked (or copied, where links aren't supported) from the
+ * "tile.<x>.<z>.png" file.  Each level below that merges the 2x2 tiles
+ * of the level above into one 512px tile, so tile x,y at zoom z covers
+ * regions x*2^k to (x+1)*2^k-1, where k is REGION_ZOOM-z; coordinates
+ * are negative west and north of the origin, as with regions.  Levels
+ * go down to the first one whose tiles all lie within the 2x2 around
+ * the origin.  Since each level of directories splits tiles by column,
+ * no directory holds more entries than the world is wide.
+ *
+ * Building is incremental: a tile is only remade if one of its children
+ * is newer than it or was itself remade, so after a render only the
+ * ancestors of regions whose tiles changed are touched.  When it's known
+ * which regions changed, {@link #update(RegionMap, Collection)} goes
+ * straight to them and their ancestors without looking at the rest.
+ */
+public class TilePyramid
+{
+	/**
+	 * Zoom level of region tiles, at which a tile pixel is one block.
+	 * Minecraft worlds are less than 2^17 regions across, so every
+	 * level from 0 on is needed for the largest.
+	 */
+	public static final int REGION_ZOOM = 17;
+	public static final int TILE_SIZE = 512;
+
+	/** Directory the region tiles are read from */
+	public final File tileDirectory;
+	public final File directory;
+	protected final RegionRenderer renderer;
+
+	/** Tiles to bring up to date at each zoom level, from {@link #REGION_ZOOM} down */
+	private final List<Set<Long>> pending = new ArrayList<Set<Long>>();
+	/** Whether tiles that aren't pending are taken as they are on disk, rather than left out */
+	private boolean partial;
+	public int tilesMade, regionTilesLinked;
+
+	public TilePyramid( RegionRenderer renderer, File tileDirectory ) {
+		this.renderer = renderer;
+		this.tileDirectory = tileDirectory;
+		this.directory = new File(tileDirectory, "pyramid");
+	}
+
+	public File getTileFile( int z, int x, int y ) {
+		return new File(directory, z + "/" + x + "/" + y + ".png");
+	}
+
+	protected File getRegionTileFile( int rx, int rz ) {
+		return new File(tileDirectory, "tile." + rx + "." + rz + ".png");
+	}
+
+	protected static long key( int x, int y ) {
+		return (long)x << 32 | (y & 0xFFFFFFFFL);
+	}
+
+	static final Pattern TILE_NAME = Pattern.compile("^(-?\\d+)\\.png$");
+	static final Pattern COLUMN_NAME = Pattern.compile("^-?\\d+$");
+
+	/** @return the tiles already made at the given zoom level */
+	protected Set<Long> listTiles( int z ) {
+		Set<Long> tiles = new HashSet<Long>();
+		File[] columns = new File(directory, String.valueOf(z)).listFiles();
+		if( columns == null ) return tiles;
+		for( File column : columns ) {
+			String[] names = column.list();
+			if( names == null || !COLUMN_NAME.matcher(column.getName()).matches() ) continue;
+			int x = Integer.parseInt(column.getName());
+			for( String name : names ) {
+				Matcher m = TILE_NAME.matcher(name);
+				if( m.matches() ) tiles.add(key(x, Integer.parseInt(m.group(1))));
+			}
+		}
+		return tiles;
+	}
+
+	protected boolean isPending( int z, int x, int y ) {
+		return pending.get(REGION_ZOOM - z).contains(key(x, y));
+	}
+
+	protected boolean isOccupied( int z, int x, int y ) {
+		return isPending(z, x, y) || partial && getTileFile(z, x, y).exists();
+	}
+
+	/** @return the lowest zoom level worth making for the given regions */
+	public static int getMinZoom( RegionMap rm ) {
+		int k = 0;
+		while( k < REGION_ZOOM && (
+			(rm.minX >> k) < -1 || ((rm.maxX - 1) >> k) > 0 ||
+			(rm.minZ >> k) < -1 || ((rm.maxZ - 1) >> k) > 0)
+		) ++k;
+		return REGION_ZOOM - k;
+	}
+
+	/** Bring every tile of the pyramid for the given regions up to date */
+	public void update( RegionMap rm ) throws IOException {
+		update(rm, rm.regions, false);
+	}
+
+	/**
+	 * Bring the tiles of only the given regions, and the tiles above them,
+	 * up to date, merging in the rest of the pyramid as it is on disk.
+	 * @param rm every region, which decides how many levels there are
+	 */
+	public void update( RegionMap rm, Collection<Region> changed ) throws IOException {
+		update(rm, changed, true);
+	}
+
+	protected void update( RegionMap rm, Collection<Region> regions, boolean partial ) throws IOException {
+		this.partial = partial;
+		pending.clear();
+		Set<Long> level = new HashSet<Long>();
+		for( Region r : regions ) {
+			if( getRegionTileFile(r.rx, r.rz).exists() ) level.add(key(r.rx, r.rz));
+		}
+		if( level.isEmpty() ) return;
+		pending.add(level);
+		int minZoom = getMinZoom(rm);
+		for( int z=REGION_ZOOM-1; z>=minZoom; --z ) {
+			// A level the pyramid didn't go down to before, now that the world is bigger,
+			// needs tiles over the whole of the one above, not just the changed part
+			Set<Long> children = level;
+			if( partial && !new File(directory, String.valueOf(z)).exists() ) {
+				children = new HashSet<Long>(level);
+				children.addAll(listTiles(z+1));
+			}
+			Set<Long> parents = new HashSet<Long>();
+			for( long k : children ) parents.add(key((int)(k >> 32) >> 1, (int)k >> 1));
+			pending.add(parents);
+			level = parents;
+		}
+		for( long k : level ) update(minZoom, (int)(k >> 32), (int)k);
+	}
+
+	/** Link a region's tile into the pyramid, unless it already is */
+	protected void linkRegionTile( int rx, int rz ) throws IOException {
+		File source = getRegionTileFile(rx, rz);
+		File tile = getTileFile(REGION_ZOOM, rx, rz);
+		if( tile.exists() && tile.lastModified() == source.lastModified() && tile.length() == source.length() ) return;
+		tile.getParentFile().mkdirs();
+		File temp = FileUtil.tempFile(tile);
+		// Only its unique name is wanted; the link goes in its place
+		temp.delete();
+		try {
+			Files.createLink(temp.toPath(), source.toPath());
+		} catch( UnsupportedOperationException e ) {
+			Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+		} catch( IOException e ) {
+			Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+		}
+		FileUtil.replace(temp, tile);
+		++regionTilesLinked;
+	}
+
+	/**
+	 * Bring a tile and everything under it up to date
+	 * @return the tile's pixels if it was remade, or null if it was already up to date
+	 */
+	protected int[] update( int z, int x, int y ) throws IOException {
+		if( z == REGION_ZOOM ) {
+			linkRegionTile(x, y);
+			return null;
+		}
+		File f = getTileFile(z, x, y);
+		long lastModified = f.lastModified();
+		boolean outdated = lastModified == 0;
+		// Children that were remade are shrunk into place straight away,
+		// so that no more than one raster per level is held at once
+		BufferedImage image = null;
+		int[] pixels = null;
+		boolean[] filled = new boolean[4];
+		for( int i=0; i<4; ++i ) {
+			int cx = 2*x + (i & 1), cy = 2*y + (i >> 1);
+			if( !isOccupied(z+1, cx, cy) ) {
+				filled[i] = true;
+				continue;
+			}
+			int[] child = isPending(z+1, cx, cy) ? update(z+1, cx, cy) : null;
+			if( child != null ) {
+				if( image == null ) {
+					image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+					pixels = PNGEncoder.getPixels(image);
+				}
+				shrinkInto(child, pixels, i);
+				filled[i] = true;
+				outdated = true;
+			} else if( getTileFile(z+1, cx, cy).lastModified() > lastModified ) {
+				outdated = true;
+			}
+		}
+		if( !outdated ) return null;
+		if( image == null ) {
+			image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+			pixels = PNGEncoder.getPixels(image);
+		}
+		for( int i=0; i<4; ++i ) {
+			if( filled[i] ) continue;
+			File childFile = getTileFile(z+1, 2*x + (i & 1), 2*y + (i >> 1));
+			BufferedImage child = ImageIO.read(childFile);
+			if( child == null || child.getWidth() != TILE_SIZE || child.getHeight() != TILE_SIZE ) {
+				System.err.println("Can't read " + childFile + " for the tile pyramid; leaving it out");
+				continue;
+			}
+			shrinkInto(MipMaps.getPixels(child), pixels, i);
+		}
+		f.getParentFile().mkdirs();
+		FileUtil.write(f, renderer.encodePNG(image));
+		++tilesMade;
+		return pixels;
+	}
+
+	/** Shrink a child tile into its quarter of its parent */
+	protected static void shrinkInto( int[] child, int[] parent, int quarter ) {
+		int half = TILE_SIZE / 2;
+		int offset = (quarter >> 1) * half * TILE_SIZE + (quarter & 1) * half;
+		MipMaps.halve(child, TILE_SIZE, TILE_SIZE, parent, offset, TILE_SIZE);
+	}
+}
@@ -0,0 +1,266 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import togos.minecraft.maprend.io.RegionFile;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves tiles over HTTP, rendering them the first time they're asked
+ * for instead of rendering the whole world up front.
+ *
+ * Tiles have the same paths as they would have under the output
+ * directory of a normal render (e.g. /tile.3.-2.png, /tile.3.-2.1-4.png,
+ * or /biomes/tile.3.-2.png when other products are rendered).
+ *
+ * Rendering a region produces all of its tiles at once, so they're all
+ * kept, in a cache limited to a number of bytes that throws out the
+ * tiles that were least recently asked for.  Requests for tiles of a
+ * region that is already being rendered wait for that render instead of
+ * starting another.  A cached tile is rendered again once its region file
+ * has been modified.
+ *
+ * Only listens on the loopback interface.
+ */
+public class TileServer
+{
+	protected static final Pattern TILE_NAME = Pattern.compile("^tile\\.(-?\\d+)\\.(-?\\d+)(?:\\.1-(\\d+))?\\.png$");
+
+	static final class CachedTile {
+		final byte[] data;
+		final long sourceLastModified;
+
+		CachedTile( byte[] data, long sourceLastModified ) {
+			this.data = data;
+			this.sourceLastModified = sourceLastModified;
+		}
+	}
+
+	protected final RegionRenderer renderer;
+	/** Region directories and individual region files that tiles may be rendered from */
+	protected final List<File> inputs;
+	/** Tile sets, with directories relative to the server root, keyed by URL path prefix */
+	protected final Map<String,TileSet> tileSets = new LinkedHashMap<String,TileSet>();
+	public final long maxCacheSize;
+
+	private final LinkedHashMap<String,CachedTile> cache = new LinkedHashMap<String,CachedTile>(16, 0.75f, true);
+	private long cacheSize;
+	private final ConcurrentHashMap<String,FutureTask<Map<String,CachedTile>>> rendering =
+		new ConcurrentHashMap<String,FutureTask<Map<String,CachedTile>>>();
+	/** Number of times a region has been rendered */
+	public final AtomicInteger renderCount = new AtomicInteger();
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public TileServer( RegionRenderer renderer, List<File> inputs, long maxCacheSize ) {
+		this.renderer = renderer;
+		this.inputs = inputs;
+		this.maxCacheSize = maxCacheSize;
+		File root = new File("tiles");
+		for( TileSet tileSet : renderer.settings.getTileSets(root) ) {
+			tileSets.put(pathPrefix(tileSet.directory, root), tileSet);
+		}
+	}
+
+	/** @return the URL path of the given directory under root, starting and ending with "/" */
+	protected static String pathPrefix( File dir, File root ) {
+		String prefix = "/";
+		for( File f = dir; f != null && !f.equals(root); f = f.getParentFile() ) {
+			prefix = "/" + f.getName() + prefix;
+		}
+		return prefix;
+	}
+
+	protected File findRegionFile( int rx, int rz ) {
+		String name = "r."+rx+"."+rz+".mca";
+		for( File input : inputs ) {
+			File f = input.isDirectory() ? new File(input, name) : input;
+			if( f.getName().equals(name) && f.exists() ) return f;
+		}
+		return null;
+	}
+
+	//// Cache ////
+
+	protected synchronized CachedTile getCached( String path ) {
+		return cache.get(path);
+	}
+
+	protected synchronized void putCached( String path, CachedTile tile ) {
+		CachedTile old = cache.put(path, tile);
+		if( old != null ) cacheSize -= old.data.length;
+		cacheSize += tile.data.length;
+		Iterator<CachedTile> i = cache.values().iterator();
+		while( cacheSize > maxCacheSize && i.hasNext() ) {
+			cacheSize -= i.next().data.length;
+			i.remove();
+		}
+	}
+
+	/** @return the total size of the tiles in the cache, in bytes */
+	public synchronized long getCacheSize() {
+		return cacheSize;
+	}
+
+	//// Rendering ////
+
+	/** Render all of a region's tiles and add them to the cache */
+	protected Map<String,CachedTile> renderRegion( File regionFile, int rx, int rz ) throws IOException {
+		RenderContext ctx = renderer.getRenderContext();
+		RegionFile rf = new RegionFile(regionFile);
+		try {
+			renderer.render(rf, ctx);
+		} finally {
+			rf.close();
+		}
+		renderCount.incrementAndGet();
+		Map<String,CachedTile> tiles = new HashMap<String,CachedTile>();
+		for( Map.Entry<String,TileSet> e : tileSets.entrySet() ) {
+			TileSet tileSet = e.getValue();
+			BufferedImage fullSize = ctx.getImage(tileSet);
+			tiles.put(e.getKey() + tileSet.getImageFile(rx, rz).getName(), new CachedTile(renderer.encodePNG(fullSize), rf.lastModified()));
+			for( Map.Entry<Integer,BufferedImage> scaled : MipMaps.scale(fullSize, renderer.settings.mapScales).entrySet() ) {
+				tiles.put(e.getKey() + tileSet.getScaledImageFile(rx, rz, scaled.getKey()).getName(),
+					new CachedTile(renderer.encodePNG(scaled.getValue()), rf.lastModified()));
+			}
+		}
+		for( Map.Entry<String,CachedTile> e : tiles.entrySet() ) putCached(e.getKey(), e.getValue());
+		return tiles;
+	}
+
+	/**
+	 * @return the PNG data for the tile at the given path,
+	 *   or null if there's no such tile or no region to render it from
+	 */
+	public byte[] getTile( String path ) throws IOException, InterruptedException {
+		int slash = path.lastIndexOf('/');
+		if( slash < 0 || !tileSets.containsKey(path.substring(0, slash+1)) ) return null;
+		Matcher m = TILE_NAME.matcher(path.substring(slash+1));
+		if( !m.matches() ) return null;
+		final int rx = Integer.parseInt(m.group(1));
+		final int rz = Integer.parseInt(m.group(2));
+		if( m.group(3) != null ) {
+			int scale = Integer.parseInt(m.group(3));
+			boolean scaleRendered = false;
+			for( int s : renderer.settings.mapScales ) if( s == scale && s != 1 ) scaleRendered = true;
+			if( !scaleRendered ) return null;
+		}
+
+		final File regionFile = findRegionFile(rx, rz);
+		if( regionFile == null ) return null;
+
+		CachedTile tile = getCached(path);
+		if( tile != null && tile.sourceLastModified == regionFile.lastModified() ) return tile.data;
+
+		String regionKey = rx+","+rz;
+		FutureTask<Map<String,CachedTile>> task = new FutureTask<Map<String,CachedTile>>(new Callable<Map<String,CachedTile>>() {
+			@Override
+			public Map<String,CachedTile> call() throws IOException {
+				return renderRegion(regionFile, rx, rz);
+			}
+		});
+		FutureTask<Map<String,CachedTile>> existing = rendering.putIfAbsent(regionKey, task);
+		if( existing == null ) {
+			try {
+				task.run();
+			} finally {
+				rendering.remove(regionKey, task);
+			}
+		} else {
+			task = existing;
+		}
+		try {
+			tile = task.get().get(path);
+		} catch( ExecutionException e ) {
+			if( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		return tile == null ? null : tile.data;
+	}
+
+	//// HTTP ////
+
+	protected void respond( HttpExchange exchange, int status, String contentType, byte[] body ) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		boolean head = "HEAD".equals(exchange.getRequestMethod());
+		exchange.sendResponseHeaders(status, head ? -1 : body.length);
+		if( !head ) {
+			OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+		}
+		exchange.close();
+	}
+
+	protected void handle( HttpExchange exchange ) throws IOException {
+		String method = exchange.getRequestMethod();
+		if( !"GET".equals(method) && !"HEAD".equals(method) ) {
+			respond(exchange, 405, "text/plain", "Method not allowed\n".getBytes("UTF-8"));
+			return;
+		}
+		String path = exchange.getRequestURI().getPath();
+		byte[] data;
+		try {
+			data = getTile(path);
+		} catch( Exception e ) {
+			System.err.println("Error rendering "+path);
+			e.printStackTrace(System.err);
+			respond(exchange, 500, "text/plain", ("Error rendering "+path+"\n").getBytes("UTF-8"));
+			return;
+		}
+		if( data == null ) {
+			respond(exchange, 404, "text/plain", ("No such tile: "+path+"\n").getBytes("UTF-8"));
+		} else {
+			respond(exchange, 200, "image/png", data);
+		}
+	}
+
+	/**
+	 * Start serving on the given port of the loopback interface
+	 * @param port port to listen on, or 0 to pick any free one
+	 * @param threadCount number of requests to handle at once
+	 * @return the port being listened on
+	 */
+	public int start( int port, int threadCount ) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle( HttpExchange exchange ) throws IOException {
+				TileServer.this.handle(exchange);
+			}
+		});
+		executor = Executors.newFixedThreadPool(threadCount);
+		server.setExecutor(executor);
+		server.start();
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		if( server != null ) server.stop(0);
+		if( executor != null ) executor.shutdown();
+		server = null;
+		executor = null;
+	}
+}
@@ -0,0 +1,39 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+
+/**
+ * One set of tiles written by a render run:
+ * a single product of a single slice, in its own directory.
+ */
+public class TileSet
+{
+	public final RenderProduct product;
+	/** Index of the slice this tile set was rendered from, or -1 if the product doesn't depend on height */
+	public final int sliceIndex;
+	public final File directory;
+	
+	public TileSet( RenderProduct product, int sliceIndex, File directory ) {
+		this.product = product;
+		this.sliceIndex = sliceIndex;
+		this.directory = directory;
+	}
+	
+	public File getImageFile( int rx, int rz ) {
+		return new File( directory, "tile."+rx+"."+rz+".png" );
+	}
+	
+	public File getScaledImageFile( int rx, int rz, int scale ) {
+		return scale == 1 ? getImageFile(rx, rz) : new File( directory, "tile."+rx+"."+rz+".1-"+scale+".png" );
+	}
+	
+	/** The file a crop of this tile set, with the given block bounds, is written to */
+	public File getCropFile( BoundingRect crop ) {
+		return new File( directory, "crop."+crop.minX+"."+crop.minY+"."+crop.maxX+"."+crop.maxY+".png" );
+	}
+	
+	@Override
+	public String toString() {
+		return directory.getPath();
+	}
+}
@@ -0,0 +1,52 @@
+package togos.minecraft.maprend.gui;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+import java.util.Objects;
+import javafx.concurrent.Task;
+import togos.minecraft.maprend.BoundingRect;
+import togos.minecraft.maprend.RegionMap;
+import togos.minecraft.maprend.RegionRenderer;
+import togos.minecraft.maprend.TileSet;
+import togos.minecraft.maprend.io.FileUtil;
+
+/**
+ * Renders exactly the blocks within a rectangle to a PNG file in the background, decoding only the chunks that overlap it. See
+ * {@link RegionRenderer#renderCrop(RegionMap, BoundingRect)}. Only the first of the renderer's tile sets (the surface map, unless
+ * other products were asked for instead) is rendered, since there is only the one file to write.
+ */
+public class CropExportTask extends Task<File> {
+
+	protected final RegionRenderer	renderer;
+	protected final RegionMap		map;
+	protected final BoundingRect	crop;
+	protected final File			target;
+
+	public CropExportTask(RegionRenderer renderer, RegionMap map, BoundingRect crop, File target) {
+		this.renderer = Objects.requireNonNull(renderer);
+		this.map = Objects.requireNonNull(map);
+		this.crop = Objects.requireNonNull(crop);
+		this.target = Objects.requireNonNull(target);
+	}
+
+	@Override
+	protected File call() throws Exception {
+		updateMessage("Rendering " + (crop.maxX - crop.minX) + "x" + (crop.maxY - crop.minY) + " blocks");
+		List<TileSet> tileSets = renderer.settings.getTileSets(new File("."));
+		List<BufferedImage> images = renderer.renderCrop(map, crop, tileSets.subList(0, 1));
+		if (isCancelled())
+			return null;
+		updateMessage("Saving " + target.getName());
+		FileUtil.write(target, renderer.encodePNG(images.get(0)));
+		return target;
+	}
+
+	/** Runs this task on a background thread of its own. */
+	public CropExportTask start() {
+		Thread thread = new Thread(this, "Crop export");
+		thread.setDaemon(true);
+		thread.start();
+		return this;
+	}
+}
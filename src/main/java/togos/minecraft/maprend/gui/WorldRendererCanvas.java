@@ -28,6 +28,7 @@ public class WorldRendererCanvas extends Canvas implements Runnable {
 
 	protected RegionRenderer				renderer;
 	protected RenderedMap					map;
+	protected RegionMap						regionMap		= new RegionMap();
 
 	protected ScheduledThreadPoolExecutor	executor;
 	protected final List<Future<?>>			submitted		= Collections.synchronizedList(new LinkedList<>());
@@ -67,7 +68,8 @@ public class WorldRendererCanvas extends Canvas implements Runnable {
 	}
 
 	public void loadWorld(File file) {
-		map.clearReload(RegionMap.load(file, BoundingRect.INFINITE).regions);
+		regionMap = RegionMap.load(file, BoundingRect.INFINITE);
+		map.clearReload(regionMap.regions);
 		invalidateTextures();
 	}
 
@@ -127,6 +129,11 @@ public class WorldRendererCanvas extends Canvas implements Runnable {
 		return renderer;
 	}
 
+	/** @return the regions of the world that was loaded last */
+	public RegionMap getRegionMap() {
+		return regionMap;
+	}
+
 	@Override
 	public void run() {
 		RenderedRegion region = null;
@@ -138,7 +145,7 @@ public class WorldRendererCanvas extends Canvas implements Runnable {
 			try (RegionFile rf = new RegionFile(region.region.regionFile)) {
 				BufferedImage texture2 = null;
 				do {
-					texture2 = renderer.render(rf);
+					texture2 = renderer.render(rf, renderer.getRenderContext());
 				} while (region.valid.compareAndSet(RenderingState.REDRAW, RenderingState.DRAWING) && !Thread.interrupted());
 
 				WritableImage texture = SwingFXUtils.toFXImage(texture2, null);
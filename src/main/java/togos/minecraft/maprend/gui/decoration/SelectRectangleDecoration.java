@@ -1,13 +1,17 @@
 package togos.minecraft.maprend.gui.decoration;
 
+import java.io.File;
 import java.util.Objects;
 import org.joml.Rectangled;
 import org.joml.Vector2d;
 import org.joml.Vector2dc;
 import javafx.scene.input.MouseButton;
 import javafx.scene.paint.Color;
+import togos.minecraft.maprend.BoundingRect;
 import togos.minecraft.maprend.gui.CanvasHelper;
+import togos.minecraft.maprend.gui.CropExportTask;
 import togos.minecraft.maprend.gui.DisplayViewport;
+import togos.minecraft.maprend.gui.WorldRendererCanvas;
 
 public class SelectRectangleDecoration extends CanvasHelper {
 
@@ -67,4 +71,23 @@ public class SelectRectangleDecoration extends CanvasHelper {
 	public Rectangled getSelected() {
 		return new Rectangled(Math.min(dragStart.x, dragEnd.x), Math.min(dragStart.y, dragEnd.y), Math.max(dragStart.x, dragEnd.x), Math.max(dragStart.y, dragEnd.y));
 	}
+
+	/** @return the blocks the selection touches, in block coordinates (x and z) */
+	public BoundingRect getSelectedBlocks() {
+		Rectangled selected = getSelected();
+		return new BoundingRect((int) Math.floor(selected.minX), (int) Math.floor(selected.minY), (int) Math.ceil(selected.maxX), (int) Math.ceil(selected
+				.maxY));
+	}
+
+	/**
+	 * Renders exactly the selected blocks of the world shown on the given canvas into a PNG file, in the background.
+	 * 
+	 * @return the running task, or <code>null</code> if nothing is selected
+	 */
+	public CropExportTask exportSelection(WorldRendererCanvas canvas, File target) {
+		BoundingRect blocks = getSelectedBlocks();
+		if (blocks.maxX <= blocks.minX || blocks.maxY <= blocks.minY)
+			return null;
+		return new CropExportTask(canvas.getRegionRenderer(), canvas.getRegionMap(), blocks, target).start();
+	}
 }
\ No newline at end of file
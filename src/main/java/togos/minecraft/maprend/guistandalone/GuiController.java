@@ -24,13 +24,17 @@ import javafx.scene.control.ButtonType;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.BorderPane;
 import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
+import javafx.stage.FileChooser.ExtensionFilter;
 import javafx.stage.Modality;
 import togos.minecraft.maprend.DotMinecraft;
 import togos.minecraft.maprend.RegionRenderer;
 import togos.minecraft.maprend.RenderSettings;
+import togos.minecraft.maprend.gui.CropExportTask;
 import togos.minecraft.maprend.gui.MapPane;
 import togos.minecraft.maprend.gui.WorldRendererCanvas;
 import togos.minecraft.maprend.gui.decoration.DragScrollDecoration;
+import togos.minecraft.maprend.gui.decoration.SelectRectangleDecoration;
 import togos.minecraft.maprend.gui.decoration.SettingsOverlay;
 
 public class GuiController implements Initializable {
@@ -43,8 +47,11 @@ public class GuiController implements Initializable {
 	private TextField			pathField;
 	@FXML
 	private Button				browseButton;
+	@FXML
+	private Button				exportButton;
 
-	protected MapPane			pane;
+	protected MapPane					pane;
+	protected SelectRectangleDecoration	selection;
 
 	public GuiController() {
 	}
@@ -58,6 +65,7 @@ public class GuiController implements Initializable {
 			e1.printStackTrace();
 		}
 		pane.decorationLayers.add(new DragScrollDecoration(renderer.viewport));
+		pane.decorationLayers.add(selection = new SelectRectangleDecoration(renderer.viewport, null));
 		pane.settingsLayers.add(new SettingsOverlay(renderer));
 	}
 
@@ -129,6 +137,36 @@ public class GuiController implements Initializable {
 		pathField.fireEvent(new ActionEvent());
 	}
 
+	/** Asks where to save the blocks selected with the primary mouse button, and renders them there in the background. */
+	public void exportSelection() {
+		FileChooser dialog = new FileChooser();
+		dialog.setTitle("Export selection");
+		dialog.getExtensionFilters().add(new ExtensionFilter("PNG image", "*.png"));
+		File f = dialog.showSaveDialog(null);
+		if (f == null)
+			return;
+		CropExportTask task = selection.exportSelection(renderer, f);
+		if (task == null) {
+			new Alert(AlertType.WARNING, "Select an area by dragging with the left mouse button first", ButtonType.OK).showAndWait();
+			return;
+		}
+		exportButton.setDisable(true);
+		exportButton.textProperty().bind(task.messageProperty());
+		task.setOnSucceeded(e -> resetExportButton());
+		task.setOnFailed(e -> {
+			resetExportButton();
+			task.getException().printStackTrace();
+			new Alert(AlertType.ERROR, "Could not export the selection: " + task.getException(), ButtonType.OK).showAndWait();
+		});
+	}
+
+	/** Undo what exportSelection did to the button once its task is done */
+	private void resetExportButton() {
+		exportButton.textProperty().unbind();
+		exportButton.setText("Export selection");
+		exportButton.setDisable(false);
+	}
+
 	private boolean hasFilesWithEnding(Path path, String ending) {
 		try {
 			return Files.list(path).anyMatch(p -> p.getFileName().toString().endsWith("." + ending));
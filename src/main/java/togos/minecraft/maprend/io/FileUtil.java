@@ -0,0 +1,59 @@
+package togos.minecraft.maprend.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helpers for writing files so that a process killed part way through
+ * leaves either the old version of a file or the new one, never a
+ * truncated mix of the two.
+ */
+public class FileUtil
+{
+	/**
+	 * Create an empty temporary file in the same directory as f, to be moved
+	 * over it once written.  Its name is unique, so other threads and processes
+	 * writing the same file, even on other hosts, each get their own.
+	 */
+	public static File tempFile( File f ) throws IOException {
+		return File.createTempFile("."+f.getName()+".", ".temp", f.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Move a completely written temporary file over dest, atomically where the
+	 * filesystem allows it.  The temporary file is deleted if that fails.
+	 */
+	public static void replace( File temp, File dest ) throws IOException {
+		try {
+			try {
+				Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch( AtomicMoveNotSupportedException e ) {
+				Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch( IOException e ) {
+			temp.delete();
+			throw new IOException("Failed to rename "+temp+" to "+dest, e);
+		}
+	}
+
+	/** Write data to a temporary file and then move it over dest */
+	public static void write( File dest, byte[] data ) throws IOException {
+		File temp = tempFile(dest);
+		try {
+			FileOutputStream fos = new FileOutputStream(temp);
+			try {
+				fos.write(data);
+			} finally {
+				fos.close();
+			}
+		} catch( IOException e ) {
+			temp.delete();
+			throw e;
+		}
+		replace(temp, dest);
+	}
+}
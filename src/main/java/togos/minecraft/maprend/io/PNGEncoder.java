@@ -0,0 +1,643 @@
+package togos.minecraft.maprend.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes PNG files straight from ARGB pixel arrays, which is quite a bit
+ * faster than going through ImageIO.
+ *
+ * Each row is left unfiltered or gets the Sub or Up filter, whichever
+ * leaves the fewest bytes that differ from the byte a pixel before, i.e.
+ * the fewest breaks in runs that deflate could otherwise copy.  The usual
+ * heuristic, the smallest sum of absolute differences over all five
+ * filters, makes map tiles, with their flat areas of a few hundred colors,
+ * about half as big again as leaving them unfiltered.  This one does
+ * about as well as no filtering on those and better on smoother images,
+ * and Average and Paeth hardly ever win by it, so they aren't tried.
+ *
+ * The filtered rows are then compressed in bands, each with its own
+ * Deflater, which can run in parallel.  Every band but the last ends
+ * with a sync flush, so the compressed bands joined together make a
+ * single zlib stream, and each band is primed with the end of the one
+ * before it so that little is lost by splitting them up.
+ *
+ * Images that are entirely opaque are written without an alpha channel.
+ * Depending on {@link #paletteMode}, images with few enough colors can be
+ * written with a palette instead; see {@link Palette}.
+ */
+public class PNGEncoder
+{
+	protected static final byte[] SIGNATURE = { (byte)137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+	protected static final int COLOR_TYPE_RGB = 2;
+	protected static final int COLOR_TYPE_INDEXED = 3;
+	protected static final int COLOR_TYPE_RGBA = 6;
+	/** Deflate can refer back this many bytes, so there's no use priming a band with more */
+	protected static final int WINDOW_SIZE = 32768;
+
+	public static final int DEFAULT_LEVEL = 4;
+	public static final int DEFAULT_BAND_ROWS = 64;
+	/** One in this many indexed images is also encoded in true color to measure the savings */
+	protected static final int SAVINGS_SAMPLE_INTERVAL = 8;
+
+	/** When to write images with a palette instead of in true color */
+	public enum PaletteMode {
+		/** Never */
+		NONE,
+		/** When they have no more than 256 colors */
+		EXACT,
+		/** Always, reducing those with more colors to 256 */
+		LOSSY
+	}
+
+	/** Counts of what has been written, for reporting how much palettes saved */
+	public static class Stats {
+		public final AtomicLong images = new AtomicLong();
+		public final AtomicLong indexedImages = new AtomicLong();
+		public final AtomicLong lossyImages = new AtomicLong();
+		public final AtomicLong bytes = new AtomicLong();
+		public final AtomicLong indexedBytes = new AtomicLong();
+		/** Sizes of the sampled indexed images, and of the same images in true color */
+		public final AtomicLong sampledIndexedBytes = new AtomicLong();
+		public final AtomicLong sampledTruecolorBytes = new AtomicLong();
+
+		/**
+		 * @param palette the palette the image was written with, or null if it was written in true color
+		 * @param truecolorSize size of the image in true color if it was measured, or 0
+		 */
+		void record( int size, Palette palette, int truecolorSize ) {
+			images.incrementAndGet();
+			bytes.addAndGet(size);
+			if( palette == null ) return;
+			indexedImages.incrementAndGet();
+			indexedBytes.addAndGet(size);
+			if( palette.lossy ) lossyImages.incrementAndGet();
+			if( truecolorSize > 0 ) {
+				sampledIndexedBytes.addAndGet(size);
+				sampledTruecolorBytes.addAndGet(truecolorSize);
+			}
+		}
+
+		/** @return about how many bytes writing images with a palette saved */
+		public long getEstimatedSavings() {
+			if( sampledIndexedBytes.get() == 0 ) return 0;
+			double ratio = (double)sampledTruecolorBytes.get() / sampledIndexedBytes.get();
+			return Math.round(indexedBytes.get() * (ratio - 1));
+		}
+
+		public String format() {
+			long saved = getEstimatedSavings();
+			long total = bytes.get();
+			return indexedImages.get() + " of " + images.get() + " PNG files written with a palette (" +
+				lossyImages.get() + " lossily), " + total/1024 + " KiB in all; about " + saved/1024 + " KiB (" +
+				Math.round(100.0 * saved / Math.max(1, total + saved)) + "%) smaller than in true color";
+		}
+	}
+
+	/** Deflater compression level, from 0 (none) to 9 (best) */
+	public final int level;
+	/** Number of rows compressed together */
+	public final int bandRows;
+	public final PaletteMode paletteMode;
+	/** Runs the bands of an image, or null to do all of them on the calling thread */
+	protected final ExecutorService executor;
+	public final Stats stats = new Stats();
+
+	public PNGEncoder( int level, PaletteMode paletteMode, ExecutorService executor, int bandRows ) {
+		if( level < 0 || level > 9 ) throw new IllegalArgumentException("Compression level must be from 0 to 9; given "+level);
+		this.level = level;
+		this.paletteMode = paletteMode;
+		this.executor = executor;
+		this.bandRows = bandRows;
+	}
+
+	public PNGEncoder( int level, ExecutorService executor, int bandRows ) {
+		this( level, PaletteMode.NONE, executor, bandRows );
+	}
+
+	public PNGEncoder( int level, ExecutorService executor ) {
+		this( level, executor, DEFAULT_BAND_ROWS );
+	}
+
+	/** @return an encoder that compresses bands using the common fork/join pool if there's more than one processor */
+	public static PNGEncoder create( int level, PaletteMode paletteMode ) {
+		boolean parallel = Runtime.getRuntime().availableProcessors() > 1;
+		return new PNGEncoder( level, paletteMode, parallel ? ForkJoinPool.commonPool() : null, DEFAULT_BAND_ROWS );
+	}
+
+	/**
+	 * @return the image's pixels if it's an ARGB image backed by an
+	 *   array with one row after another and nothing in between, or null
+	 */
+	public static int[] getPixels( BufferedImage image ) {
+		if( image.getType() != BufferedImage.TYPE_INT_ARGB ) return null;
+		if( !(image.getSampleModel() instanceof SinglePixelPackedSampleModel) ) return null;
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)image.getSampleModel();
+		if( sm.getScanlineStride() != image.getWidth() ) return null;
+		if( image.getRaster().getSampleModelTranslateX() != 0 || image.getRaster().getSampleModelTranslateY() != 0 ) return null;
+		DataBufferInt db = (DataBufferInt)image.getRaster().getDataBuffer();
+		if( db.getNumBanks() != 1 || db.getOffset() != 0 ) return null;
+		return db.getData();
+	}
+
+	/** Encode an image, falling back to ImageIO if it isn't one {@link #encode(int[], int, int)} can work from directly */
+	public byte[] encode( BufferedImage image ) throws IOException {
+		int[] pixels = getPixels(image);
+		if( pixels == null ) return encodeWithImageIO(image);
+		return encode( pixels, image.getWidth(), image.getHeight() );
+	}
+
+	public static byte[] encodeWithImageIO( BufferedImage image ) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(256*1024);
+		ImageIO.write(image, "png", bos);
+		return bos.toByteArray();
+	}
+
+	protected static boolean isOpaque( int[] argb, int count ) {
+		for( int i=0; i<count; ++i ) {
+			if( (argb[i] >>> 24) != 0xFF ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param argb width*height pixels, row by row
+	 * @return the PNG file
+	 */
+	public byte[] encode( int[] argb, int width, int height ) throws IOException {
+		Palette palette = null;
+		if( paletteMode != PaletteMode.NONE ) {
+			palette = Palette.exact( argb, width*height );
+			if( palette == null && paletteMode == PaletteMode.LOSSY ) {
+				palette = Palette.quantize( argb, width*height, Palette.MAX_COLORS );
+			}
+		}
+		if( palette == null ) {
+			byte[] png = encodeTruecolor( argb, width, height );
+			stats.record( png.length, null, 0 );
+			return png;
+		}
+		byte[] png = encodeIndexed( palette, width, height );
+		// Encode a sample of indexed images both ways to see how much is being saved
+		int truecolorSize = stats.indexedImages.get() % SAVINGS_SAMPLE_INTERVAL == 0 ? encodeTruecolor(argb, width, height).length : 0;
+		stats.record( png.length, palette, truecolorSize );
+		return png;
+	}
+
+	protected byte[] encodeTruecolor( final int[] argb, final int width, int height ) throws IOException {
+		final int bpp = isOpaque(argb, width*height) ? 3 : 4;
+		byte[] idat = compress( height, new RowFilter() {
+			@Override
+			public byte[] filter( int startRow, int endRow ) {
+				return filterRows( argb, width, bpp, startRow, endRow );
+			}
+		});
+		return pngFile( width, height, bpp == 4 ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB, null, null, idat );
+	}
+
+	protected byte[] encodeIndexed( final Palette palette, final int width, int height ) throws IOException {
+		// Filtering palette indexes doesn't help, since nearby indexes needn't be similar colors
+		byte[] idat = compress( height, new RowFilter() {
+			@Override
+			public byte[] filter( int startRow, int endRow ) {
+				byte[] out = new byte[(endRow - startRow) * (width + 1)];
+				for( int y=startRow, o=0; y<endRow; ++y, o+=width+1 ) {
+					out[o] = FILTER_NONE;
+					System.arraycopy( palette.indices, y*width, out, o+1, width );
+				}
+				return out;
+			}
+		});
+		byte[] plte = new byte[palette.colors.length * 3];
+		for( int i=0; i<palette.colors.length; ++i ) {
+			int c = palette.colors[i];
+			plte[i*3  ] = (byte)(c >> 16);
+			plte[i*3+1] = (byte)(c >> 8);
+			plte[i*3+2] = (byte)c;
+		}
+		byte[] trns = null;
+		if( palette.translucentCount > 0 ) {
+			trns = new byte[palette.translucentCount];
+			for( int i=0; i<trns.length; ++i ) trns[i] = (byte)(palette.colors[i] >>> 24);
+		}
+		return pngFile( width, height, COLOR_TYPE_INDEXED, plte, trns, idat );
+	}
+
+	/** Filters a range of rows of an image, giving each its filter type byte */
+	protected interface RowFilter {
+		public byte[] filter( int startRow, int endRow );
+	}
+
+	/** @return the number of rows to filter and compress together when there are the given number in all */
+	protected int rowsPerBand( int height ) {
+		int bandCount = executor == null ? 1 : Math.max(1, (height + bandRows - 1) / bandRows);
+		return (height + bandCount - 1) / bandCount;
+	}
+
+	/** @return the filtered rows of each band of rowsPerBand rows, filtered in parallel */
+	protected byte[][] filterBands( final int height, final int rowsPerBand, final RowFilter rowFilter ) throws IOException {
+		final int bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+		final byte[][] filtered = new byte[bandCount][];
+		List<Callable<Void>> filterTasks = new ArrayList<Callable<Void>>();
+		for( int b=0; b<bandCount; ++b ) {
+			final int band = b;
+			filterTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int startRow = band * rowsPerBand;
+					filtered[band] = rowFilter.filter( startRow, Math.min(height, startRow + rowsPerBand) );
+					return null;
+				}
+			});
+		}
+		runAll( filterTasks );
+		return filtered;
+	}
+
+	/**
+	 * Compress filtered bands in parallel, each primed with the one before
+	 * @param before the band before the first, or null if the first starts the image
+	 * @param finish whether the last band ends the image
+	 */
+	protected byte[][] deflateBands( final byte[][] filtered, final byte[] before, final boolean finish ) throws IOException {
+		final int bandCount = filtered.length;
+		final byte[][] compressed = new byte[bandCount][];
+		List<Callable<Void>> deflateTasks = new ArrayList<Callable<Void>>();
+		for( int b=0; b<bandCount; ++b ) {
+			final int band = b;
+			deflateTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					compressed[band] = deflate( filtered[band], band == 0 ? before : filtered[band-1], finish && band == bandCount-1 );
+					return null;
+				}
+			});
+		}
+		runAll( deflateTasks );
+		return compressed;
+	}
+
+	/** @return the zlib stream of an image's filtered rows, compressed in bands */
+	protected byte[] compress( final int height, final RowFilter rowFilter ) throws IOException {
+		// Filter every band first, since each one's compression is primed with the one before
+		byte[][] filtered = filterBands( height, rowsPerBand(height), rowFilter );
+		byte[][] compressed = deflateBands( filtered, null, true );
+		int bandCount = filtered.length;
+
+		ByteArrayOutputStream idat = new ByteArrayOutputStream();
+		idat.write( 0x78 );
+		idat.write( zlibFlags(level) );
+		Adler32 adler = new Adler32();
+		for( int b=0; b<bandCount; ++b ) {
+			idat.write( compressed[b] );
+			adler.update( filtered[b] );
+		}
+		long checksum = adler.getValue();
+		idat.write( (int)(checksum >>> 24) );
+		idat.write( (int)(checksum >>> 16) );
+		idat.write( (int)(checksum >>> 8) );
+		idat.write( (int)checksum );
+		return idat.toByteArray();
+	}
+
+	/**
+	 * @param plte the PLTE chunk, for indexed images, or null
+	 * @param trns the tRNS chunk, or null
+	 */
+	protected static byte[] pngFile( int width, int height, int colorType, byte[] plte, byte[] trns, byte[] idat ) throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream( idat.length + 1024 );
+		png.write( SIGNATURE );
+		writeChunk( png, "IHDR", ihdr(width, height, colorType) );
+		if( plte != null ) writeChunk( png, "PLTE", plte );
+		if( trns != null ) writeChunk( png, "tRNS", trns );
+		writeChunk( png, "IDAT", idat );
+		writeChunk( png, "IEND", new byte[0] );
+		return png.toByteArray();
+	}
+
+	protected static byte[] ihdr( int width, int height, int colorType ) throws IOException {
+		ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+		DataOutputStream ihdrOut = new DataOutputStream( ihdr );
+		ihdrOut.writeInt( width );
+		ihdrOut.writeInt( height );
+		ihdrOut.writeByte( 8 ); // Bits per sample
+		ihdrOut.writeByte( colorType );
+		ihdrOut.writeByte( 0 ); // Deflate
+		ihdrOut.writeByte( 0 ); // Adaptive filtering
+		ihdrOut.writeByte( 0 ); // Not interlaced
+		return ihdr.toByteArray();
+	}
+
+	/** Run the tasks on the executor, if there is one and more than one task, and wait for them all */
+	protected void runAll( List<Callable<Void>> tasks ) throws IOException {
+		if( executor == null || tasks.size() == 1 ) {
+			for( Callable<Void> task : tasks ) {
+				try {
+					task.call();
+				} catch( Exception e ) {
+					throw new RuntimeException(e);
+				}
+			}
+			return;
+		}
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for( Callable<Void> task : tasks ) futures.add( executor.submit(task) );
+		try {
+			for( Future<Void> f : futures ) f.get();
+		} catch( InterruptedException e ) {
+			for( Future<Void> f : futures ) f.cancel(true);
+			throw new IOException("Interrupted while encoding PNG", e);
+		} catch( ExecutionException e ) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** @return FLG of a zlib header giving the compression level, with its check bits */
+	protected static int zlibFlags( int level ) {
+		int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+		int flg = flevel << 6;
+		return flg + (31 - (0x78 * 256 + flg) % 31);
+	}
+
+	protected static void writeChunk( OutputStream out, String type, byte[] data ) throws IOException {
+		DataOutputStream dos = new DataOutputStream( out );
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		dos.writeInt( data.length );
+		dos.write( typeBytes );
+		dos.write( data );
+		CRC32 crc = new CRC32();
+		crc.update( typeBytes );
+		crc.update( data );
+		dos.writeInt( (int)crc.getValue() );
+	}
+
+	protected static void rowBytes( int[] argb, int offset, int width, int bpp, byte[] dest ) {
+		for( int x=0, i=0; x<width; ++x ) {
+			int p = argb[offset+x];
+			dest[i++] = (byte)(p >> 16);
+			dest[i++] = (byte)(p >> 8);
+			dest[i++] = (byte)p;
+			if( bpp == 4 ) dest[i++] = (byte)(p >>> 24);
+		}
+	}
+
+	protected static final int FILTER_NONE = 0;
+	protected static final int FILTER_SUB = 1;
+	protected static final int FILTER_UP = 2;
+
+	/**
+	 * Filter rows startRow up to endRow, each with the filter type that
+	 * leaves the fewest bytes differing from the one a pixel before.
+	 * @return each row's filter type followed by its filtered bytes
+	 */
+	protected static byte[] filterRows( int[] argb, int width, int bpp, int startRow, int endRow ) {
+		return filterRows( argb, width, bpp, startRow, endRow, null );
+	}
+
+	/** Like {@link #filterRows(int[], int, int, int, int)}, with above, if not null, as the row before argb's first */
+	protected static byte[] filterRows( int[] argb, int width, int bpp, int startRow, int endRow, int[] above ) {
+		final int stride = width * bpp;
+		byte[] out = new byte[(endRow - startRow) * (stride + 1)];
+		byte[] prev = new byte[stride];
+		byte[] cur = new byte[stride];
+		if( startRow > 0 ) rowBytes( argb, (startRow-1)*width, width, bpp, prev );
+		else if( above != null ) rowBytes( above, 0, width, bpp, prev );
+		int o = 0;
+		for( int y=startRow; y<endRow; ++y ) {
+			rowBytes( argb, y*width, width, bpp, cur );
+			
+			int noneBreaks = 0, subBreaks = 0, upBreaks = 0;
+			for( int i=bpp; i<stride; ++i ) {
+				byte x = cur[i], a = cur[i-bpp];
+				byte aa = i >= 2*bpp ? cur[i-2*bpp] : 0;
+				if( x != a ) ++noneBreaks;
+				if( (byte)(x - a) != (byte)(a - aa) ) ++subBreaks;
+				if( (byte)(x - prev[i]) != (byte)(a - prev[i-bpp]) ) ++upBreaks;
+			}
+			int type = FILTER_NONE;
+			if( subBreaks < noneBreaks ) type = FILTER_SUB;
+			if( upBreaks < Math.min(noneBreaks, subBreaks) ) type = FILTER_UP;
+			
+			out[o++] = (byte)type;
+			switch( type ) {
+			case FILTER_NONE:
+				System.arraycopy( cur, 0, out, o, stride );
+				break;
+			case FILTER_SUB:
+				for( int i=0; i<stride; ++i ) out[o+i] = (byte)(cur[i] - (i >= bpp ? cur[i-bpp] : 0));
+				break;
+			case FILTER_UP:
+				for( int i=0; i<stride; ++i ) out[o+i] = (byte)(cur[i] - prev[i]);
+				break;
+			}
+			o += stride;
+			
+			byte[] temp = prev;
+			prev = cur;
+			cur = temp;
+		}
+		return out;
+	}
+
+	/**
+	 * Compress a band of filtered rows as raw deflate data that can be
+	 * joined onto the bands before it.
+	 * @param previous the band before, whose end is used as a dictionary, or null for the first one
+	 * @param last whether this is the last band, which finishes the stream; the others end with a sync flush
+	 */
+	protected byte[] deflate( byte[] data, byte[] previous, boolean last ) {
+		Deflater deflater = new Deflater( level, true );
+		try {
+			if( previous != null ) {
+				int length = Math.min(WINDOW_SIZE, previous.length);
+				deflater.setDictionary( previous, previous.length - length, length );
+			}
+			deflater.setInput( data );
+			ByteArrayOutputStream out = new ByteArrayOutputStream( data.length / 4 + 64 );
+			byte[] buffer = new byte[65536];
+			if( last ) {
+				deflater.finish();
+				while( !deflater.finished() ) {
+					int n = deflater.deflate( buffer );
+					out.write( buffer, 0, n );
+				}
+			} else {
+				int n;
+				do {
+					n = deflater.deflate( buffer, 0, buffer.length, Deflater.SYNC_FLUSH );
+					out.write( buffer, 0, n );
+				} while( n == buffer.length );
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Writes an image given a few rows at a time, for images too big to
+	 * hold in memory all at once.  The rows of each call are filtered and
+	 * compressed in bands like those of a whole image and written out as
+	 * IDAT chunks straight away, so only they need to be held.  Images are
+	 * always written with an alpha channel, since whether one is needed
+	 * isn't known until the last row.
+	 */
+	public class StreamWriter
+	{
+		protected final OutputStream out;
+		public final int width, height;
+		protected int rowsWritten;
+		protected final Adler32 adler = new Adler32();
+		/** The last band written, to prime the next one with, and its last row, for the Up filter */
+		protected byte[] lastBand;
+		protected int[] lastRow;
+
+		/** Write the start of the PNG file to out */
+		public StreamWriter( OutputStream out, int width, int height ) throws IOException {
+			this.out = out;
+			this.width = width;
+			this.height = height;
+			out.write( SIGNATURE );
+			writeChunk( out, "IHDR", ihdr(width, height, COLOR_TYPE_RGBA) );
+		}
+
+		/**
+		 * Write the next rows of the image, and finish the file once the last has been written
+		 * @param argb rowCount rows of pixels, one after another
+		 */
+		public void writeRows( final int[] argb, int rowCount ) throws IOException {
+			if( rowCount == 0 ) return;
+			if( rowsWritten + rowCount > height ) {
+				throw new IllegalStateException("Image is "+height+" rows high; "+rowsWritten+" written and "+rowCount+" more given");
+			}
+			final int[] above = lastRow;
+			byte[][] filtered = filterBands( rowCount, rowsPerBand(rowCount), new RowFilter() {
+				@Override
+				public byte[] filter( int startRow, int endRow ) {
+					return filterRows( argb, width, 4, startRow, endRow, above );
+				}
+			});
+			boolean finish = rowsWritten + rowCount == height;
+			byte[][] compressed = deflateBands( filtered, lastBand, finish );
+			for( int b=0; b<filtered.length; ++b ) {
+				ByteArrayOutputStream idat = new ByteArrayOutputStream( compressed[b].length + 6 );
+				if( rowsWritten == 0 && b == 0 ) {
+					idat.write( 0x78 );
+					idat.write( zlibFlags(level) );
+				}
+				idat.write( compressed[b] );
+				adler.update( filtered[b] );
+				if( finish && b == filtered.length-1 ) {
+					long checksum = adler.getValue();
+					idat.write( (int)(checksum >>> 24) );
+					idat.write( (int)(checksum >>> 16) );
+					idat.write( (int)(checksum >>> 8) );
+					idat.write( (int)checksum );
+				}
+				writeChunk( out, "IDAT", idat.toByteArray() );
+			}
+			lastBand = filtered[filtered.length-1];
+			lastRow = new int[width];
+			System.arraycopy( argb, (rowCount-1)*width, lastRow, 0, width );
+			rowsWritten += rowCount;
+			if( finish ) writeChunk( out, "IEND", new byte[0] );
+		}
+
+		public boolean isFinished() {
+			return rowsWritten == height;
+		}
+	}
+
+	//// Benchmark ////
+
+	protected static BufferedImage readARGB( File f ) throws IOException {
+		BufferedImage read = ImageIO.read(f);
+		BufferedImage image = new BufferedImage(read.getWidth(), read.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		image.getRaster().setDataElements(0, 0, read.getWidth(), read.getHeight(),
+			read.getRGB(0, 0, read.getWidth(), read.getHeight(), null, 0, read.getWidth()));
+		return image;
+	}
+
+	protected interface Encoding {
+		public byte[] encode( BufferedImage image ) throws IOException;
+	}
+
+	protected static void benchmark( String name, Encoding encoding, List<BufferedImage> images, int rounds ) throws IOException {
+		long size = 0;
+		// Once to warm up
+		for( BufferedImage image : images ) encoding.encode(image);
+		long startTime = System.nanoTime();
+		for( int round=0; round<rounds; ++round ) {
+			size = 0;
+			for( BufferedImage image : images ) size += encoding.encode(image).length;
+		}
+		double msPerImage = (System.nanoTime() - startTime) / 1e6 / rounds / images.size();
+		System.out.println(String.format("%-24s %8.2f ms/image %10d bytes", name, msPerImage, size));
+	}
+
+	/**
+	 * Compare the time taken and size of the output of ImageIO and of this
+	 * encoder, at various levels, with and without parallel compression,
+	 * and with palettes, on the given PNG files (e.g. tiles from a render).
+	 */
+	public static void main( String[] args ) throws IOException {
+		List<BufferedImage> images = new ArrayList<BufferedImage>();
+		for( String arg : args ) images.add( readARGB(new File(arg)) );
+		if( images.isEmpty() ) {
+			System.err.println("Usage: PNGEncoder <png-file> ...");
+			System.exit(1);
+		}
+		int rounds = Math.max(1, 50 / images.size());
+		System.out.println(images.size() + " images, " + rounds + " rounds");
+		benchmark( "ImageIO", new Encoding() {
+			@Override
+			public byte[] encode( BufferedImage image ) throws IOException {
+				return encodeWithImageIO(image);
+			}
+		}, images, rounds );
+		for( int level : new int[] { 1, 4, 6, 9 } ) {
+			final PNGEncoder serial = new PNGEncoder(level, null);
+			final PNGEncoder parallel = create(level, PaletteMode.NONE);
+			benchmark( "Level "+level+", one band", new Encoding() {
+				@Override
+				public byte[] encode( BufferedImage image ) throws IOException {
+					return serial.encode(image);
+				}
+			}, images, rounds );
+			benchmark( "Level "+level+", parallel", new Encoding() {
+				@Override
+				public byte[] encode( BufferedImage image ) throws IOException {
+					return parallel.encode(image);
+				}
+			}, images, rounds );
+		}
+		for( PaletteMode mode : new PaletteMode[] { PaletteMode.EXACT, PaletteMode.LOSSY } ) {
+			final PNGEncoder encoder = create(DEFAULT_LEVEL, mode);
+			benchmark( "Level "+DEFAULT_LEVEL+", "+mode.name().toLowerCase()+" palette", new Encoding() {
+				@Override
+				public byte[] encode( BufferedImage image ) throws IOException {
+					return encoder.encode(image);
+				}
+			}, images, rounds );
+			System.out.println("  " + encoder.stats.format());
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package togos.minecraft.maprend.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The colors of an image with no more than 256 of them, and the index
+ * of each pixel's color, for writing the image as an indexed PNG.
+ *
+ * Colors that aren't fully opaque come first, so that the PNG's tRNS
+ * chunk, which gives the alpha of palette entries up to the last one
+ * that isn't opaque, is as short as can be.  All fully transparent
+ * pixels share one entry, whatever their other channels.
+ */
+public class Palette
+{
+	public static final int MAX_COLORS = 256;
+
+	/** ARGB colors, those that aren't opaque first */
+	public final int[] colors;
+	/** Number of colors that aren't fully opaque */
+	public final int translucentCount;
+	/** Index into colors of each pixel's color */
+	public final byte[] indices;
+	/** Whether some pixels' colors were changed to fit them into the palette */
+	public final boolean lossy;
+
+	protected Palette( int[] colors, byte[] indices, boolean lossy ) {
+		// Put the translucent colors first
+		int[] order = new int[colors.length];
+		int translucentCount = 0;
+		for( int i=0; i<colors.length; ++i ) if( (colors[i] >>> 24) != 0xFF ) order[translucentCount++] = i;
+		int n = translucentCount;
+		for( int i=0; i<colors.length; ++i ) if( (colors[i] >>> 24) == 0xFF ) order[n++] = i;
+		byte[] remap = new byte[colors.length];
+		this.colors = new int[colors.length];
+		for( int i=0; i<colors.length; ++i ) {
+			this.colors[i] = colors[order[i]];
+			remap[order[i]] = (byte)i;
+		}
+		for( int i=0; i<indices.length; ++i ) indices[i] = remap[indices[i]&0xFF];
+		this.translucentCount = translucentCount;
+		this.indices = indices;
+		this.lossy = lossy;
+	}
+
+	protected static int normalize( int argb ) {
+		return (argb >>> 24) == 0 ? 0 : argb;
+	}
+
+	/** @return the palette of the first count pixels, or null if there are more than {@link #MAX_COLORS} colors */
+	public static Palette exact( int[] argb, int count ) {
+		// Open addressing, with room enough that probe runs stay short
+		final int tableSize = 1024;
+		int[] keys = new int[tableSize];
+		short[] slots = new short[tableSize];
+		Arrays.fill( slots, (short)-1 );
+		int[] colors = new int[MAX_COLORS];
+		int colorCount = 0;
+		byte[] indices = new byte[count];
+		int lastColor = 0, lastIndex = -1;
+		for( int i=0; i<count; ++i ) {
+			int c = normalize(argb[i]);
+			if( c == lastColor && lastIndex >= 0 ) {
+				indices[i] = (byte)lastIndex;
+				continue;
+			}
+			int h = (c * 0x9E3779B9) >>> 22;
+			while( slots[h] >= 0 && keys[h] != c ) h = (h + 1) & (tableSize - 1);
+			if( slots[h] < 0 ) {
+				if( colorCount == MAX_COLORS ) return null;
+				keys[h] = c;
+				slots[h] = (short)colorCount;
+				colors[colorCount++] = c;
+			}
+			lastColor = c;
+			lastIndex = slots[h];
+			indices[i] = (byte)lastIndex;
+		}
+		return new Palette( Arrays.copyOf(colors, colorCount), indices, false );
+	}
+
+	protected static int channel( int argb, int shift ) {
+		return (argb >>> shift) & 0xFF;
+	}
+
+	/** A range of the distinct colors being quantized, which will become one palette entry */
+	static final class Box {
+		final int start, end;
+		/** Shift of the channel with the widest range, and that range */
+		int widestShift, widestRange;
+
+		Box( int start, int end, int[] colors ) {
+			this.start = start;
+			this.end = end;
+			for( int shift=0; shift<32; shift+=8 ) {
+				int min = 255, max = 0;
+				for( int i=start; i<end; ++i ) {
+					int v = channel(colors[i], shift);
+					if( v < min ) min = v;
+					if( v > max ) max = v;
+				}
+				if( max - min >= widestRange ) {
+					widestRange = max - min;
+					widestShift = shift;
+				}
+			}
+		}
+	}
+
+	/** Sort part of colors, and counts along with them, by one channel */
+	protected static void sortByChannel( int[] colors, int[] counts, int start, int end, int shift, int[] tempColors, int[] tempCounts ) {
+		int[] offsets = new int[257];
+		for( int i=start; i<end; ++i ) ++offsets[channel(colors[i], shift)+1];
+		for( int v=0; v<256; ++v ) offsets[v+1] += offsets[v];
+		for( int i=start; i<end; ++i ) {
+			int j = offsets[channel(colors[i], shift)]++;
+			tempColors[j] = colors[i];
+			tempCounts[j] = counts[i];
+		}
+		System.arraycopy( tempColors, 0, colors, start, end - start );
+		System.arraycopy( tempCounts, 0, counts, start, end - start );
+	}
+
+	/**
+	 * Reduce the first count pixels to at most maxColors colors by median cut:
+	 * starting with a box holding every distinct color, repeatedly split
+	 * the box with the widest range in any channel at the median pixel
+	 * along that channel, and then give each box the average of its pixels.
+	 * Fully transparent pixels are kept apart, so they stay transparent.
+	 */
+	public static Palette quantize( int[] argb, int count, int maxColors ) {
+		int[] sorted = new int[count];
+		for( int i=0; i<count; ++i ) sorted[i] = normalize(argb[i]);
+		Arrays.sort( sorted );
+		// Distinct colors and how many pixels have each
+		int[] distinct = new int[count];
+		int[] distinctCounts = new int[count];
+		int distinctCount = 0;
+		for( int i=0; i<count; ++i ) {
+			if( distinctCount > 0 && distinct[distinctCount-1] == sorted[i] ) {
+				++distinctCounts[distinctCount-1];
+			} else {
+				distinct[distinctCount] = sorted[i];
+				distinctCounts[distinctCount++] = 1;
+			}
+		}
+		distinct = Arrays.copyOf( distinct, distinctCount );
+		distinctCounts = Arrays.copyOf( distinctCounts, distinctCount );
+
+		// Colors to be split into boxes, leaving out transparency
+		int transparentAt = Arrays.binarySearch( distinct, 0 );
+		int[] colors = new int[distinctCount];
+		int[] counts = new int[distinctCount];
+		int n = 0;
+		for( int i=0; i<distinctCount; ++i ) {
+			if( i == transparentAt ) continue;
+			colors[n] = distinct[i];
+			counts[n++] = distinctCounts[i];
+		}
+		int boxLimit = transparentAt >= 0 ? maxColors - 1 : maxColors;
+
+		List<Box> boxes = new ArrayList<Box>();
+		if( n > 0 ) boxes.add( new Box(0, n, colors) );
+		int[] tempColors = new int[n], tempCounts = new int[n];
+		while( boxes.size() < boxLimit ) {
+			Box widest = null;
+			for( Box b : boxes ) {
+				if( b.end - b.start > 1 && (widest == null || b.widestRange > widest.widestRange) ) widest = b;
+			}
+			if( widest == null ) break;
+			sortByChannel( colors, counts, widest.start, widest.end, widest.widestShift, tempColors, tempCounts );
+			long total = 0;
+			for( int i=widest.start; i<widest.end; ++i ) total += counts[i];
+			long sum = 0;
+			int split = widest.start + 1;
+			for( int i=widest.start; i<widest.end-1; ++i ) {
+				sum += counts[i];
+				split = i + 1;
+				if( sum * 2 >= total ) break;
+			}
+			boxes.remove( widest );
+			boxes.add( new Box(widest.start, split, colors) );
+			boxes.add( new Box(split, widest.end, colors) );
+		}
+
+		// Each box's color is the average of its pixels;
+		// note which entry each distinct color went to
+		int[] palette = new int[boxes.size() + (transparentAt >= 0 ? 1 : 0)];
+		byte[] entryOf = new byte[distinctCount];
+		for( int b=0; b<boxes.size(); ++b ) {
+			Box box = boxes.get(b);
+			long total = 0;
+			long[] sums = new long[4];
+			for( int i=box.start; i<box.end; ++i ) {
+				total += counts[i];
+				for( int c=0; c<4; ++c ) sums[c] += (long)channel(colors[i], c*8) * counts[i];
+				entryOf[Arrays.binarySearch(distinct, colors[i])] = (byte)b;
+			}
+			int average = 0;
+			for( int c=0; c<4; ++c ) average |= (int)((sums[c] + total/2) / total) << (c*8);
+			palette[b] = average;
+		}
+		if( transparentAt >= 0 ) {
+			palette[boxes.size()] = 0;
+			entryOf[transparentAt] = (byte)boxes.size();
+		}
+
+		byte[] indices = new byte[count];
+		for( int i=0; i<count; ++i ) {
+			indices[i] = entryOf[Arrays.binarySearch(distinct, normalize(argb[i]))];
+		}
+		return new Palette( palette, indices, distinctCount > maxColors );
+	}
+}
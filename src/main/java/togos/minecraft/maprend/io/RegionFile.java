@@ -159,6 +159,52 @@ public class RegionFile implements Closeable
     	return fileName;
     }
 
+    /**
+     * Adds up the sector counts in a region file's header without reading
+     * anything else, as a cheap estimate of how much work rendering it will be.
+     * Returns 0 if the file can't be read.
+     */
+    public static int countChunkSectors(File path) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), SECTOR_BYTES));
+            try {
+                int total = 0;
+                for (int i = 0; i < SECTOR_INTS; ++i) {
+                    total += in.readInt() & 0xFF;
+                }
+                return total;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the chunk timestamps from a region file's header and returns
+     * the newest, in seconds since the epoch, as a measure of how recently
+     * the game changed anything in the region.
+     * Returns 0 if the file can't be read or has no chunks.
+     */
+    public static long getNewestChunkTimestamp(File path) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), SECTOR_BYTES * 2));
+            try {
+                in.skipBytes(SECTOR_BYTES);
+                long newest = 0;
+                for (int i = 0; i < SECTOR_INTS; ++i) {
+                    newest = Math.max(newest, in.readInt() & 0xFFFFFFFFL);
+                }
+                return newest;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
     /* the modification date of the region file when it was first opened */
     public long lastModified() {
         return lastModified;
@@ -196,7 +242,21 @@ public class RegionFile implements Closeable
      * gets an (uncompressed) stream representing the chunk data returns null if
      * the chunk is not found or an error occurs
      */
-    public synchronized DataInputStream getChunkDataInputStream(int x, int z) {
+    public DataInputStream getChunkDataInputStream(int x, int z) {
+        byte[] compressed = getCompressedChunk(x, z);
+        if (compressed == null) return null;
+        DataInputStream ret = getChunkDataInputStream(compressed);
+        if (ret == null) debugln("READ", x, z, "unknown version " + compressed[0]);
+        return ret;
+    }
+
+    /**
+     * Returns the chunk exactly as it is stored in the file: a version byte
+     * followed by the compressed NBT data, or null if the chunk is not found
+     * or an error occurs.  Nothing is decompressed, so this is a cheap way
+     * to tell whether a chunk's contents have changed.
+     */
+    public synchronized byte[] getCompressedChunk(int x, int z) {
         if (outOfBounds(x, z)) {
             debugln("READ", x, z, "out of bounds");
             return null;
@@ -224,30 +284,39 @@ public class RegionFile implements Closeable
                 debugln("READ", x, z, "invalid length: " + length + " > 4096 * " + numSectors);
                 return null;
             }
-
-            byte version = file.readByte();
-            if (version == VERSION_GZIP) {
-                byte[] data = new byte[length - 1];
-                file.read(data);
-                DataInputStream ret = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
-                // debug("READ", x, z, " = found");
-                return ret;
-            } else if (version == VERSION_DEFLATE) {
-                byte[] data = new byte[length - 1];
-                file.read(data);
-                DataInputStream ret = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
-                // debug("READ", x, z, " = found");
-                return ret;
+            if (length < 1) {
+                debugln("READ", x, z, "invalid length: " + length);
+                return null;
             }
 
-            debugln("READ", x, z, "unknown version " + version);
-            return null;
+            byte[] data = new byte[length];
+            file.readFully(data);
+            return data;
         } catch (IOException e) {
             debugln("READ", x, z, "exception");
             return null;
         }
     }
 
+    /**
+     * Decompresses a chunk as returned by {@link #getCompressedChunk(int, int)}.
+     * Returns null if the chunk's version is unknown.
+     */
+    public static DataInputStream getChunkDataInputStream(byte[] compressedChunk) {
+        byte version = compressedChunk[0];
+        InputStream data = new ByteArrayInputStream(compressedChunk, 1, compressedChunk.length - 1);
+        try {
+            if (version == VERSION_GZIP) {
+                return new DataInputStream(new GZIPInputStream(data));
+            } else if (version == VERSION_DEFLATE) {
+                return new DataInputStream(new InflaterInputStream(data));
+            }
+        } catch (IOException e) {
+            // Bad gzip header
+        }
+        return null;
+    }
+
     public DataOutputStream getChunkDataOutputStream(int x, int z) {
     	if (outOfBounds(x, z)) return null;
     	
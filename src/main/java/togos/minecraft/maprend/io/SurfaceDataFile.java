@@ -0,0 +1,134 @@
+package togos.minecraft.maprend.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the pre-shading surface colors and heights of one
+ * 512x512 region, so that tiles can be re-shaded later without going
+ * back to the world.
+ *
+ * The region is split into bands of rows that are deflated separately.
+ * A header gives the offset of each band, so a reader can map the file
+ * and inflate bands straight out of the mapping, one at a time, rather
+ * than reading the whole thing in first.
+ *
+ * Layout (all big-endian):
+ *   int magic ('TMSD'), int version, int width, int rowsPerBand, int bandCount,
+ *   int[bandCount+1] band offsets from the start of the file, the last being the file length,
+ *   then for each band a deflated block of rowsPerBand*width heights (shorts)
+ *   followed by rowsPerBand*width pre-multiplied ARGB colors (ints).
+ */
+public class SurfaceDataFile
+{
+	public static final int MAGIC = 0x544D5344; // 'TMSD'
+	public static final int VERSION = 1;
+	public static final int WIDTH = 512;
+	protected static final int ROWS_PER_BAND = 32;
+	protected static final int BAND_COUNT = WIDTH / ROWS_PER_BAND;
+	protected static final int BAND_PIXELS = ROWS_PER_BAND * WIDTH;
+	protected static final int BAND_BYTES = BAND_PIXELS * 6;
+	protected static final int HEADER_SIZE = 4*5 + 4*(BAND_COUNT+1);
+
+	/**
+	 * Write a region's surface data to f, replacing it only once the
+	 * new data has been completely written.
+	 */
+	public static void write( File f, short[] height, int[] color ) throws IOException {
+		byte[][] bands = new byte[BAND_COUNT][];
+		ByteBuffer raw = ByteBuffer.allocate(BAND_BYTES);
+		byte[] compressBuffer = new byte[BAND_BYTES + 1024];
+		Deflater deflater = new Deflater();
+		try {
+			for( int b=0; b<BAND_COUNT; ++b ) {
+				raw.clear();
+				raw.asShortBuffer().put(height, b*BAND_PIXELS, BAND_PIXELS);
+				raw.position(BAND_PIXELS*2);
+				raw.asIntBuffer().put(color, b*BAND_PIXELS, BAND_PIXELS);
+				deflater.reset();
+				deflater.setInput(raw.array(), 0, BAND_BYTES);
+				deflater.finish();
+				ByteArrayOutputStream band = new ByteArrayOutputStream();
+				while( !deflater.finished() ) {
+					int n = deflater.deflate(compressBuffer);
+					band.write(compressBuffer, 0, n);
+				}
+				bands[b] = band.toByteArray();
+			}
+		} finally {
+			deflater.end();
+		}
+
+		File temp = FileUtil.tempFile(f);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(WIDTH);
+			out.writeInt(ROWS_PER_BAND);
+			out.writeInt(BAND_COUNT);
+			int offset = HEADER_SIZE;
+			for( int b=0; b<BAND_COUNT; ++b ) {
+				out.writeInt(offset);
+				offset += bands[b].length;
+			}
+			out.writeInt(offset);
+			for( int b=0; b<BAND_COUNT; ++b ) out.write(bands[b]);
+		} finally {
+			out.close();
+		}
+		FileUtil.replace(temp, f);
+	}
+
+	/**
+	 * Read surface data written by {@link #write(File, short[], int[])}
+	 * into the given 512*512 arrays.
+	 */
+	public static void read( File f, short[] height, int[] color ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if( mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC ) {
+				throw new IOException(f+" is not a surface data file");
+			}
+			if( mapped.getInt(4) != VERSION || mapped.getInt(8) != WIDTH ||
+			    mapped.getInt(12) != ROWS_PER_BAND || mapped.getInt(16) != BAND_COUNT ) {
+				throw new IOException(f+" has an unsupported version or layout");
+			}
+			ByteBuffer raw = ByteBuffer.allocate(BAND_BYTES);
+			byte[] compressed = new byte[0];
+			Inflater inflater = new Inflater();
+			try {
+				for( int b=0; b<BAND_COUNT; ++b ) {
+					int start = mapped.getInt(20 + b*4), end = mapped.getInt(24 + b*4);
+					if( start < HEADER_SIZE || end < start || end > mapped.limit() ) {
+						throw new IOException(f+" has a bad offset for band "+b);
+					}
+					if( compressed.length < end - start ) compressed = new byte[end - start];
+					mapped.position(start);
+					mapped.get(compressed, 0, end - start);
+					inflater.reset();
+					inflater.setInput(compressed, 0, end - start);
+					if( inflater.inflate(raw.array(), 0, BAND_BYTES) != BAND_BYTES ) {
+						throw new IOException(f+" is truncated in band "+b);
+					}
+					raw.clear();
+					raw.asShortBuffer().get(height, b*BAND_PIXELS, BAND_PIXELS);
+					raw.position(BAND_PIXELS*2);
+					raw.asIntBuffer().get(color, b*BAND_PIXELS, BAND_PIXELS);
+				}
+			} catch( DataFormatException e ) {
+				throw new IOException(f+" is corrupt", e);
+			} finally {
+				inflater.end();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+}
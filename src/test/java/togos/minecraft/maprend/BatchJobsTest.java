@@ -0,0 +1,97 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class BatchJobsTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-jobs");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	public void testTokenize() {
+		assertEquals(Arrays.asList("-o", "out", "in"), BatchJobs.tokenize("  -o out\tin "));
+		assertEquals(Arrays.asList("-o", "my maps/world", "in"), BatchJobs.tokenize("-o \"my maps/world\" in"));
+		assertEquals(Arrays.asList("-o", "out#1"), BatchJobs.tokenize("-o out#1 # the overworld"));
+		assertEquals(0, BatchJobs.tokenize("# just a comment").size());
+	}
+
+	public void testColorMapsAreShared() throws Exception {
+		BatchJobs batch = new BatchJobs();
+		assertSame(batch.getBlockMap(null), batch.getBlockMap(null));
+		assertSame(batch.getBiomeMap(null), batch.getBiomeMap(null));
+	}
+
+	public void testJobsRunInOneProcess() throws Exception {
+		File world1 = new File(dir, "world1");
+		File world2 = new File(dir, "world2");
+		world1.mkdirs();
+		world2.mkdirs();
+		TestRegionFiles.writeRegion(world1, 0, 0, 10);
+		TestRegionFiles.writeRegion(world2, 2, -1, 10);
+		File out1 = new File(dir, "out1");
+		File out2 = new File(dir, "out2");
+
+		File jobFile = new File(dir, "jobs.txt");
+		Writer w = new FileWriter(jobFile);
+		w.write("# Nightly maps\n");
+		w.write("-o " + out1 + " " + world1 + "\n");
+		w.write("\n");
+		w.write("-o " + out2 + " -scales 1,1:2 " + world2 + "\n");
+		w.write("-o " + new File(dir, "out3") + "\n");
+		w.close();
+
+		List<BatchJobs.Job> jobs = BatchJobs.read(jobFile);
+		assertEquals(3, jobs.size());
+		assertEquals(2, jobs.get(0).lineNumber);
+		assertEquals(4, jobs.get(1).lineNumber);
+
+		int result = new BatchJobs().run(new String[] { "-scales", "1,1:4", "-no-journal" }, jobs);
+		// The third job has no input
+		assertEquals(1, result);
+		assertTrue(new File(out1, "tile.0.0.png").exists());
+		assertTrue(new File(out1, "tile.0.0.1-4.png").exists());
+		assertTrue(new File(out2, "tile.2.-1.png").exists());
+		assertTrue(new File(out2, "tile.2.-1.1-2.png").exists());
+		assertFalse(new File(out2, "tile.2.-1.1-4.png").exists());
+	}
+
+	public void testHelpInAJobFails() throws Exception {
+		File world = new File(dir, "world");
+		world.mkdirs();
+		TestRegionFiles.writeRegion(world, 0, 0, 10);
+		File out1 = new File(dir, "out1");
+		File out2 = new File(dir, "out2");
+
+		File jobFile = new File(dir, "jobs.txt");
+		Writer w = new FileWriter(jobFile);
+		w.write("-o " + out1 + " -h " + world + "\n");
+		w.write("-o " + out2 + " " + world + "\n");
+		w.close();
+
+		int result = new BatchJobs().run(new String[] { "-no-journal" }, BatchJobs.read(jobFile));
+		assertEquals(1, result);
+		assertFalse(new File(out1, "tile.0.0.png").exists());
+		// The batch carries on after the bad job
+		assertTrue(new File(out2, "tile.0.0.png").exists());
+	}
+
+	public void testJobsArgument() throws Exception {
+		RegionRenderer.RegionRendererCommand cmd = RegionRenderer.RegionRendererCommand
+			.fromArguments("-debug", "-jobs", "jobs.txt", "-threads", "2");
+		assertNull(cmd.errorMessage);
+		assertEquals(new File("jobs.txt"), cmd.jobFile);
+		assertTrue(Arrays.equals(new String[] { "-debug", "-threads", "2" }, cmd.commonArgs));
+	}
+}
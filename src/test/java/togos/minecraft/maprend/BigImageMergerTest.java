@@ -0,0 +1,57 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.PNGEncoder;
+
+public class BigImageMergerTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if( dir != null ) TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private static void writeTile( File dir, RegionMap rm, int rx, int rz, int color ) throws Exception {
+		BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+		for( int y=0; y<512; ++y ) for( int x=0; x<512; ++x ) image.setRGB(x, y, color ^ (x * 7 + y));
+		ImageIO.write(image, "png", new File(dir, "tile."+rx+"."+rz+".png"));
+		Region r = new Region();
+		r.rx = rx;
+		r.rz = rz;
+		rm.addRegion(r);
+	}
+
+	public void testTilesAreMergedIntoPlace() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-big");
+		RegionMap rm = new RegionMap();
+		writeTile(dir, rm, -1, -1, 0xFFFF0000);
+		writeTile(dir, rm, 1, -1, 0xFF00FF00);
+		writeTile(dir, rm, 0, 1, 0x800000FF);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			new BigImageMerger(new PNGEncoder(4, executor), executor).createBigImage(rm, dir, false);
+		} finally {
+			executor.shutdown();
+		}
+		BufferedImage big = ImageIO.read(new File(dir, "big.png"));
+		assertEquals(3 * 512, big.getWidth());
+		assertEquals(3 * 512, big.getHeight());
+		for( Region r : rm.regions ) {
+			BufferedImage tile = ImageIO.read(new File(dir, "tile."+r.rx+"."+r.rz+".png"));
+			for( int y=0; y<512; y+=3 ) {
+				for( int x=0; x<512; x+=5 ) {
+					assertEquals(tile.getRGB(x, y), big.getRGB((r.rx+1)*512 + x, (r.rz+1)*512 + y));
+				}
+			}
+		}
+		// Where there's no region
+		assertEquals(0, big.getRGB(600, 600));
+		assertEquals(0, big.getRGB(1500, 1500));
+	}
+}
@@ -0,0 +1,121 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.EnumSet;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.io.RegionFile;
+
+public class ChunkCacheTest extends TestCase {
+	private File dir;
+	private File cacheDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-cache");
+		cacheDir = new File(dir, "cache");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private RegionRenderer renderer( long cacheSize, int minHeight ) throws Exception {
+		RenderSettings settings = new RenderSettings();
+		settings.minHeight = minHeight;
+		settings.chunkCacheDir = cacheDir;
+		settings.chunkCacheSize = cacheSize;
+		return new RegionRenderer(settings);
+	}
+
+	private static int[] render( RegionRenderer renderer, File regionFile ) {
+		RegionFile rf = new RegionFile(regionFile);
+		try {
+			BufferedImage image = renderer.render(rf);
+			return image.getRGB(0, 0, 512, 512, null, 0, 512);
+		} finally {
+			try {
+				rf.close();
+			} catch( Exception e ) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public void testCachedRenderMatchesUncachedRender() throws Exception {
+		File regionFile = TestRegionFiles.writeRegion(dir, 0, 0, 40);
+		int[] expected = render(new RegionRenderer(new RenderSettings()), regionFile);
+
+		RegionRenderer first = renderer(1L << 30, Integer.MIN_VALUE);
+		render(first, regionFile);
+		assertEquals(0, first.timer.chunkCacheHits.get());
+		assertEquals(40, first.timer.chunkCacheMisses.get());
+
+		// A new renderer picks up the entries left on disk by the first one
+		RegionRenderer second = renderer(1L << 30, Integer.MIN_VALUE);
+		assertEquals(40, second.chunkCache.getEntryCount());
+		int[] cached = render(second, regionFile);
+		assertEquals(40, second.timer.chunkCacheHits.get());
+		assertEquals(0, second.timer.chunkCacheMisses.get());
+		for( int i=0; i<expected.length; ++i ) {
+			assertEquals("pixel "+i, expected[i], cached[i]);
+		}
+	}
+
+	public void testDifferentSettingsDoNotShareEntries() throws Exception {
+		File regionFile = TestRegionFiles.writeRegion(dir, 0, 0, 10);
+		render(renderer(1L << 30, Integer.MIN_VALUE), regionFile);
+		RegionRenderer other = renderer(1L << 30, 30);
+		render(other, regionFile);
+		assertEquals(0, other.timer.chunkCacheHits.get());
+		assertEquals(10, other.timer.chunkCacheMisses.get());
+	}
+
+	public void testBiomesOnlyRendersLeaveNoEntries() throws Exception {
+		File regionFile = TestRegionFiles.writeRegion(dir, 0, 0, 10);
+		RenderSettings settings = new RenderSettings();
+		settings.products = EnumSet.of(RenderProduct.BIOMES);
+		settings.chunkCacheDir = cacheDir;
+		settings.chunkCacheSize = 1L << 30;
+		RegionRenderer biomes = new RegionRenderer(settings);
+		RenderContext ctx = new RenderContext();
+		RegionFile rf = new RegionFile(regionFile);
+		try {
+			biomes.preRender(rf, ctx);
+		} finally {
+			rf.close();
+		}
+		int[] pixels = RenderContext.pixels(ctx.getBiomeImage());
+		assertEquals(0xFF000000, pixels[0]);
+		assertEquals(0xFF010101, pixels[512]);
+		// Its slices were never composited, so there is nothing worth keeping
+		assertEquals(10, biomes.timer.chunkCacheMisses.get());
+		assertEquals(0, biomes.chunkCache.getEntryCount());
+
+		int[] expected = render(new RegionRenderer(new RenderSettings()), regionFile);
+		int[] cached = render(renderer(1L << 30, Integer.MIN_VALUE), regionFile);
+		for( int i=0; i<expected.length; ++i ) {
+			assertEquals("pixel "+i, expected[i], cached[i]);
+		}
+	}
+
+	public void testSizeIsBounded() throws Exception {
+		File regionFile = TestRegionFiles.writeRegion(dir, 0, 0, 40);
+		RegionRenderer unbounded = renderer(1L << 30, Integer.MIN_VALUE);
+		render(unbounded, regionFile);
+		long entrySize = unbounded.chunkCache.getTotalSize() / 40;
+
+		// Reopening with a smaller limit evicts down to it
+		long limit = entrySize * 10;
+		RegionRenderer bounded = renderer(limit, Integer.MIN_VALUE);
+		assertTrue(bounded.chunkCache.getTotalSize() <= limit);
+		render(bounded, regionFile);
+		assertTrue(bounded.chunkCache.getTotalSize() <= limit);
+		assertTrue(bounded.chunkCache.getEntryCount() > 0);
+
+		int fileCount = 0;
+		for( File shard : cacheDir.listFiles() ) fileCount += shard.listFiles().length;
+		assertEquals(bounded.chunkCache.getEntryCount(), fileCount);
+	}
+}
@@ -0,0 +1,54 @@
+package togos.minecraft.maprend;
+
+import junit.framework.TestCase;
+
+public class ChunkSectionsTest extends TestCase {
+	public void testClassicWorldIsWalkedFrom0To15() {
+		ChunkSections sections = new ChunkSections();
+		sections.add(2);
+		sections.add(0);
+		sections.finish();
+		assertEquals(2, sections.count);
+		assertEquals(0, sections.sectionY[0]);
+		assertEquals(2, sections.sectionY[1]);
+		assertEquals(0, sections.minSectionY);
+		assertEquals(15, sections.maxSectionY);
+		assertEquals(0, sections.airRunBelow[0]);
+		assertEquals(1, sections.airRunBelow[1]);
+		assertEquals(13, sections.airRunAbove);
+	}
+
+	public void testNegativeAndTallSections() {
+		ChunkSections sections = new ChunkSections();
+		int[] ys = { 19, -4, 3, -3, 0 };
+		for( int y : ys ) {
+			int slot = sections.add(y);
+			sections.blockIds[slot][0] = (short)y;
+		}
+		sections.finish();
+		assertEquals(-4, sections.minSectionY);
+		assertEquals(19, sections.maxSectionY);
+		int[] expectedY = { -4, -3, 0, 3, 19 };
+		int[] expectedAirBelow = { 0, 0, 2, 2, 15 };
+		for( int i=0; i<expectedY.length; ++i ) {
+			assertEquals(expectedY[i], sections.sectionY[i]);
+			// Block data must move along with its section
+			assertEquals(expectedY[i], sections.blockIds[i][0]);
+			assertEquals(expectedAirBelow[i], sections.airRunBelow[i]);
+		}
+		assertEquals(0, sections.airRunAbove);
+	}
+
+	public void testStorageIsReused() {
+		ChunkSections sections = new ChunkSections();
+		for( int y=0; y<6; ++y ) sections.add(y);
+		sections.finish();
+		short[] first = sections.blockIds[0];
+		sections.clear();
+		sections.add(7);
+		sections.finish();
+		assertSame(first, sections.blockIds[0]);
+		assertEquals(7, sections.airRunBelow[0]);
+		assertEquals(8, sections.airRunAbove);
+	}
+}
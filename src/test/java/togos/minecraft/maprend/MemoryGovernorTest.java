@@ -0,0 +1,67 @@
+package togos.minecraft.maprend;
+
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import junit.framework.TestCase;
+
+public class MemoryGovernorTest extends TestCase {
+	public void testRegionsWaitForRoom() throws Exception {
+		final MemoryGovernor governor = new MemoryGovernor(100, 10);
+		governor.acquire(60);
+		final AtomicBoolean acquired = new AtomicBoolean();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					governor.acquire(60);
+					acquired.set(true);
+				} catch( InterruptedException e ) {
+				}
+			}
+		};
+		t.start();
+		Thread.sleep(100);
+		assertFalse(acquired.get());
+		governor.release(60);
+		t.join(5000);
+		assertTrue(acquired.get());
+	}
+
+	public void testOneRegionIsAlwaysLetThrough() throws Exception {
+		MemoryGovernor governor = new MemoryGovernor(100, 10);
+		governor.acquire(1000);
+		governor.release(1000);
+	}
+
+	public void testBudgetFollowsGcPressure() throws Exception {
+		MemoryGovernor governor = new MemoryGovernor(1000, 100);
+		int decisions = governor.getDecisions().size();
+		governor.pressure(0.4, 0.5);
+		assertEquals(750, governor.getEffectiveBudget());
+		governor.pressure(0.01, 0.95);
+		assertEquals(561, governor.getEffectiveBudget());
+		assertEquals(decisions + 2, governor.getDecisions().size());
+
+		// Never below a single region
+		for( int i=0; i<20; ++i ) governor.pressure(0.5, 0.95);
+		assertEquals(100, governor.getEffectiveBudget());
+
+		// Raised again after a while of calm
+		for( int i=0; i<MemoryGovernor.CALM_CHECKS - 1; ++i ) governor.pressure(0.0, 0.2);
+		assertEquals(100, governor.getEffectiveBudget());
+		governor.pressure(0.0, 0.2);
+		assertEquals(125, governor.getEffectiveBudget());
+	}
+
+	public void testEstimateGrowsWithOutput() {
+		RenderSettings settings = new RenderSettings();
+		long surface = MemoryGovernor.estimateBytesPerRegion(settings);
+		settings.mapScales = new int[] { 1, 2, 4 };
+		long scaled = MemoryGovernor.estimateBytesPerRegion(settings);
+		settings.products = EnumSet.of(RenderProduct.SURFACE, RenderProduct.HEIGHTMAP, RenderProduct.BIOMES);
+		long allProducts = MemoryGovernor.estimateBytesPerRegion(settings);
+		assertTrue(surface > 512 * 512 * 10);
+		assertTrue(scaled > surface);
+		assertTrue(allProducts > scaled);
+	}
+}
@@ -0,0 +1,61 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class MipMapsTest extends TestCase {
+	private static BufferedImage randomImage( int size ) {
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Random r = new Random(size);
+		for( int y=0; y<size; ++y ) {
+			for( int x=0; x<size; ++x ) {
+				int alpha = r.nextInt(4) == 0 ? r.nextInt(256) : 0xFF;
+				image.setRGB(x, y, alpha << 24 | r.nextInt(0x1000000));
+			}
+		}
+		return image;
+	}
+
+	public void testScalesComeBackInTheOrderGiven() {
+		Map<Integer,BufferedImage> scaled = MipMaps.scale(randomImage(512), new int[] { 4, 1, 2, 3 });
+		assertEquals(Arrays.asList(4, 2, 3), new ArrayList<Integer>(scaled.keySet()));
+		assertEquals(128, scaled.get(4).getWidth());
+		assertEquals(256, scaled.get(2).getHeight());
+		assertEquals(170, scaled.get(3).getWidth());
+	}
+
+	public void testTransparentColorsDontBleed() {
+		BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = {
+			0xFF0000FF, 0x00FF0000, 0x80FF0000, 0x40000000,
+			0xFF0000FF, 0x00FFFFFF, 0x80FF0000, 0xC0000000 };
+		image.setRGB(0, 0, 4, 2, pixels, 0, 4);
+		BufferedImage half = MipMaps.scale(image, new int[] { 2 }).get(2);
+		// Half the pixels are opaque blue; the others add nothing
+		assertEquals(0x800000FF, half.getRGB(0, 0));
+		// Red and black, weighted by their alpha
+		assertEquals(0x80800000, half.getRGB(1, 0));
+		BufferedImage clear = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+		clear.setRGB(0, 0, 0x00FFFFFF);
+		assertEquals(0, MipMaps.scale(clear, new int[] { 2 }).get(2).getRGB(0, 0));
+	}
+
+	public void testChainedLevelsMatchShrinkingFromFullSize() {
+		BufferedImage image = randomImage(64);
+		int[] full = MipMaps.getPixels(image);
+		BufferedImage chained = MipMaps.scale(image, new int[] { 2, 4, 8 }).get(8);
+		int[] direct = new int[8 * 8];
+		MipMaps.shrink(full, 64, 64, direct, 8, 8);
+		for( int i=0; i<direct.length; ++i ) {
+			int c = chained.getRGB(i % 8, i / 8);
+			for( int shift=0; shift<32; shift+=8 ) {
+				int d = Math.abs(((c >>> shift) & 0xFF) - ((direct[i] >>> shift) & 0xFF));
+				assertTrue("pixel "+i+": "+Integer.toHexString(c)+" vs "+Integer.toHexString(direct[i]), d <= 2);
+			}
+		}
+	}
+}
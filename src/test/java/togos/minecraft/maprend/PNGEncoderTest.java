@@ -0,0 +1,186 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.io.PNGEncoder;
+import togos.minecraft.maprend.io.PNGEncoder.PaletteMode;
+import togos.minecraft.maprend.io.Palette;
+
+public class PNGEncoderTest extends TestCase {
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdown();
+	}
+
+	/** Flat areas of a few colors, like a map tile, with some translucency and a transparent corner unless opaque */
+	private static BufferedImage testImage( int width, int height, boolean opaque ) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Random r = new Random(width * 31 + height);
+		int[] colors = { 0xFF3060A0, 0xFF408030, 0xC0407090, 0xFFE0D0A0 };
+		for( int y=0; y<height; ++y ) {
+			for( int x=0; x<width; ++x ) {
+				int color = colors[(x/7 + y/5) % colors.length];
+				if( r.nextInt(10) == 0 ) color ^= r.nextInt(0x1000000);
+				if( opaque ) color |= 0xFF000000;
+				else if( x < width/4 && y < height/4 ) color = 0;
+				image.setRGB(x, y, color);
+			}
+		}
+		return image;
+	}
+
+	private static void assertSamePixels( BufferedImage expected, byte[] png ) throws Exception {
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+		assertEquals(expected.getWidth(), decoded.getWidth());
+		assertEquals(expected.getHeight(), decoded.getHeight());
+		for( int y=0; y<expected.getHeight(); ++y ) {
+			for( int x=0; x<expected.getWidth(); ++x ) {
+				assertEquals("pixel at "+x+","+y, expected.getRGB(x, y), decoded.getRGB(x, y));
+			}
+		}
+	}
+
+	public void testImagesSurviveEncodingInBands() throws Exception {
+		BufferedImage image = testImage(300, 200, false);
+		for( int level : new int[] { 0, 1, 4, 9 } ) {
+			for( int bandRows : new int[] { 1, 7, 64, 1000 } ) {
+				assertSamePixels(image, new PNGEncoder(level, executor, bandRows).encode(image));
+			}
+			assertSamePixels(image, new PNGEncoder(level, null).encode(image));
+		}
+	}
+
+	public void testBandsMakeTheSameImageAsOneStream() throws Exception {
+		BufferedImage image = testImage(512, 512, false);
+		byte[] oneBand = new PNGEncoder(4, null).encode(image);
+		byte[] bands = new PNGEncoder(4, executor, 64).encode(image);
+		assertSamePixels(image, bands);
+		// Priming each band with the one before keeps the cost of splitting them up small
+		assertTrue(oneBand.length+" vs "+bands.length, bands.length < oneBand.length * 1.05);
+	}
+
+	public void testOpaqueImagesHaveNoAlphaChannel() throws Exception {
+		BufferedImage image = testImage(64, 48, true);
+		byte[] png = new PNGEncoder(4, null).encode(image);
+		// Color type, in IHDR after the signature, chunk header, width, height and bit depth
+		assertEquals(2, png[25]);
+		assertSamePixels(image, png);
+		assertEquals(6, new PNGEncoder(4, null).encode(testImage(64, 48, false))[25]);
+	}
+
+	public void testOtherImageTypesAreWrittenWithImageIO() throws Exception {
+		BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(3, 4, 0x123456);
+		assertSamePixels(image, new PNGEncoder(4, executor).encode(image));
+	}
+
+	/** Like {@link #testImage(int, int, boolean)}, but with only a few colors */
+	private static BufferedImage fewColorImage( int width, int height ) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int[] colors = { 0xFF3060A0, 0xFF408030, 0xC0407090, 0xFFE0D0A0, 0x00123456, 0x00000000 };
+		for( int y=0; y<height; ++y ) {
+			for( int x=0; x<width; ++x ) image.setRGB(x, y, colors[(x/7 + y/5 + x*y % 3) % colors.length]);
+		}
+		return image;
+	}
+
+	/** Transparent pixels come back as 0 whatever their other channels were */
+	private static BufferedImage withClearTransparency( BufferedImage image ) {
+		BufferedImage clear = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		for( int y=0; y<image.getHeight(); ++y ) {
+			for( int x=0; x<image.getWidth(); ++x ) {
+				int color = image.getRGB(x, y);
+				clear.setRGB(x, y, (color >>> 24) == 0 ? 0 : color);
+			}
+		}
+		return clear;
+	}
+
+	public void testImagesWithFewColorsAreWrittenWithAPalette() throws Exception {
+		BufferedImage image = fewColorImage(300, 200);
+		PNGEncoder encoder = new PNGEncoder(4, PaletteMode.EXACT, executor, 64);
+		byte[] png = encoder.encode(image);
+		assertEquals(3, png[25]);
+		assertSamePixels(withClearTransparency(image), png);
+		assertTrue(png.length < new PNGEncoder(4, executor).encode(image).length);
+		// Too many colors for a palette
+		assertEquals(6, encoder.encode(testImage(300, 200, false))[25]);
+		assertEquals(2, encoder.stats.images.get());
+		assertEquals(1, encoder.stats.indexedImages.get());
+		assertEquals(0, encoder.stats.lossyImages.get());
+		assertTrue(encoder.stats.getEstimatedSavings() > 0);
+	}
+
+	public void testTranslucentColorsComeFirst() {
+		int[] pixels = { 0xFF000000, 0xFF112233, 0x80112233, 0x00FFFFFF, 0xFF000000, 0x00000000 };
+		Palette palette = Palette.exact(pixels, pixels.length);
+		assertEquals(4, palette.colors.length);
+		assertEquals(2, palette.translucentCount);
+		for( int i=0; i<pixels.length; ++i ) {
+			int color = palette.colors[palette.indices[i] & 0xFF];
+			assertEquals((pixels[i] >>> 24) == 0 ? 0 : pixels[i], color);
+			assertEquals((color >>> 24) != 0xFF, (palette.indices[i] & 0xFF) < palette.translucentCount);
+		}
+		int[] many = new int[257];
+		for( int i=0; i<many.length; ++i ) many[i] = 0xFF000000 | i;
+		assertNull(Palette.exact(many, many.length));
+		assertNotNull(Palette.exact(many, 256));
+	}
+
+	public void testQuantizingKeepsTransparencyAndComesClose() throws Exception {
+		BufferedImage image = testImage(300, 200, false);
+		int[] pixels = image.getRGB(0, 0, 300, 200, null, 0, 300);
+		Palette palette = Palette.quantize(pixels, pixels.length, Palette.MAX_COLORS);
+		assertTrue(palette.lossy);
+		assertTrue(palette.colors.length <= Palette.MAX_COLORS);
+		long error = 0;
+		for( int i=0; i<pixels.length; ++i ) {
+			int color = palette.colors[palette.indices[i] & 0xFF];
+			if( (pixels[i] >>> 24) == 0 ) {
+				assertEquals(0, color);
+				continue;
+			}
+			assertTrue((color >>> 24) != 0);
+			for( int shift=0; shift<32; shift+=8 ) error += Math.abs(((pixels[i] >>> shift) & 0xFF) - ((color >>> shift) & 0xFF));
+		}
+		assertTrue("mean error "+(double)error/pixels.length/4, error < pixels.length * 4 * 8);
+
+		PNGEncoder encoder = new PNGEncoder(4, PaletteMode.LOSSY, executor, 64);
+		assertEquals(3, encoder.encode(image)[25]);
+		assertEquals(1, encoder.stats.lossyImages.get());
+		// Images that fit are still written exactly
+		BufferedImage few = fewColorImage(64, 48);
+		assertSamePixels(withClearTransparency(few), encoder.encode(few));
+		assertEquals(1, encoder.stats.lossyImages.get());
+	}
+
+	public void testStreamedImagesMatchWholeOnes() throws Exception {
+		BufferedImage image = testImage(300, 200, false);
+		int[] pixels = image.getRGB(0, 0, 300, 200, null, 0, 300);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PNGEncoder.StreamWriter writer = new PNGEncoder(4, executor, 16).new StreamWriter(out, 300, 200);
+		// Uneven batches of rows
+		for( int y=0, batch=1; y<200; batch*=3 ) {
+			int rows = Math.min(batch, 200-y);
+			assertFalse(writer.isFinished());
+			writer.writeRows(Arrays.copyOfRange(pixels, y*300, (y+rows)*300), rows);
+			y += rows;
+		}
+		assertTrue(writer.isFinished());
+		assertSamePixels(image, out.toByteArray());
+	}
+}
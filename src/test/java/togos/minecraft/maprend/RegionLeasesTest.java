@@ -0,0 +1,144 @@
+package togos.minecraft.maprend;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class RegionLeasesTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-leases");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private static Region region( int rx, int rz ) {
+		Region r = new Region();
+		r.rx = rx;
+		r.rz = rz;
+		return r;
+	}
+
+	public void testClaimAndRelease() throws Exception {
+		File leaseDir = new File(dir, ".leases");
+		RegionLeases a = new RegionLeases(leaseDir, 60000);
+		RegionLeases b = new RegionLeases(leaseDir, 60000);
+		Region r = region(1, -2);
+		try {
+			assertTrue(a.claim(r));
+			assertTrue(new File(leaseDir, "r.1.-2.lease").exists());
+			assertFalse(b.claim(r));
+
+			// Releasing someone else's lease does nothing
+			b.release(r);
+			assertTrue(new File(leaseDir, "r.1.-2.lease").exists());
+
+			a.release(r);
+			assertFalse(new File(leaseDir, "r.1.-2.lease").exists());
+			assertTrue(b.claim(r));
+		} finally {
+			a.close();
+			b.close();
+		}
+		assertEquals(0, leaseDir.list().length);
+	}
+
+	public void testExpiredLeasesAreTakenOver() throws Exception {
+		File leaseDir = new File(dir, ".leases");
+		RegionLeases dead = new RegionLeases(leaseDir, 60000);
+		RegionLeases alive = new RegionLeases(leaseDir, 60000);
+		Region r = region(0, 0);
+		try {
+			assertTrue(dead.claim(r));
+			File lease = new File(leaseDir, "r.0.0.lease");
+			lease.setLastModified(System.currentTimeMillis() - 120000);
+			assertTrue(alive.claim(r));
+			assertEquals(alive.owner, RegionLeases.readOwner(lease));
+		} finally {
+			alive.close();
+		}
+	}
+
+	public void testQueueWaitsForRegionsHeldElsewhere() throws Exception {
+		File leaseDir = new File(dir, ".leases");
+		final RegionLeases other = new RegionLeases(leaseDir, 1000);
+		final Region held = region(0, 0);
+		Region free = region(1, 0);
+		assertTrue(other.claim(held));
+
+		List<Region> regions = new ArrayList<Region>();
+		regions.add(held);
+		regions.add(free);
+		RegionQueue queue = new RegionQueue(regions, new RegionLeases(leaseDir, 1000));
+		try {
+			assertSame(free, queue.take());
+			queue.done(free);
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(200);
+					} catch( InterruptedException e ) {
+					}
+					other.release(held);
+				}
+			}.start();
+			assertSame(held, queue.take());
+			queue.done(held);
+			assertNull(queue.take());
+		} finally {
+			queue.close();
+			other.close();
+		}
+	}
+
+	/** Several processes rendering the same world should render each region once between them */
+	public void testProcessesShareRegions() throws Exception {
+		File regionDir = new File(dir, "region");
+		regionDir.mkdirs();
+		int regionCount = 0;
+		for( int rx=-2; rx<2; ++rx ) for( int rz=-1; rz<1; ++rz ) {
+			TestRegionFiles.writeRegion(regionDir, rx, rz, 10 + (rx*3 + rz*5 & 7));
+			++regionCount;
+		}
+		File outputDir = new File(dir, "out");
+
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		List<Process> processes = new ArrayList<Process>();
+		for( int i=0; i<3; ++i ) {
+			ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				RegionRenderer.class.getName(), "-cooperate", "-threads", "1", "-debug",
+				"-o", outputDir.getPath(), regionDir.getPath());
+			pb.redirectErrorStream(true);
+			processes.add(pb.start());
+		}
+
+		Pattern rendered = Pattern.compile("Rendered (\\d+) regions");
+		int renderedCount = 0;
+		for( Process p : processes ) {
+			BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			String line;
+			while( (line = r.readLine()) != null ) {
+				Matcher m = rendered.matcher(line);
+				if( m.find() ) renderedCount += Integer.parseInt(m.group(1));
+			}
+			r.close();
+			assertEquals(0, p.waitFor());
+		}
+
+		assertEquals(regionCount, renderedCount);
+		for( int rx=-2; rx<2; ++rx ) for( int rz=-1; rz<1; ++rz ) {
+			assertTrue(new File(outputDir, "tile."+rx+"."+rz+".png").exists());
+		}
+		assertEquals(0, new File(outputDir, ".leases").list().length);
+	}
+}
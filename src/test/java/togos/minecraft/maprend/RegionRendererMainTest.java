@@ -1,8 +1,11 @@
 package togos.minecraft.maprend;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.EnumSet;
 import junit.framework.TestCase;
 import togos.minecraft.maprend.RegionRenderer.RegionRendererCommand;
+import togos.minecraft.maprend.io.PNGEncoder;
 
 public class RegionRendererMainTest extends TestCase {
 	private RegionRenderer.RegionRendererCommand main;
@@ -101,4 +104,146 @@ public class RegionRendererMainTest extends TestCase {
 		assertEquals(37, main.minHeight);
 		assertEquals(64, main.maxHeight);
 	}
+
+	public void testSlicesArgument() throws Exception {
+		extractAndAssertValidArgs("-slices 0-32,32-64,-64-0 -o out in");
+		assertEquals(3, main.slices.length);
+		assertEquals(32, main.slices[1].minHeight);
+		assertEquals(64, main.slices[1].maxHeight);
+		assertEquals(-64, main.slices[2].minHeight);
+		assertEquals(0, main.slices[2].maxHeight);
+		assertEquals("32-64", main.slices[1].name);
+	}
+
+	public void testBadSlice() throws Exception {
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-slices 0-32,64-32 -o out in"));
+		assertEquals("Invalid slice: '64-32'; must be of the form '<min>-<max>' with min < max", cmd.errorMessage);
+	}
+
+	public void testProductsArgument() throws Exception {
+		extractAndAssertValidArgs("-o out in");
+		assertEquals(EnumSet.of(RenderProduct.SURFACE), main.products);
+		extractAndAssertValidArgs("-products heightmap,biomes -o out in");
+		assertEquals(EnumSet.of(RenderProduct.HEIGHTMAP, RenderProduct.BIOMES), main.products);
+	}
+
+	public void testBadProduct() throws Exception {
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-products surface,caves -o out in"));
+		assertEquals("Invalid product: 'caves'; must be one of surface, heightmap, biomes", cmd.errorMessage);
+	}
+
+	public void testStageThreadsArgument() throws Exception {
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-stage-threads 1,6,2,3,1 -o out in"));
+		assertNull(cmd.errorMessage);
+		assertTrue(Arrays.equals(new int[] { 1, 6, 2, 3, 1 }, cmd.stageThreads));
+	}
+
+	public void testBadStageThreads() throws Exception {
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-stage-threads 1,6,2 -o out in"));
+		assertEquals("Invalid stage thread counts: '1,6,2'; must give one for each of read, decode, shade, encode and write", cmd.errorMessage);
+		cmd = RegionRendererCommand
+				.fromArguments(toArgs("-stage-threads 1,6,0,3,1 -o out in"));
+		assertEquals("Invalid thread count for shade stage; must be at least 1; given 0", cmd.errorMessage);
+	}
+
+	public void testCooperateArguments() throws Exception {
+		extractAndAssertValidArgs("-o out in");
+		assertFalse(main.cooperate);
+		assertEquals(300, main.leaseTime);
+		extractAndAssertValidArgs("-cooperate -lease-time 60 -o out in");
+		assertTrue(main.cooperate);
+		assertEquals(60, main.leaseTime);
+	}
+
+	public void testBadLeaseTime() throws Exception {
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-cooperate -lease-time 0 -o out in"));
+		assertEquals("Invalid lease time; must be at least 1 second; given 0", cmd.errorMessage);
+	}
+
+	public void testJournalArgument() throws Exception {
+		extractAndAssertValidArgs("-o out in");
+		assertTrue(main.journal);
+		extractAndAssertValidArgs("-no-journal -o out in");
+		assertFalse(main.journal);
+	}
+
+	public void testWatchArguments() throws Exception {
+		extractAndAssertValidArgs("-watch -watch-delay 10 -o out in");
+		assertTrue(main.watch);
+		assertEquals(10, main.watchDelay);
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-watch -reshade -o out in"));
+		assertEquals("-watch can't be used with -reshade, which doesn't read the world.", cmd.errorMessage);
+	}
+
+	public void testServeArguments() throws Exception {
+		extractAndAssertValidArgs("-serve 8080 -serve-cache-size 64 in");
+		assertEquals(8080, main.servePort);
+		assertEquals(64, main.serveCacheSize);
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-serve 70000 in"));
+		assertEquals("Invalid port to serve on; given 70000", cmd.errorMessage);
+	}
+
+	public void testTimeBudgetArgument() throws Exception {
+		extractAndAssertValidArgs("-o out in");
+		assertEquals(0, main.timeBudget);
+		extractAndAssertValidArgs("-time-budget 90 -o out in");
+		assertEquals(90000, main.timeBudget);
+		extractAndAssertValidArgs("-time-budget 50m -o out in");
+		assertEquals(50 * 60000, main.timeBudget);
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-time-budget 2d -o out in"));
+		assertEquals("Invalid time budget: '2d'; must be a number of seconds, optionally followed by s, m or h", cmd.errorMessage);
+	}
+
+	public void testCropArgument() throws Exception {
+		extractAndAssertValidArgs("-crop -10 20 290 320 -o out in");
+		assertEquals(-10, main.crop.minX);
+		assertEquals(20, main.crop.minY);
+		assertEquals(290, main.crop.maxX);
+		assertEquals(320, main.crop.maxY);
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-crop 10 10 0 20 -o out in"));
+		assertEquals("Crop area is empty; the second corner must be east and south of the first.", cmd.errorMessage);
+	}
+
+	public void testPNGArguments() throws Exception {
+		extractAndAssertValidArgs("-o out in");
+		assertEquals(4, main.pngCompressionLevel);
+		assertFalse(main.imageIOPNG);
+		extractAndAssertValidArgs("-png-compression 9 -png-encoder imageio -o out in");
+		assertEquals(9, main.pngCompressionLevel);
+		assertTrue(main.imageIOPNG);
+		RegionRendererCommand cmd = RegionRendererCommand
+				.fromArguments(toArgs("-png-compression 10 -o out in"));
+		assertEquals("Invalid PNG compression level; must be from 0 to 9; given 10", cmd.errorMessage);
+		cmd = RegionRendererCommand.fromArguments(toArgs("-png-encoder gif -o out in"));
+		assertEquals("Invalid PNG encoder: 'gif'; must be builtin or imageio", cmd.errorMessage);
+	}
+
+	public void testPNGPaletteArgument() throws Exception {
+		extractAndAssertValidArgs("-o out in");
+		assertEquals(PNGEncoder.PaletteMode.NONE, main.pngPalette);
+		extractAndAssertValidArgs("-png-palette exact -o out in");
+		assertEquals(PNGEncoder.PaletteMode.EXACT, main.pngPalette);
+		extractAndAssertValidArgs("-png-palette lossy -o out in");
+		assertEquals(PNGEncoder.PaletteMode.LOSSY, main.pngPalette);
+		RegionRendererCommand cmd = RegionRendererCommand.fromArguments(toArgs("-png-palette gif -o out in"));
+		assertEquals("Invalid PNG palette: 'gif'; must be exact or lossy", cmd.errorMessage);
+		cmd = RegionRendererCommand.fromArguments(toArgs("-png-palette exact -png-encoder imageio -o out in"));
+		assertEquals("-png-palette can't be used with -png-encoder imageio.", cmd.errorMessage);
+	}
+
+	public void testCreatePyramidArgument() throws Exception {
+		extractAndAssertValidArgs("-o out in");
+		assertFalse(main.createPyramid);
+		extractAndAssertValidArgs("-create-pyramid -o out in");
+		assertTrue(main.createPyramid);
+	}
 }
@@ -0,0 +1,73 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import junit.framework.TestCase;
+
+public class RegionWatcherTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-watch");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private static void touch( File f ) throws Exception {
+		FileOutputStream fos = new FileOutputStream(f, true);
+		fos.write(0);
+		fos.close();
+	}
+
+	public void testBurstsOfWritesAreReportedTogether() throws Exception {
+		final File a = new File(dir, "r.0.0.mca");
+		final File b = new File(dir, "r.-1.2.mca");
+		touch(a);
+		RegionWatcher watcher = new RegionWatcher(Arrays.asList(dir), 300);
+		try {
+			Thread saver = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for( int i=0; i<5; ++i ) {
+							touch(a);
+							touch(new File(dir, "level.dat"));
+							Thread.sleep(50);
+						}
+						touch(b);
+					} catch( Exception e ) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			saver.start();
+			Set<File> changed = watcher.awaitChanges();
+			saver.join();
+			assertEquals(new HashSet<File>(Arrays.asList(a.getAbsoluteFile(), b.getAbsoluteFile())), changed);
+		} finally {
+			watcher.close();
+		}
+	}
+
+	public void testOnlyGivenFilesAreReported() throws Exception {
+		File a = new File(dir, "r.0.0.mca");
+		File b = new File(dir, "r.1.0.mca");
+		touch(a);
+		touch(b);
+		RegionWatcher watcher = new RegionWatcher(Arrays.asList(b), 100);
+		try {
+			touch(a);
+			touch(b);
+			assertEquals(new HashSet<File>(Arrays.asList(b.getAbsoluteFile())), watcher.awaitChanges());
+		} finally {
+			watcher.close();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.imageio.ImageIO;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.RegionRenderer.RegionRendererCommand;
+
+public class RenderAllTest extends TestCase {
+	/** Records which regions renderRegion was called for, and in what order */
+	static class RecordingRenderer extends RegionRenderer {
+		final List<Region> rendered = Collections.synchronizedList(new ArrayList<Region>());
+
+		RecordingRenderer() throws IOException {
+			super(new RenderSettings());
+		}
+
+		@Override
+		public void renderRegion( Region r, File outputDir, boolean force ) throws IOException {
+			rendered.add(r);
+			Thread.yield();
+		}
+	}
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-renderall");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private RegionMap regionMap( int... chunkCounts ) throws IOException {
+		RegionMap rm = new RegionMap();
+		for( int i=0; i<chunkCounts.length; ++i ) {
+			Region r = new Region();
+			r.rx = i;
+			r.regionFile = TestRegionFiles.writeRegion(dir, i, 0, chunkCounts[i]);
+			rm.addRegion(r);
+		}
+		return rm;
+	}
+
+	public void testEveryRegionIsRenderedExactlyOnce() throws Exception {
+		int[] chunkCounts = new int[23];
+		for( int i=0; i<chunkCounts.length; ++i ) chunkCounts[i] = 1 + i*7 % 13;
+		RegionMap rm = regionMap(chunkCounts);
+		for( int threadCount : new int[] { 1, 2, 3, 4, 8, 50 } ) {
+			RecordingRenderer rr = new RecordingRenderer();
+			rr.renderAll(rm, new File(dir, "out"), false, threadCount);
+			assertEquals("with "+threadCount+" threads", rm.regions.size(), rr.rendered.size());
+			for( Region r : rm.regions ) {
+				assertEquals("region "+r.rx+" with "+threadCount+" threads", 1, Collections.frequency(rr.rendered, r));
+			}
+		}
+	}
+
+	public void testLargestRegionsGoFirst() throws Exception {
+		RegionMap rm = regionMap(3, 40, 1, 12);
+		RecordingRenderer rr = new RecordingRenderer();
+		rr.renderAll(rm, new File(dir, "out"), false, 1);
+		assertEquals(1, rr.rendered.get(0).rx);
+		assertEquals(3, rr.rendered.get(1).rx);
+		assertEquals(0, rr.rendered.get(2).rx);
+		assertEquals(2, rr.rendered.get(3).rx);
+	}
+
+	static class SlowRenderer extends RecordingRenderer {
+		SlowRenderer( long timeBudget ) throws IOException {
+			settings.timeBudget = timeBudget;
+		}
+
+		@Override
+		public void renderRegion( Region r, File outputDir, boolean force ) throws IOException {
+			super.renderRegion(r, outputDir, force);
+			try {
+				Thread.sleep(100);
+			} catch( InterruptedException e ) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public void testFreshestRegionsGoFirst() throws Exception {
+		// Chunks written later have newer timestamps, so more chunks means newer
+		RegionMap rm = regionMap(3, 40, 1, 12);
+		Set<String> stale = new HashSet<String>();
+		List<Region> sorted = RegionRenderer.freshestFirst(rm.regions, stale);
+		assertEquals(1, sorted.get(0).rx);
+		assertEquals(3, sorted.get(1).rx);
+		assertEquals(0, sorted.get(2).rx);
+		assertEquals(2, sorted.get(3).rx);
+		stale.add("2 0");
+		sorted = RegionRenderer.freshestFirst(rm.regions, stale);
+		assertEquals(2, sorted.get(0).rx);
+		assertEquals(1, sorted.get(1).rx);
+	}
+
+	public void testTimeBudgetRecordsStaleRegions() throws Exception {
+		RegionMap rm = regionMap(5, 4, 3, 2, 1);
+		File out = new File(dir, "out");
+		File staleFile = new File(out, RegionRenderer.STALE_REGIONS_FILENAME);
+
+		SlowRenderer rr = new SlowRenderer(150);
+		rr.renderAll(rm, out, false, 1);
+		assertEquals(2, rr.rendered.size());
+		assertEquals(0, rr.rendered.get(0).rx);
+		assertEquals(1, rr.rendered.get(1).rx);
+		assertEquals(new HashSet<String>(Arrays.asList("2 0", "3 0", "4 0")), RegionRenderer.readStaleRegions(out));
+
+		// The next run starts with the regions that were left stale
+		rr = new SlowRenderer(150);
+		rr.renderAll(rm, out, false, 1);
+		assertEquals(2, rr.rendered.size());
+		assertEquals(2, rr.rendered.get(0).rx);
+		assertEquals(3, rr.rendered.get(1).rx);
+
+		// A run that finishes leaves no record
+		rr = new SlowRenderer(60000);
+		rr.renderAll(rm, out, false, 1);
+		assertEquals(5, rr.rendered.size());
+		assertFalse(staleFile.exists());
+	}
+
+	private static void render( String... args ) throws Exception {
+		RegionRendererCommand cmd = RegionRendererCommand.fromArguments(args);
+		assertNull(cmd.errorMessage);
+		assertEquals(0, cmd.run());
+	}
+
+	private static void assertSameImage( File expected, File actual ) throws Exception {
+		BufferedImage e = ImageIO.read(expected), a = ImageIO.read(actual);
+		assertNotNull(expected.toString(), e);
+		assertNotNull(actual.toString(), a);
+		assertEquals(e.getWidth(), a.getWidth());
+		assertEquals(e.getHeight(), a.getHeight());
+		int w = e.getWidth(), h = e.getHeight();
+		int[] ep = e.getRGB(0, 0, w, h, null, 0, w), ap = a.getRGB(0, 0, w, h, null, 0, w);
+		for( int i=0; i<ep.length; ++i ) assertEquals("pixel "+i+" of "+actual, ep[i], ap[i]);
+	}
+
+	public void testSlicesMatchSingleSliceRenders() throws Exception {
+		regionMap(30, 200);
+		// Ground is between 40 and 63 and the sea at 48, so both slices cut through it
+		String[][] slices = { { "0", "44" }, { "44", "60" } };
+		File slicedDir = new File(dir, "sliced");
+		render("-slices", "0-44,44-60", "-products", "surface,heightmap", "-scales", "1,1:2",
+			"-no-journal", "-o", slicedDir.getPath(), dir.getPath());
+
+		for( String[] slice : slices ) {
+			String name = slice[0]+"-"+slice[1];
+			File singleDir = new File(dir, "single-"+name);
+			render("-min-height", slice[0], "-max-height", slice[1], "-products", "surface,heightmap", "-scales", "1,1:2",
+				"-no-journal", "-o", singleDir.getPath(), dir.getPath());
+			for( int rx=0; rx<2; ++rx ) {
+				for( String tile : new String[] { "tile."+rx+".0.png", "tile."+rx+".0.1-2.png" } ) {
+					for( String subdir : new String[] { "", "heightmap/" } ) {
+						assertSameImage(new File(singleDir, subdir+tile), new File(slicedDir, name+"/"+subdir+tile));
+					}
+				}
+			}
+		}
+	}
+}
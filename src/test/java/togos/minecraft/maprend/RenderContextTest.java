@@ -0,0 +1,82 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.io.RegionFile;
+
+public class RenderContextTest extends TestCase {
+	private RegionRenderer renderer;
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		renderer = new RegionRenderer(new RenderSettings());
+		dir = TestRegionFiles.createTempDir("tmcmr-context");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private static int[] pixels(BufferedImage image) {
+		return image.getRGB(0, 0, 512, 512, null, 0, 512);
+	}
+
+	public void testReusedContextMatchesFreshContext() throws Exception {
+		RegionFile big = new RegionFile(TestRegionFiles.writeRegion(dir, 0, 0, 64));
+		RegionFile small = new RegionFile(TestRegionFiles.writeRegion(dir, 1, 0, 8));
+		try {
+			RenderContext ctx = new RenderContext();
+			renderer.render(big, ctx);
+			// Chunks missing from the second region must not show leftovers from the first
+			int[] reused = pixels(renderer.render(small, ctx));
+			int[] fresh = pixels(renderer.render(small));
+			for( int i=0; i<fresh.length; ++i ) {
+				assertEquals("pixel "+i, fresh[i], reused[i]);
+			}
+		} finally {
+			big.close();
+			small.close();
+		}
+	}
+
+	public void testThreadContextIsReused() {
+		assertSame(renderer.getRenderContext(), renderer.getRenderContext());
+	}
+
+	public void testSteadyStateRenderAllocatesNoBuffers() throws Exception {
+		if( !(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) ) return;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if( !threads.isThreadAllocatedMemorySupported() ) return;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+
+		RegionFile rf = new RegionFile(TestRegionFiles.writeRegion(dir, 0, 0, 4));
+		try {
+			RenderContext ctx = renderer.getRenderContext();
+			// Warm up so that class loading and lazy initialization aren't counted
+			for( int i=0; i<3; ++i ) {
+				renderer.render(rf, ctx);
+				renderer.render(rf);
+			}
+
+			long before = threads.getThreadAllocatedBytes(threadId);
+			renderer.render(rf, ctx);
+			long reusedBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+			before = threads.getThreadAllocatedBytes(threadId);
+			renderer.render(rf);
+			long freshBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+			// The two 512x512 rasters and the image alone are over 2.5MB;
+			// what's left should only be the chunks' NBT.
+			assertTrue("allocated "+reusedBytes+" bytes with a reused context", reusedBytes < 512*1024);
+			assertTrue("allocated "+freshBytes+" bytes with a fresh context", freshBytes > 512*512*10);
+		} finally {
+			rf.close();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.EnumSet;
+import java.util.List;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.RegionFile;
+
+public class RenderCropTest extends TestCase {
+	private File dir;
+	private RegionMap rm;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-crop");
+		rm = new RegionMap();
+		for( int rx=0; rx<2; ++rx ) {
+			Region r = new Region();
+			r.rx = rx;
+			r.regionFile = TestRegionFiles.writeRegion(dir, rx, 0, 96);
+			rm.addRegion(r);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private BufferedImage renderTile( RegionRenderer renderer, int rx ) throws Exception {
+		RegionFile rf = new RegionFile(rm.regionAt(rx, 0).regionFile);
+		try {
+			return renderer.render(rf);
+		} finally {
+			rf.close();
+		}
+	}
+
+	public void testCropMatchesTiles() throws Exception {
+		RegionRenderer renderer = new RegionRenderer(new RenderSettings());
+		// Across the boundary between the two regions, and past the chunks that exist
+		BoundingRect crop = new BoundingRect(490, 5, 530, 60);
+		List<BufferedImage> images = renderer.renderCrop(rm, crop);
+		assertEquals(1, images.size());
+		BufferedImage image = images.get(0);
+		assertEquals(40, image.getWidth());
+		assertEquals(55, image.getHeight());
+		BufferedImage[] tiles = { renderTile(renderer, 0), renderTile(renderer, 1) };
+		for( int z=crop.minY; z<crop.maxY; ++z ) {
+			for( int x=crop.minX; x<crop.maxX; ++x ) {
+				int expected = tiles[x/512].getRGB(x%512, z);
+				assertEquals("pixel at "+x+","+z, expected, image.getRGB(x-crop.minX, z-crop.minY));
+			}
+		}
+	}
+
+	public void testOnlyTheGivenTileSetsAreMade() throws Exception {
+		RenderSettings settings = new RenderSettings();
+		settings.products = EnumSet.of(RenderProduct.SURFACE, RenderProduct.HEIGHTMAP, RenderProduct.BIOMES);
+		RegionRenderer renderer = new RegionRenderer(settings);
+		BoundingRect crop = new BoundingRect(100, 100, 140, 120);
+		List<BufferedImage> all = renderer.renderCrop(rm, crop);
+		assertEquals(3, all.size());
+		List<TileSet> tileSets = settings.getTileSets(dir);
+		List<BufferedImage> one = renderer.renderCrop(rm, crop, tileSets.subList(1, 2));
+		assertEquals(1, one.size());
+		for( int z=0; z<20; ++z ) {
+			for( int x=0; x<40; ++x ) {
+				assertEquals("pixel at "+x+","+z, all.get(1).getRGB(x, z), one.get(0).getRGB(x, z));
+			}
+		}
+	}
+
+	public void testOnlyOverlappingChunksAreDecoded() throws Exception {
+		RegionRenderer renderer = new RegionRenderer(new RenderSettings());
+		// Within one chunk and not within a block of its edges
+		renderer.renderCrop(rm, new BoundingRect(20, 20, 30, 30));
+		long oneChunkSections = renderer.timer.sectionCount.get();
+		assertTrue(oneChunkSections > 0);
+		assertTrue("decoded "+oneChunkSections+" sections", oneChunkSections <= 4);
+	}
+
+	public void testEmptyCropIsRejected() throws Exception {
+		RegionRenderer renderer = new RegionRenderer(new RenderSettings());
+		try {
+			renderer.renderCrop(rm, new BoundingRect(10, 10, 10, 20));
+			fail("Empty crop was rendered");
+		} catch( IllegalArgumentException e ) {
+		}
+	}
+}
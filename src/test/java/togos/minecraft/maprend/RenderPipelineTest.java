@@ -0,0 +1,98 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.EnumSet;
+import javax.imageio.ImageIO;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class RenderPipelineTest extends TestCase {
+	private File dir;
+	private RegionMap rm;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-pipeline");
+		rm = new RegionMap();
+		int[] chunkCounts = { 30, 4, 70, 1, 12 };
+		for( int i=0; i<chunkCounts.length; ++i ) {
+			Region r = new Region();
+			r.rx = i;
+			r.regionFile = TestRegionFiles.writeRegion(dir, i, 0, chunkCounts[i]);
+			rm.addRegion(r);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private static RenderSettings settings() {
+		RenderSettings settings = new RenderSettings();
+		settings.mapScales = new int[] { 1, 2 };
+		settings.products = EnumSet.allOf(RenderProduct.class);
+		return settings;
+	}
+
+	private static void assertSameImage( File expected, File actual ) throws Exception {
+		BufferedImage e = ImageIO.read(expected), a = ImageIO.read(actual);
+		assertNotNull(actual.toString(), a);
+		int w = e.getWidth(), h = e.getHeight();
+		int[] ep = e.getRGB(0, 0, w, h, null, 0, w), ap = a.getRGB(0, 0, w, h, null, 0, w);
+		for( int i=0; i<ep.length; ++i ) assertEquals("pixel "+i+" of "+actual, ep[i], ap[i]);
+	}
+
+	public void testPipelineMatchesRenderAll() throws Exception {
+		File expectedDir = new File(dir, "expected"), actualDir = new File(dir, "actual");
+		new RegionRenderer(settings()).renderAll(rm, expectedDir, false, 1);
+
+		RegionRenderer rr = new RegionRenderer(settings());
+		RenderPipeline pipeline = rr.renderAllStaged(rm, actualDir, false, new int[] { 2, 3, 2, 2, 2 });
+		assertEquals(rm.regions.size(), rr.timer.regionCount.get());
+		// 3 products, 2 scales
+		assertEquals(rm.regions.size() * 6, rr.timer.tilesWritten.get());
+
+		for( Region r : rm.regions ) {
+			for( String name : new String[] { "tile."+r.rx+".0.png", "tile."+r.rx+".0.1-2.png" } ) {
+				for( String subdir : new String[] { "", "heightmap/", "biomes/" } ) {
+					assertSameImage(new File(expectedDir, subdir+name), new File(actualDir, subdir+name));
+				}
+			}
+		}
+
+		String report = pipeline.formatUtilization();
+		for( String stage : RenderPipeline.STAGE_NAMES ) assertTrue(report, report.contains(stage));
+	}
+
+	public void testIdleContextsAreDroppedWhenTheBudgetIsLowered() throws Exception {
+		RenderSettings settings = settings();
+		settings.memoryBudget = MemoryGovernor.estimateBytesPerRegion(settings) * 8;
+		RegionRenderer rr = new RegionRenderer(settings);
+		RenderPipeline pipeline = new RenderPipeline(rr, new File(dir, "out"), true, new int[] { 1, 4, 1, 1, 1 });
+		rr.renderAllStaged(rm, pipeline);
+		int kept = pipeline.getContextCount();
+		assertTrue(kept >= 1 && kept <= 8);
+
+		MemoryGovernor governor = rr.getMemoryGovernor();
+		for( int i=0; i<20; ++i ) governor.pressure(0.5, 0.95);
+		assertEquals(1, governor.getEffectiveMaxConcurrent());
+		rr.renderAllStaged(rm, pipeline);
+		assertEquals(1, pipeline.getContextCount());
+		assertEquals(rm.regions.size() * 2, rr.timer.regionCount.get());
+		// The lowered budget is recorded with the contexts let go of
+		boolean logged = false;
+		for( String decision : governor.getDecisions() ) logged |= decision.contains("idle render contexts");
+		assertEquals(kept > 1, logged);
+	}
+
+	public void testUpToDateRegionsStopAtReadStage() throws Exception {
+		File outputDir = new File(dir, "out");
+		new RegionRenderer(settings()).renderAllStaged(rm, outputDir, false, new int[] { 1, 1, 1, 1, 1 });
+		RegionRenderer rr = new RegionRenderer(settings());
+		rr.renderAllStaged(rm, outputDir, false, new int[] { 1, 1, 1, 1, 1 });
+		assertEquals(0, rr.timer.regionCount.get());
+		assertEquals(0, rr.timer.tilesWritten.get());
+	}
+}
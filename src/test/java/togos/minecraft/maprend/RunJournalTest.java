@@ -0,0 +1,99 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.RenderAllTest.RecordingRenderer;
+
+public class RunJournalTest extends TestCase {
+	private File dir;
+	private File outputDir;
+	private RegionMap rm;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-journal");
+		outputDir = new File(dir, "out");
+		rm = new RegionMap();
+		for( int i=0; i<4; ++i ) {
+			Region r = new Region();
+			r.rx = i;
+			r.regionFile = TestRegionFiles.writeRegion(dir, i, 0, 5 + i);
+			rm.addRegion(r);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private RecordingRenderer journalingRenderer() throws Exception {
+		RecordingRenderer rr = new RecordingRenderer();
+		rr.settings.journal = true;
+		return rr;
+	}
+
+	public void testInterruptedRunIsResumed() throws Exception {
+		RecordingRenderer rr = journalingRenderer();
+		RunJournal journal = new RunJournal(outputDir, rr.getRunId(false));
+		journal.regionCompleted(rm.regions.get(1));
+		journal.regionCompleted(rm.regions.get(3));
+		journal.close();
+
+		rr.renderAll(rm, outputDir, false, 2);
+		assertEquals(2, rr.rendered.size());
+		assertTrue(rr.rendered.contains(rm.regions.get(0)));
+		assertTrue(rr.rendered.contains(rm.regions.get(2)));
+		assertFalse(new File(outputDir, RunJournal.FILENAME).exists());
+
+		// With the journal gone, the next run starts from scratch
+		rr = journalingRenderer();
+		rr.renderAll(rm, outputDir, false, 2);
+		assertEquals(4, rr.rendered.size());
+	}
+
+	public void testJournalFromOtherSettingsIsIgnored() throws Exception {
+		RecordingRenderer rr = journalingRenderer();
+		RunJournal journal = new RunJournal(outputDir, rr.getRunId(false));
+		journal.regionCompleted(rm.regions.get(0));
+		journal.close();
+
+		rr.renderAll(rm, outputDir, true, 1);
+		assertEquals(4, rr.rendered.size());
+	}
+
+	public void testCutOffLinesAreIgnored() throws Exception {
+		String runId = new RecordingRenderer().getRunId(false);
+		RunJournal journal = new RunJournal(outputDir, runId);
+		journal.regionCompleted(rm.regions.get(1));
+		journal.close();
+		FileOutputStream fos = new FileOutputStream(journal.file, true);
+		fos.write("R 2".getBytes("UTF-8"));
+		fos.close();
+
+		journal = new RunJournal(outputDir, runId);
+		assertEquals(1, journal.getCompletedCount());
+		assertTrue(journal.isCompleted(rm.regions.get(1)));
+		journal.close();
+	}
+
+	public void testDigestsOfInterruptedTilesAreForgotten() throws Exception {
+		outputDir.mkdirs();
+		TileDigests digests = new TileDigests(outputDir);
+		digests.update("tile.0.0.png", new byte[] { 1 }, 1000);
+		digests.update("tile.1.0.png", new byte[] { 2 }, 1000);
+		digests.save();
+
+		RecordingRenderer rr = journalingRenderer();
+		RunJournal journal = new RunJournal(outputDir, rr.getRunId(false));
+		journal.tileWriting(new File(outputDir, "tile.0.0.png"));
+		journal.close();
+
+		rr.renderAll(rm, outputDir, false, 1);
+		digests = new TileDigests(outputDir);
+		assertEquals(0, digests.getSourceLastModified("tile.0.0.png"));
+		assertEquals(1000, digests.getSourceLastModified("tile.1.0.png"));
+	}
+}
@@ -0,0 +1,83 @@
+package togos.minecraft.maprend;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class ShadingTableTest extends TestCase {
+	/** The per-pixel floating point shading that ShadingTable replaces */
+	private static void referenceShade(RenderSettings settings, short[] height, int[] color, int[] dest) {
+		int width = 512, depth = 512;
+		int idx = 0;
+		for( int z=0; z<depth; ++z ) {
+			for( int x=0; x<width; ++x, ++idx ) {
+				float dyx, dyz;
+				final int pixelColor = Color.demultiplyAlpha( color[idx] );
+				if( pixelColor == 0 ) {
+					dest[idx] = 0;
+					continue;
+				}
+				if(      x == 0       ) dyx = height[idx+1]-height[idx];
+				else if( x == width-1 ) dyx = height[idx]-height[idx-1];
+				else dyx = (height[idx+1]-height[idx-1]) * 2;
+				if(      z == 0       ) dyz = height[idx+width]-height[idx];
+				else if( z == depth-1 ) dyz = height[idx]-height[idx-width];
+				else dyz = (height[idx+width]-height[idx-width]) * 2;
+				float shade = dyx+dyz;
+				if( shade >  10 ) shade =  10;
+				if( shade < -10 ) shade = -10;
+				int altShade = settings.altitudeShadingFactor * (height[idx] - settings.shadingReferenceAltitude) / 255;
+				if (altShade < settings.minAltitudeShading)
+					altShade = settings.minAltitudeShading;
+				if (altShade > settings.maxAltitudeShading)
+					altShade = settings.maxAltitudeShading;
+				shade += altShade;
+				dest[idx] = Color.shade( pixelColor, (int)(shade*8) );
+			}
+		}
+	}
+
+	private static void assertMatchesReference(RenderSettings settings, long seed) {
+		Random r = new Random(seed);
+		short[] height = new short[512*512];
+		int[] color = new int[512*512];
+		for( int i=0; i<height.length; ++i ) {
+			// Mostly smooth terrain with the occasional cliff
+			height[i] = (short)(r.nextInt(8) == 0 ? r.nextInt(400) - 64 : 64 + (i % 512) / 8 + r.nextInt(3));
+			int alpha = r.nextInt(4) == 0 ? r.nextInt(256) : 255;
+			color[i] = Color.overlay(0, (alpha << 24) | (r.nextInt() & 0xFFFFFF));
+			if( r.nextInt(16) == 0 ) color[i] = 0;
+		}
+		int[] expected = new int[512*512], actual = new int[512*512];
+		referenceShade(settings, height, color, expected);
+		settings.getShadingTable().shade(height, color, actual);
+		for( int i=0; i<expected.length; ++i ) {
+			assertEquals("pixel "+i, expected[i], actual[i]);
+		}
+	}
+
+	public void testDefaultSettingsMatchReference() {
+		assertMatchesReference(new RenderSettings(), 1);
+	}
+
+	public void testExtremeSettingsMatchReference() {
+		RenderSettings settings = new RenderSettings();
+		settings.altitudeShadingFactor = 1000;
+		settings.shadingReferenceAltitude = 10;
+		settings.minAltitudeShading = -500;
+		settings.maxAltitudeShading = 300;
+		assertMatchesReference(settings, 2);
+		settings.altitudeShadingFactor = -36;
+		settings.minAltitudeShading = 5;
+		settings.maxAltitudeShading = 2;
+		assertMatchesReference(settings, 3);
+	}
+
+	public void testTableFollowsSettingChanges() {
+		RenderSettings settings = new RenderSettings();
+		ShadingTable table = settings.getShadingTable();
+		assertSame(table, settings.getShadingTable());
+		settings.maxAltitudeShading = 3;
+		assertNotSame(table, settings.getShadingTable());
+		assertTrue(settings.getShadingTable().matches(settings));
+	}
+}
@@ -0,0 +1,85 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+import togos.minecraft.maprend.io.SurfaceDataFile;
+
+public class SurfaceDataTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-surface");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	public void testRoundTrip() throws Exception {
+		short[] height = new short[512*512];
+		int[] color = new int[512*512];
+		Random r = new Random(1234);
+		for( int i=0; i<height.length; ++i ) {
+			height[i] = (short)(r.nextInt(400) - 64);
+			color[i] = i % 7 == 0 ? 0 : r.nextInt();
+		}
+		File f = new File(dir, "r.0.0.dat");
+		SurfaceDataFile.write(f, height, color);
+
+		short[] readHeight = new short[512*512];
+		int[] readColor = new int[512*512];
+		SurfaceDataFile.read(f, readHeight, readColor);
+		for( int i=0; i<height.length; ++i ) {
+			assertEquals("height "+i, height[i], readHeight[i]);
+			assertEquals("color "+i, color[i], readColor[i]);
+		}
+	}
+
+	private static RenderSettings settings( int altitudeShadingFactor ) {
+		RenderSettings settings = new RenderSettings();
+		settings.altitudeShadingFactor = altitudeShadingFactor;
+		settings.products.add(RenderProduct.HEIGHTMAP);
+		return settings;
+	}
+
+	private static int[] pixels( File f ) throws Exception {
+		BufferedImage image = ImageIO.read(f);
+		return image.getRGB(0, 0, 512, 512, null, 0, 512);
+	}
+
+	private static void assertSameImage( File expected, File actual ) throws Exception {
+		int[] e = pixels(expected), a = pixels(actual);
+		for( int i=0; i<e.length; ++i ) assertEquals("pixel "+i+" of "+actual, e[i], a[i]);
+	}
+
+	public void testReshadeMatchesFullRender() throws Exception {
+		Region r = new Region();
+		r.regionFile = TestRegionFiles.writeRegion(dir, 0, 0, 50);
+		RegionMap rm = new RegionMap();
+		rm.addRegion(r);
+		File saved = new File(dir, "saved"), direct = new File(dir, "direct");
+
+		RenderSettings first = settings(50);
+		first.saveSurfaceData = true;
+		new RegionRenderer(first).renderAll(rm, saved, false, 1);
+		assertTrue(first.getSurfaceDataFile(saved, 0, 0, 0).exists());
+
+		RenderSettings reshade = settings(80);
+		reshade.reshade = true;
+		// Nothing should be read from the world
+		r.regionFile.delete();
+		new RegionRenderer(reshade).renderAll(rm, saved, false, 1);
+
+		r.regionFile = TestRegionFiles.writeRegion(dir, 0, 0, 50);
+		new RegionRenderer(settings(80)).renderAll(rm, direct, false, 1);
+
+		assertSameImage(new File(direct, "tile.0.0.png"), new File(saved, "tile.0.0.png"));
+		assertSameImage(new File(direct, "heightmap/tile.0.0.png"), new File(saved, "heightmap/tile.0.0.png"));
+	}
+}
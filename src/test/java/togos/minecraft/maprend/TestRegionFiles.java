@@ -0,0 +1,105 @@
+package togos.minecraft.maprend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jnbt.*;
+import togos.minecraft.maprend.io.RegionFile;
+
+/**
+ * Writes small synthetic region files for tests to render.
+ */
+public class TestRegionFiles
+{
+	public static File createTempDir( String prefix ) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+	
+	/** Delete a file, or a directory and everything in it; for tests to clean up after themselves in tearDown */
+	public static void deleteRecursively( File f ) {
+		File[] children = f.isDirectory() ? f.listFiles() : null;
+		if( children != null ) {
+			for( File child : children ) deleteRecursively(child);
+		}
+		f.delete();
+	}
+	
+	/**
+	 * Build the NBT for a chunk with a stone floor up to groundHeight,
+	 * topped with a layer of grass and water up to seaLevel.
+	 */
+	public static byte[] chunkData( int cx, int cz, int groundHeight, int seaLevel ) throws IOException {
+		List<Tag> sections = new ArrayList<Tag>();
+		for( int s=0; s*16 < Math.max(groundHeight, seaLevel); ++s ) {
+			byte[] blocks = new byte[16*16*16];
+			byte[] data = new byte[16*16*8];
+			for( int y=0; y<16; ++y ) {
+				int absY = s*16+y;
+				byte blockId = absY < groundHeight-1 ? (byte)1 : absY < groundHeight ? (byte)2 : absY < seaLevel ? (byte)9 : 0;
+				for( int i=0; i<256; ++i ) blocks[y*256+i] = blockId;
+			}
+			Map<String,Tag> section = new HashMap<String,Tag>();
+			section.put("Y", new ByteTag("Y", (byte)s));
+			section.put("Blocks", new ByteArrayTag("Blocks", blocks));
+			section.put("Data", new ByteArrayTag("Data", data));
+			sections.add(new CompoundTag("", section));
+		}
+		byte[] biomes = new byte[16*16];
+		for( int i=0; i<biomes.length; ++i ) biomes[i] = (byte)((cx+cz+i/16)%4);
+		
+		Map<String,Tag> level = new HashMap<String,Tag>();
+		level.put("xPos", new IntTag("xPos", cx));
+		level.put("zPos", new IntTag("zPos", cz));
+		level.put("Sections", new ListTag("Sections", CompoundTag.class, sections));
+		level.put("Biomes", new ByteArrayTag("Biomes", biomes));
+		Map<String,Tag> root = new HashMap<String,Tag>();
+		root.put("Level", new CompoundTag("Level", level));
+		
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		NBTOutputStream nos = new NBTOutputStream(bos);
+		nos.writeTag(new CompoundTag("", root));
+		nos.close();
+		return bos.toByteArray();
+	}
+	
+	/**
+	 * Write a region file containing the first chunkCount chunks
+	 * (in file order) of a gently sloping landscape.
+	 */
+	public static File writeRegion( File dir, int rx, int rz, int chunkCount ) throws IOException {
+		File file = new File(dir, "r."+rx+"."+rz+".mca");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream bodyOut = new DataOutputStream(body);
+		int[] offsets = new int[1024];
+		int sector = 2;
+		for( int i=0; i<chunkCount && i<1024; ++i ) {
+			int cx = i%32, cz = i/32;
+			byte[] data = chunkData(cx, cz, 40+(cx+cz)%24, 48);
+			int sectorCount = (data.length + 5) / 4096 + 1;
+			bodyOut.writeInt(data.length + 1);
+			bodyOut.writeByte(RegionFile.VERSION_GZIP);
+			bodyOut.write(data);
+			bodyOut.write(new byte[sectorCount*4096 - data.length - 5]);
+			offsets[i] = sector << 8 | sectorCount;
+			sector += sectorCount;
+		}
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			for( int i=0; i<1024; ++i ) out.writeInt(offsets[i]);
+			for( int i=0; i<1024; ++i ) out.writeInt(offsets[i] == 0 ? 0 : 1500000000+i);
+			out.write(body.toByteArray());
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
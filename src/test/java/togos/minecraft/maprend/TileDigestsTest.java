@@ -0,0 +1,136 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class TileDigestsTest extends TestCase {
+	private File dir;
+	private File outputDir;
+	private RegionMap rm;
+	private Region region;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-digests");
+		outputDir = new File(dir, "out");
+		region = new Region();
+		region.regionFile = TestRegionFiles.writeRegion(dir, 0, 0, 20);
+		rm = new RegionMap();
+		rm.addRegion(region);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private RegionRenderer renderAll() throws Exception {
+		RenderSettings settings = new RenderSettings();
+		settings.mapScales = new int[] { 1, 4 };
+		RegionRenderer rr = new RegionRenderer(settings);
+		rr.renderAll(rm, outputDir, false, 1);
+		return rr;
+	}
+
+	public void testUnchangedTilesAreLeftAlone() throws Exception {
+		File tile = new File(outputDir, "tile.0.0.png");
+		File scaledTile = new File(outputDir, "tile.0.0.1-4.png");
+
+		RegionRenderer first = renderAll();
+		assertEquals(2, first.timer.tilesWritten.get());
+		assertEquals(0, first.timer.tilesUnchanged.get());
+		assertTrue(new File(outputDir, TileDigests.FILENAME).exists());
+
+		// The game saved the region without changing anything
+		long oldTime = region.regionFile.lastModified() - 60000;
+		tile.setLastModified(oldTime);
+		scaledTile.setLastModified(oldTime);
+		region.regionFile.setLastModified(oldTime + 120000);
+
+		RegionRenderer second = renderAll();
+		assertEquals(1, second.timer.regionCount.get());
+		assertEquals(0, second.timer.tilesWritten.get());
+		assertEquals(2, second.timer.tilesUnchanged.get());
+		assertEquals(oldTime, tile.lastModified());
+		assertEquals(oldTime, scaledTile.lastModified());
+
+		// ...and the tiles now count as up to date despite their old modification times
+		RegionRenderer third = renderAll();
+		assertEquals(0, third.timer.regionCount.get());
+	}
+
+	public void testChangedTilesAreRewritten() throws Exception {
+		renderAll();
+		region.regionFile = TestRegionFiles.writeRegion(dir, 0, 0, 30);
+		region.regionFile.setLastModified(System.currentTimeMillis() + 60000);
+
+		RegionRenderer second = renderAll();
+		assertEquals(2, second.timer.tilesWritten.get());
+		assertEquals(0, second.timer.tilesUnchanged.get());
+	}
+
+	public void testSavesMergeWithOtherProcesses() throws Exception {
+		outputDir.mkdirs();
+		TileDigests a = new TileDigests(outputDir);
+		TileDigests b = new TileDigests(outputDir);
+		byte[] digest = new byte[] { 1, 2, 3 };
+		a.update("tile.0.0.png", digest, 1000);
+		b.update("tile.1.0.png", digest, 2000);
+		a.save();
+		b.save();
+
+		TileDigests merged = new TileDigests(outputDir);
+		assertEquals(1000, merged.getSourceLastModified("tile.0.0.png"));
+		assertEquals(2000, merged.getSourceLastModified("tile.1.0.png"));
+
+		b.remove("tile.1.0.png");
+		b.save();
+		merged = new TileDigests(outputDir);
+		assertEquals(1000, merged.getSourceLastModified("tile.0.0.png"));
+		assertEquals(0, merged.getSourceLastModified("tile.1.0.png"));
+	}
+
+	public void testOverlappingSavesKeepEachOthersEntries() throws Exception {
+		outputDir.mkdirs();
+		byte[] digest = new byte[] { 1, 2, 3 };
+		final TileDigests b = new TileDigests(outputDir);
+		b.update("tile.1.0.png", digest, 2000);
+		final boolean[] saving = { false };
+		final Thread[] other = new Thread[1];
+		TileDigests a = new TileDigests(outputDir) {
+			@Override
+			protected void read( Map<String,Entry> into ) throws IOException {
+				super.read(into);
+				if( !saving[0] || other[0] != null ) return;
+				// The other save starts between this one reading the file and replacing it
+				other[0] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							b.save();
+						} catch( IOException e ) {
+							throw new RuntimeException(e);
+						}
+					}
+				};
+				other[0].start();
+				try {
+					other[0].join(200);
+				} catch( InterruptedException e ) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		a.update("tile.0.0.png", digest, 1000);
+		saving[0] = true;
+		a.save();
+		other[0].join();
+
+		TileDigests merged = new TileDigests(outputDir);
+		assertEquals(1000, merged.getSourceLastModified("tile.0.0.png"));
+		assertEquals(2000, merged.getSourceLastModified("tile.1.0.png"));
+	}
+}
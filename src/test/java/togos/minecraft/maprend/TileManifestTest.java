@@ -0,0 +1,114 @@
+package togos.minecraft.maprend;
+
+import java.io.File;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class TileManifestTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if( dir != null ) TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private static RegionMap regions( int... coordinates ) {
+		RegionMap rm = new RegionMap();
+		for( int i=0; i<coordinates.length; i+=2 ) {
+			Region r = new Region();
+			r.rx = coordinates[i];
+			r.rz = coordinates[i+1];
+			rm.addRegion(r);
+		}
+		return rm;
+	}
+
+	private static String compact( String json ) {
+		return json.replaceAll("\\s+", "");
+	}
+
+	public void testRowsAreListedAsRuns() {
+		RegionMap rm = regions(0,-2, -3,-2, 4,-2, -2,-2, 1,-2, 2,-2, 3,-2, 7,5);
+		String json = TileManifest.toJSON(rm, "World", new int[] { 1, 4 });
+		assertEquals(
+			"{\"title\":\"World\",\"regionSize\":512,\"scales\":[1,4],\"bounds\":[-3,-2,8,6]," +
+			"\"rows\":[[-2,-3,2,0,5],[5,7,1]]}",
+			compact(json));
+	}
+
+	public void testEmptyManifest() {
+		assertEquals("{\"title\":\"World\",\"regionSize\":512,\"scales\":[1],\"rows\":[]}",
+			compact(TileManifest.toJSON(new RegionMap(), "World", new int[] { 1 })));
+	}
+
+	public void testTitleIsSafeInAScript() {
+		String json = TileManifest.toJSON(regions(0,0), "\"A\\B\"</script>\n", new int[] { 1 });
+		assertTrue(json, json.contains("\"title\": \"\\\"A\\\\B\\\"\\u003c/script\\u003e\\u000a\","));
+	}
+
+	public void testViewerIsWrittenWithTheManifest() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-manifest");
+		RenderSettings settings = new RenderSettings();
+		settings.mapScales = new int[] { 1, 2 };
+		RegionRenderer renderer = new RegionRenderer(settings);
+		renderer.getTileManifest(dir).tileMade(0, 0);
+		renderer.getTileManifest(dir).tileMade("tile.1.0.png");
+		// Scaled tiles don't count
+		renderer.getTileManifest(dir).tileMade("tile.5.0.1-2.png");
+		renderer.createTileHtml(dir);
+		String json = new String(Files.readAllBytes(new File(dir, "tiles.json").toPath()), "UTF-8");
+		assertTrue(compact(json), compact(json).contains("\"bounds\":[0,0,2,1],\"rows\":[[0,0,2]]"));
+		String html = new String(Files.readAllBytes(new File(dir, "tiles.html").toPath()), "UTF-8");
+		assertTrue(html.contains("var manifest = " + json.trim() + ";"));
+		assertTrue(new File(dir, "tiles.css").exists());
+		// One page for all scales, with no tiles in it
+		assertFalse(new File(dir, "tiles.1-2.html").exists());
+		assertFalse(html.contains("tile.0.0.png"));
+	}
+
+	public void testRegionsOnDiskAreKeptUnlessTheyFail() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-manifest");
+		TileManifest first = new TileManifest(dir);
+		for( int rx=-1; rx<3; ++rx ) first.tileMade(rx, 4);
+		first.write("World", new int[] { 1 });
+
+		TileManifest second = new TileManifest(dir);
+		second.regionFailed(0, 4);
+		second.tileMade(7, -2);
+		String json = second.write("World", new int[] { 1 });
+		assertTrue(compact(json), compact(json).contains("\"bounds\":[-1,-2,8,5],\"rows\":[[-2,7,1],[4,-1,1,1,2]]"));
+		// Nothing more to add
+		assertEquals(json, new TileManifest(dir).write("World", new int[] { 1 }));
+	}
+
+	public void testRendersRecordTheirTiles() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-manifest");
+		RegionMap rm = new RegionMap();
+		for( int rx=0; rx<4; ++rx ) {
+			Region r = new Region();
+			r.rx = rx;
+			r.regionFile = TestRegionFiles.writeRegion(dir, rx, 0, 4);
+			rm.addRegion(r);
+		}
+		File outputDir = new File(dir, "out");
+		RegionRenderer first = new RegionRenderer(new RenderSettings());
+		first.renderAllStaged(rm, outputDir, false, new int[] { 1, 1, 1, 1, 1 });
+		assertTrue(compact(first.getTileManifest(outputDir).write("World", new int[] { 1 })).contains("\"rows\":[[0,0,4]]"));
+
+		// Unchanged, rewritten and up to date tiles all count, but failed regions don't
+		rm.regionAt(0, 0).regionFile.setLastModified(System.currentTimeMillis() + 2000);
+		new File(outputDir, "tile.1.0.png").delete();
+		File broken = new File(dir, "broken.mca");
+		broken.mkdir();
+		broken.setLastModified(System.currentTimeMillis() + 2000);
+		rm.regionAt(2, 0).regionFile = broken;
+		RegionRenderer rr = new RegionRenderer(new RenderSettings());
+		rr.renderAllStaged(rm, outputDir, false, new int[] { 1, 1, 1, 1, 1 });
+		assertEquals(1, rr.timer.tilesUnchanged.get());
+		assertEquals(1, rr.timer.tilesWritten.get());
+		rr.createTileHtml(outputDir);
+		String json = new String(Files.readAllBytes(new File(outputDir, "tiles.json").toPath()), "UTF-8");
+		assertTrue(compact(json), compact(json).contains("\"rows\":[[0,0,2,3,1]]"));
+	}
+}
@@ -0,0 +1,139 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class TilePyramidTest extends TestCase {
+	private File dir;
+	private RegionMap rm;
+	private RegionRenderer renderer;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-pyramid");
+		rm = new RegionMap();
+		renderer = new RegionRenderer(new RenderSettings());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private void writeRegionTile( int rx, int rz, int color ) throws Exception {
+		BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+		for( int y=0; y<512; ++y ) for( int x=0; x<512; ++x ) image.setRGB(x, y, color);
+		ImageIO.write(image, "png", new File(dir, "tile."+rx+"."+rz+".png"));
+		if( rm.regionAt(rx, rz) == null ) {
+			Region r = new Region();
+			r.rx = rx;
+			r.rz = rz;
+			rm.addRegion(r);
+		}
+	}
+
+	private int pixel( TilePyramid pyramid, int z, int x, int y, int px, int py ) throws Exception {
+		return ImageIO.read(pyramid.getTileFile(z, x, y)).getRGB(px, py);
+	}
+
+	public void testMinZoomFitsTheWorldInTheMiddleTiles() {
+		addRegion(0, 0);
+		assertEquals(TilePyramid.REGION_ZOOM, TilePyramid.getMinZoom(rm));
+		addRegion(-1, -1);
+		assertEquals(TilePyramid.REGION_ZOOM, TilePyramid.getMinZoom(rm));
+		addRegion(5, 0);
+		assertEquals(TilePyramid.REGION_ZOOM - 3, TilePyramid.getMinZoom(rm));
+		addRegion(0, -3);
+		assertEquals(TilePyramid.REGION_ZOOM - 3, TilePyramid.getMinZoom(rm));
+	}
+
+	private void addRegion( int rx, int rz ) {
+		Region r = new Region();
+		r.rx = rx;
+		r.rz = rz;
+		rm.addRegion(r);
+	}
+
+	public void testLevelsMergeChildTiles() throws Exception {
+		writeRegionTile(0, 0, 0xFFFF0000);
+		writeRegionTile(1, 0, 0xFF0000FF);
+		writeRegionTile(-1, -1, 0xFF00FF00);
+		writeRegionTile(3, 1, 0xFFFFFFFF);
+		TilePyramid pyramid = new TilePyramid(renderer, dir);
+		pyramid.update(rm);
+		final int z = TilePyramid.REGION_ZOOM;
+		assertEquals(4, pyramid.regionTilesLinked);
+		assertTrue(pyramid.getTileFile(z, -1, -1).exists());
+		// Regions 0,0 and 1,0 side by side in the top half, nothing below
+		assertEquals(0xFFFF0000, pixel(pyramid, z-1, 0, 0, 10, 10));
+		assertEquals(0xFF0000FF, pixel(pyramid, z-1, 0, 0, 300, 10));
+		assertEquals(0, pixel(pyramid, z-1, 0, 0, 10, 300));
+		assertEquals(0xFF00FF00, pixel(pyramid, z-1, -1, -1, 300, 300));
+		// Region 3,1 in the bottom right quarter of the quarter
+		assertEquals(0xFFFFFFFF, pixel(pyramid, z-2, 0, 0, 511, 255));
+		assertEquals(0xFFFF0000, pixel(pyramid, z-2, 0, 0, 10, 10));
+		assertEquals(0xFF0000FF, pixel(pyramid, z-2, 0, 0, 200, 10));
+		assertEquals(z-2, TilePyramid.getMinZoom(rm));
+		assertFalse(pyramid.getTileFile(z-3, 0, 0).exists());
+		// 4 region tiles, 3 at z-1, 2 at z-2
+		assertEquals(5, pyramid.tilesMade);
+	}
+
+	public void testOnlyAncestorsOfChangedTilesAreRemade() throws Exception {
+		writeRegionTile(0, 0, 0xFFFF0000);
+		writeRegionTile(2, 2, 0xFF0000FF);
+		writeRegionTile(-1, -1, 0xFF00FF00);
+		new TilePyramid(renderer, dir).update(rm);
+
+		TilePyramid pyramid = new TilePyramid(renderer, dir);
+		pyramid.update(rm);
+		assertEquals(0, pyramid.tilesMade);
+		assertEquals(0, pyramid.regionTilesLinked);
+
+		writeRegionTile(2, 2, 0xFFFFFF00);
+		// Newer than the tiles made from it, even where times are only kept to the second
+		new File(dir, "tile.2.2.png").setLastModified(System.currentTimeMillis() + 2000);
+		pyramid = new TilePyramid(renderer, dir);
+		pyramid.update(rm);
+		assertEquals(1, pyramid.regionTilesLinked);
+		// 1,1 at z-1 and 0,0 at z-2, but not the tiles over the other regions
+		assertEquals(2, pyramid.tilesMade);
+		final int z = TilePyramid.REGION_ZOOM;
+		assertEquals(0xFFFFFF00, pixel(pyramid, z, 2, 2, 0, 0));
+		assertEquals(0xFFFFFF00, pixel(pyramid, z-2, 0, 0, 300, 300));
+		assertEquals(0xFFFF0000, pixel(pyramid, z-2, 0, 0, 10, 10));
+	}
+
+	public void testChangedRegionsAreUpdatedWithoutLookingAtTheRest() throws Exception {
+		writeRegionTile(0, 0, 0xFFFF0000);
+		writeRegionTile(2, 2, 0xFF0000FF);
+		writeRegionTile(-1, -1, 0xFF00FF00);
+		new TilePyramid(renderer, dir).update(rm);
+
+		// Changed behind the pyramid's back, but not said to have changed
+		writeRegionTile(0, 0, 0xFF000000);
+		writeRegionTile(2, 2, 0xFFFFFF00);
+		writeRegionTile(5, 1, 0xFFFFFFFF);
+		long later = System.currentTimeMillis() + 2000;
+		for( String name : new String[] { "tile.0.0.png", "tile.2.2.png", "tile.5.1.png" } ) {
+			new File(dir, name).setLastModified(later);
+		}
+		TilePyramid pyramid = new TilePyramid(renderer, dir);
+		pyramid.update(rm, Arrays.asList(rm.regionAt(2, 2), rm.regionAt(5, 1)));
+		assertEquals(2, pyramid.regionTilesLinked);
+		final int z = TilePyramid.REGION_ZOOM;
+		// 1,1 and 2,0 at z-1, 0,0 and 1,0 at z-2, and the new region takes the pyramid
+		// down to z-3, which needs tiles over the whole world
+		assertEquals(6, pyramid.tilesMade);
+		assertEquals(z-3, TilePyramid.getMinZoom(rm));
+		assertEquals(0xFFFFFF00, pixel(pyramid, z-2, 0, 0, 300, 300));
+		assertEquals(0xFFFF0000, pixel(pyramid, z-2, 0, 0, 10, 10));
+		assertEquals(0xFFFF0000, pixel(pyramid, z-3, 0, 0, 5, 5));
+		assertEquals(0xFFFFFFFF, pixel(pyramid, z-3, 0, 0, 330, 70));
+		assertEquals(0xFF00FF00, pixel(pyramid, z-3, -1, -1, 511, 511));
+	}
+}
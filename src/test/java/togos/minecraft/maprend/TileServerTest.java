@@ -0,0 +1,144 @@
+package togos.minecraft.maprend;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import junit.framework.TestCase;
+import togos.minecraft.maprend.RegionMap.Region;
+
+public class TileServerTest extends TestCase {
+	private File dir;
+	private File regionDir;
+	private RenderSettings settings;
+	private TileServer server;
+	private int port;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = TestRegionFiles.createTempDir("tmcmr-server");
+		regionDir = new File(dir, "region");
+		regionDir.mkdirs();
+		TestRegionFiles.writeRegion(regionDir, 0, 0, 20);
+		TestRegionFiles.writeRegion(regionDir, -1, 3, 7);
+		settings = new RenderSettings();
+		settings.mapScales = new int[] { 1, 4 };
+		server = new TileServer(new RegionRenderer(settings), Arrays.asList(regionDir), 64L * 1024 * 1024);
+		port = server.start(0, 4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+		TestRegionFiles.deleteRecursively(dir);
+	}
+
+	private HttpURLConnection open( String path ) throws Exception {
+		return (HttpURLConnection)new URL("http://127.0.0.1:"+port+path).openConnection();
+	}
+
+	private byte[] fetch( String path ) throws Exception {
+		HttpURLConnection conn = open(path);
+		assertEquals(path, 200, conn.getResponseCode());
+		assertEquals("image/png", conn.getContentType());
+		InputStream in = conn.getInputStream();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while( (n = in.read(buf)) > 0 ) bos.write(buf, 0, n);
+		in.close();
+		return bos.toByteArray();
+	}
+
+	private static int[] pixels( BufferedImage image ) {
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+	}
+
+	public void testServedTilesMatchRenderedOnes() throws Exception {
+		File outputDir = new File(dir, "out");
+		new RegionRenderer(settings).renderAll(RegionMap.load(regionDir, BoundingRect.INFINITE), outputDir, false, 1);
+		for( String name : new String[] { "tile.0.0.png", "tile.0.0.1-4.png", "tile.-1.3.png" } ) {
+			BufferedImage served = ImageIO.read(new ByteArrayInputStream(fetch("/"+name)));
+			BufferedImage rendered = ImageIO.read(new File(outputDir, name));
+			assertEquals(name, rendered.getWidth(), served.getWidth());
+			assertTrue(name, Arrays.equals(pixels(rendered), pixels(served)));
+		}
+		// All of region 0,0's tiles came from a single render
+		assertEquals(2, server.renderCount.get());
+	}
+
+	public void testMissingTiles() throws Exception {
+		assertEquals(404, open("/tile.5.5.png").getResponseCode());
+		assertEquals(404, open("/tile.0.0.1-2.png").getResponseCode());
+		assertEquals(404, open("/biomes/tile.0.0.png").getResponseCode());
+		assertEquals(404, open("/index.html").getResponseCode());
+		assertEquals(0, server.renderCount.get());
+	}
+
+	public void testConcurrentRequestsShareOneRender() throws Exception {
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for( int i=0; i<8; ++i ) {
+			final String path = i % 2 == 0 ? "/tile.0.0.png" : "/tile.0.0.1-4.png";
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						fetch(path);
+					} catch( Throwable e ) {
+						synchronized( errors ) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+		}
+		for( Thread t : threads ) t.start();
+		for( Thread t : threads ) t.join();
+		assertEquals(errors.toString(), 0, errors.size());
+		assertEquals(1, server.renderCount.get());
+	}
+
+	public void testChangedRegionsAreRenderedAgain() throws Exception {
+		byte[] before = fetch("/tile.0.0.png");
+		fetch("/tile.0.0.png");
+		assertEquals(1, server.renderCount.get());
+
+		File regionFile = TestRegionFiles.writeRegion(regionDir, 0, 0, 40);
+		regionFile.setLastModified(System.currentTimeMillis() + 60000);
+		byte[] after = fetch("/tile.0.0.png");
+		assertEquals(2, server.renderCount.get());
+		assertFalse(Arrays.equals(before, after));
+	}
+
+	public void testCacheStaysWithinBudget() throws Exception {
+		server.stop();
+		long tileSize = fetchSizeOfRegion();
+		server = new TileServer(new RegionRenderer(settings), Arrays.asList(regionDir), tileSize);
+		port = server.start(0, 2);
+		fetch("/tile.0.0.png");
+		fetch("/tile.-1.3.png");
+		assertTrue(server.getCacheSize() <= tileSize);
+		// Region 0,0's tiles have been thrown out to make room
+		fetch("/tile.0.0.png");
+		assertEquals(3, server.renderCount.get());
+	}
+
+	private long fetchSizeOfRegion() throws Exception {
+		server = new TileServer(new RegionRenderer(settings), Arrays.asList(regionDir), Long.MAX_VALUE);
+		server.start(0, 1);
+		try {
+			server.getTile("/tile.0.0.png");
+			return server.getCacheSize();
+		} finally {
+			server.stop();
+		}
+	}
+}